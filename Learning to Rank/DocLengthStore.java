@@ -12,20 +12,55 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * The lengths of a field are copied into an int array indexed by docid
+ * the first time that the field is accessed, so a lookup is an array
+ * read rather than a norms read.  Fields are addressed by a small
+ * integer id; use {@link #getFieldId} once per query operator, and
+ * {@link #getDocLength(int, int)} for each document.
+ * </p>
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private Map<String, Integer> fieldIds = new HashMap<String, Integer>();
+  private String[] fieldNames;
+
+  /**
+   * The lengths of each field, indexed by field id and docid.  A field's
+   * lengths are null until they are loaded.  Loading a field replaces
+   * the outer array, so readers never see a partially loaded field.
+   */
+  private volatile int[][] lengths;
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+    this.fieldNames = MultiFields.getIndexedFields(reader).toArray(new String[0]);
+    this.lengths = new int[this.fieldNames.length][];
+
+    for (int i = 0; i < this.fieldNames.length; i++) {
+      this.fieldIds.put(this.fieldNames[i], i);
+    }
+  }
+
+  /**
+   * Returns the id of the specified field.
+   *
+   * @param fieldname Name of the field.
+   * @return The field id.
+   * @throws IllegalArgumentException The field is not indexed.
+   */
+  public int getFieldId(String fieldname) {
+    Integer id = this.fieldIds.get(fieldname);
+
+    if (id == null) {
+      throw new IllegalArgumentException("Unknown field: " + fieldname);
     }
+
+    return id;
   }
 
   /**
@@ -36,6 +71,56 @@ public class DocLengthStore  {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    return getDocLength(getFieldId(fieldname), docid);
+  }
+
+  /**
+   * Returns the length of the specified field in the specified document.
+   *
+   * @param fieldId The id of the field, from {@link #getFieldId}.
+   * @param docid The internal docid in the lucene index.
+   */
+  public int getDocLength(int fieldId, int docid) throws IOException {
+    int[] fieldLengths = this.lengths[fieldId];
+
+    if (fieldLengths == null) {
+      fieldLengths = load(fieldId);
+    }
+
+    return fieldLengths[docid];
+  }
+
+  /**
+   * Copy the lengths of a field into an array, if another thread
+   * hasn't already done so.
+   *
+   * @param fieldId The id of the field.
+   * @return The field's lengths, indexed by docid.
+   */
+  private synchronized int[] load(int fieldId) throws IOException {
+    int[][] loaded = this.lengths;
+
+    if (loaded[fieldId] != null) {
+      return loaded[fieldId];
+    }
+
+    NumericDocValues values =
+      MultiDocValues.getNormValues(this.reader, this.fieldNames[fieldId]);
+
+    if (values == null) {
+      throw new IllegalArgumentException(
+        "Field " + this.fieldNames[fieldId] + " has no document lengths.");
+    }
+
+    int[] fieldLengths = new int[this.reader.maxDoc()];
+
+    for (int docid = 0; docid < fieldLengths.length; docid++) {
+      fieldLengths[docid] = (int) values.get(docid);
+    }
+
+    loaded = loaded.clone();
+    loaded[fieldId] = fieldLengths;
+    this.lengths = loaded;
+    return fieldLengths;
   }
 }
@@ -0,0 +1,321 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.*;
+
+/**
+ *  A memory-mapped dictionary that maps internal docids to external
+ *  document ids and back, without reading stored documents or
+ *  searching the index.  The dictionary is built once per index and
+ *  stored next to it, in the index directory.  Idx uses it if it
+ *  exists and was built from the same version of the index.
+ *  <p>
+ *  The file format is a header, an offset table, a hash table, and
+ *  the external ids.  All values are big-endian.
+ *  </p>
+ *  <pre>
+ *    header:   int magic, int maxDoc, long indexVersion, int hashSize,
+ *              int stringsLength
+ *    offsets:  int[maxDoc+1]  The external id of docid d is the UTF-8
+ *                             string in strings[offsets[d], offsets[d+1]).
+ *                             Deleted documents have empty ids.
+ *    hash:     int[hashSize]  Open addressing, linear probing; each
+ *                             slot is docid+1, or 0 if it is empty.
+ *    strings:  byte[stringsLength]
+ *  </pre>
+ *  <p>
+ *  To build a dictionary:
+ *  </p>
+ *  <pre>
+ *    java DocidDictionary indexPath
+ *  </pre>
+ */
+public class DocidDictionary {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the dictionary file in the index directory.
+   */
+  public static final String FILE_NAME = "docids.dict";
+
+  private static final int MAGIC = 0x44494431;		// "DID1"
+  private static final int HEADER_LENGTH = 24;
+
+  private final int maxDoc;
+  private final long indexVersion;
+  private final IntBuffer offsets;
+  private final IntBuffer hash;
+  private final ByteBuffer strings;
+  private final int hashMask;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Map a dictionary file.
+   *  @param path The dictionary file.
+   *  @throws IOException Error reading the dictionary.
+   */
+  public DocidDictionary (String path) throws IOException {
+
+    FileInputStream file = new FileInputStream (path);
+
+    try {
+      FileChannel channel = file.getChannel ();
+      ByteBuffer header = ByteBuffer.allocate (HEADER_LENGTH);
+
+      while (header.hasRemaining ())
+        if (channel.read (header, header.position ()) < 0)
+          throw new IOException ("Truncated docid dictionary " + path);
+
+      header.flip ();
+
+      if (header.getInt () != MAGIC)
+        throw new IOException (path + " is not a docid dictionary.");
+
+      this.maxDoc = header.getInt ();
+      this.indexVersion = header.getLong ();
+
+      int hashSize = header.getInt ();
+      int stringsLength = header.getInt ();
+      long position = HEADER_LENGTH;
+
+      //  Each section is mapped separately, so each may be up to 2GB.
+
+      this.offsets =
+        channel.map (FileChannel.MapMode.READ_ONLY, position,
+                     4L * (this.maxDoc + 1)).asIntBuffer ();
+      position += 4L * (this.maxDoc + 1);
+
+      this.hash =
+        channel.map (FileChannel.MapMode.READ_ONLY, position,
+                     4L * hashSize).asIntBuffer ();
+      position += 4L * hashSize;
+
+      this.strings =
+        channel.map (FileChannel.MapMode.READ_ONLY, position, stringsLength);
+      this.hashMask = hashSize - 1;
+    } finally {
+      file.close ();
+    }
+  }
+
+  /**
+   *  Returns true if the dictionary was built from the current
+   *  version of an index.
+   *  @param reader The index.
+   *  @return True if the dictionary matches the index.
+   */
+  public boolean matches (IndexReader reader) {
+    return ((reader.maxDoc () == this.maxDoc) &&
+            (indexVersion (reader) == this.indexVersion));
+  }
+
+  /**
+   *  Get the external document id of a document.
+   *  @param docid The internal document id.
+   *  @return The external id, or null if the document has none.
+   */
+  public String getExternalDocid (int docid) {
+
+    int start = this.offsets.get (docid);
+    int length = this.offsets.get (docid + 1) - start;
+
+    if (length == 0)
+      return null;
+
+    byte[] bytes = new byte[length];
+
+    for (int i = 0; i < length; i++)
+      bytes[i] = this.strings.get (start + i);
+
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the internal docid of a document.
+   *  @param externalId The external document id.
+   *  @return The internal document id, or -1 if there is none.
+   */
+  public int getInternalDocid (String externalId) {
+
+    byte[] key = externalId.getBytes (StandardCharsets.UTF_8);
+
+    for (int slot = hash (key) & this.hashMask; ;
+         slot = (slot + 1) & this.hashMask) {
+
+      int docid = this.hash.get (slot) - 1;
+
+      if (docid < 0)
+        return -1;
+
+      if (this.equals (docid, key))
+        return docid;
+    }
+  }
+
+  /**
+   *  Returns true if a document's external id is key.
+   */
+  private boolean equals (int docid, byte[] key) {
+
+    int start = this.offsets.get (docid);
+
+    if (this.offsets.get (docid + 1) - start != key.length)
+      return false;
+
+    for (int i = 0; i < key.length; i++)
+      if (this.strings.get (start + i) != key[i])
+        return false;
+
+    return true;
+  }
+
+  /**
+   *  The hash function for external ids.
+   */
+  private static int hash (byte[] key) {
+
+    int h = 0;
+
+    for (int i = 0; i < key.length; i++)
+      h = 31 * h + key[i];
+
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h;
+  }
+
+  /**
+   *  Get the version of an index, which changes whenever it is
+   *  modified, or -1 if the version isn't available.
+   */
+  private static long indexVersion (IndexReader reader) {
+    return (reader instanceof DirectoryReader)
+      ? ((DirectoryReader) reader).getVersion () : -1;
+  }
+
+  /**
+   *  Build a dictionary from an index's externalId field and write
+   *  it to a file.  The ids are read from the field's terms, which is
+   *  much faster than reading stored documents.
+   *  @param reader The index.
+   *  @param path The dictionary file.
+   *  @throws IOException Error reading the index or writing the file.
+   */
+  public static void build (IndexReader reader, String path)
+    throws IOException {
+
+    int maxDoc = reader.maxDoc ();
+    byte[][] ids = new byte[maxDoc][];
+    int numIds = 0;
+    long stringsLength = 0;
+
+    Terms terms = MultiFields.getTerms (reader, "externalId");
+
+    if (terms != null) {
+      Bits liveDocs = MultiFields.getLiveDocs (reader);
+      TermsEnum termsEnum = terms.iterator (null);
+      DocsEnum docs = null;
+      BytesRef term;
+
+      while ((term = termsEnum.next ()) != null) {
+        docs = termsEnum.docs (liveDocs, docs, DocsEnum.FLAG_NONE);
+
+        int docid;
+
+        while ((docid = docs.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+          ids[docid] = Arrays.copyOfRange (term.bytes, term.offset,
+                                           term.offset + term.length);
+          stringsLength += term.length;
+          numIds ++;
+        }
+      }
+    }
+
+    if (stringsLength > Integer.MAX_VALUE)
+      throw new IllegalArgumentException ("Too many external ids for a docid dictionary.");
+
+    //  Build the hash table.  It is at most half full.
+
+    int hashSize = Integer.highestOneBit (Math.max (2 * numIds, 16) - 1) << 1;
+    int hashMask = hashSize - 1;
+    int[] table = new int[hashSize];
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+
+      if (ids[docid] == null)
+        continue;
+
+      int slot = hash (ids[docid]) & hashMask;
+
+      while (table[slot] != 0)
+        slot = (slot + 1) & hashMask;
+
+      table[slot] = docid + 1;
+    }
+
+    //  Write the file.
+
+    DataOutputStream output =
+      new DataOutputStream (new BufferedOutputStream (new FileOutputStream (path), 1 << 16));
+
+    output.writeInt (MAGIC);
+    output.writeInt (maxDoc);
+    output.writeLong (indexVersion (reader));
+    output.writeInt (hashSize);
+    output.writeInt ((int) stringsLength);
+
+    int offset = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      output.writeInt (offset);
+
+      if (ids[docid] != null)
+        offset += ids[docid].length;
+    }
+
+    output.writeInt (offset);
+
+    for (int i = 0; i < hashSize; i++)
+      output.writeInt (table[i]);
+
+    for (int docid = 0; docid < maxDoc; docid++)
+      if (ids[docid] != null)
+        output.write (ids[docid]);
+
+    output.close ();
+  }
+
+  /**
+   *  Build the dictionary of an index.
+   *  @param args indexPath
+   *  @throws Exception Error reading the index or writing the dictionary.
+   */
+  public static void main (String[] args) throws Exception {
+
+    if (args.length < 1) {
+      throw new IllegalArgumentException ("Usage:  java DocidDictionary indexPath");
+    }
+
+    IndexReader reader =
+      DirectoryReader.open (FSDirectory.open (new File (args[0])));
+    String path = new File (args[0], FILE_NAME).getPath ();
+
+    build (reader, path);
+    reader.close ();
+
+    System.out.println ("Wrote " + path);
+  }
+}
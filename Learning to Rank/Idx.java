@@ -18,6 +18,7 @@ public class Idx {
 
   public static IndexReader INDEXREADER=null;
   private static DocLengthStore DOCLENGTHSTORE;
+  private static DocidDictionary DOCIDDICTIONARY = null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -46,10 +47,15 @@ public class Idx {
   /**
    * Get the external document id for a document specified by an internal
    * document id.
+   * The docid dictionary is used if there is one.
    * @param iid The internal document id of the document.
    * @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
+    if (Idx.DOCIDDICTIONARY != null) {
+      return Idx.DOCIDDICTIONARY.getExternalDocid(iid);
+    }
+
     Document d = Idx.INDEXREADER.document(iid);
     String eid = d.get("externalId");
     return eid;
@@ -69,7 +75,7 @@ public class Idx {
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
-   * exists, throw an exception.
+   * exists, return -1.  The docid dictionary is used if there is one.
    * @param externalId
    * @return iternal docid.
    * @throws Exception Could not read the internal document id from the index.
@@ -77,6 +83,10 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
+    if (Idx.DOCIDDICTIONARY != null) {
+      return Idx.DOCIDDICTIONARY.getInternalDocid(externalId);
+    }
+
     Query q = new TermQuery(new Term("externalId", externalId));
 
     IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
@@ -115,7 +125,8 @@ public class Idx {
   }
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index, the associated DocLengthStore, and the
+   *  docid dictionary, if the index has a current one.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
@@ -140,6 +151,23 @@ public class Idx {
     if (Idx.DOCLENGTHSTORE == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
+
+    //  Use the docid dictionary if it was built for this version of
+    //  the index; see DocidDictionary.
+
+    Idx.DOCIDDICTIONARY = null;
+
+    File dictionary = new File (indexPath, DocidDictionary.FILE_NAME);
+
+    if (dictionary.exists ()) {
+      DocidDictionary d = new DocidDictionary (dictionary.getPath ());
+
+      if (d.matches (Idx.INDEXREADER)) {
+        Idx.DOCIDDICTIONARY = d;
+      } else {
+        System.err.println ("Warning: " + dictionary + " is out of date; rebuild it with DocidDictionary.");
+      }
+    }
   }
 
 }
@@ -14,11 +14,25 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in parallel primitive arrays rather than as
+ *  one object per document.  The n'th posting is described by
+ *  docids[n] and tfs[n]; its locations are stored in the flat
+ *  positions array, starting at positionOffsets[n].  The arrays may
+ *  be larger than necessary; only the first df (or ctf) entries are
+ *  valid.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of the posting arrays of a list that is
+   *  built incrementally.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -37,50 +51,28 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term in the
+   *  specified field, in ascending order.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  protected int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Term frequencies:  The number of times the term occurs in the
+   *  specified field of each document.
    */
-  public class DocPosting {
+  protected int[] tfs;
 
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
-
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
-
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The index in the positions array of the first location of each
+   *  document's posting.
+   */
+  protected int[] positionOffsets;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  The locations where the term occurs in the specified field, for
+   *  all of the documents in the inverted list.
+   */
+  protected int[] positions;
 
   //  --------------- Methods ---------------------------------------
 
@@ -88,6 +80,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -96,6 +89,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -110,20 +104,28 @@ public class InvList {
 
     this.field = new String (fieldString);
 
-    //  Prepare to access the index.
+    //  Lookup the term once; the terms enumerator provides the
+    //  statistics that are used to size the arrays and the postings.
 
-    BytesRef termBytes = new BytesRef(termString);
-    Term term = new Term(fieldString, termBytes);
+    Terms terms = MultiFields.getTerms (Idx.INDEXREADER, fieldString);
+    TermsEnum termsEnum = (terms == null) ? null : terms.iterator (null);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    if ((termsEnum == null) ||
+        (! termsEnum.seekExact (new BytesRef (termString), true))) {
+      this.allocate (0, 0);
       return;
+    }
 
-    //  Lookup the inverted list.
+    //  The statistics include deleted documents, so the arrays may be
+    //  a little too large.  They are trimmed later.
+
+    int termDf = termsEnum.docFreq ();
+    long termCtf = termsEnum.totalTermFreq ();
+
+    this.allocate (termDf, (int) Math.max (termDf, Math.min (termCtf, Integer.MAX_VALUE)));
 
     DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-				       MultiFields.getLiveDocs(Idx.INDEXREADER),
-				       fieldString, termBytes);
+      termsEnum.docsAndPositions (MultiFields.getLiveDocs(Idx.INDEXREADER), null);
 
     //  Copy from Lucene inverted list format to our inverted list
     //  format. This is a little inefficient, but allows query
@@ -133,14 +135,72 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
+      this.positionOffsets[this.df] = this.ctf;
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[this.ctf + j] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
       this.df++;
       this.ctf += tf;
+      this.positionOffsets[this.df] = this.ctf;
+    }
+
+    this.trim ();
+  }
+
+  /**
+   *  Allocate the posting arrays.
+   *  @param docCapacity The number of postings that can be stored.
+   *  @param positionCapacity The number of locations that can be stored.
+   */
+  private void allocate (int docCapacity, int positionCapacity) {
+    this.docids = new int[docCapacity];
+    this.tfs = new int[docCapacity];
+    this.positionOffsets = new int[docCapacity + 1];
+    this.positions = new int[positionCapacity];
+  }
+
+  /**
+   *  Grow the posting arrays, if necessary, so that they can store
+   *  the specified number of postings and locations.
+   *  @param docCapacity The number of postings that must fit.
+   *  @param positionCapacity The number of locations that must fit.
+   */
+  private void ensureCapacity (int docCapacity, int positionCapacity) {
+
+    if (docCapacity > this.docids.length) {
+      int n = Math.max (docCapacity, this.docids.length + (this.docids.length >> 1) + 1);
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.tfs = Arrays.copyOf (this.tfs, n);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, n + 1);
+    }
+
+    if (positionCapacity > this.positions.length) {
+      int n = Math.max (positionCapacity, this.positions.length + (this.positions.length >> 1) + 1);
+      this.positions = Arrays.copyOf (this.positions, n);
+    }
+  }
+
+  /**
+   *  Release unused capacity in the posting arrays.  This is useful
+   *  once a list is complete, especially if it will be kept for a
+   *  long time.
+   */
+  public void trim () {
+
+    if (this.docids.length > this.df) {
+      this.docids = Arrays.copyOf (this.docids, this.df);
+      this.tfs = Arrays.copyOf (this.tfs, this.df);
+      this.positionOffsets = Arrays.copyOf (this.positionOffsets, this.df + 1);
+    }
+
+    if (this.positions.length > this.ctf) {
+      this.positions = Arrays.copyOf (this.positions, this.ctf);
     }
   }
 
@@ -152,29 +212,52 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
+
+    int[] locations = new int[positions.size()];
+
+    for (int i = 0; i < locations.length; i++)
+      locations[i] = positions.get(i);
+
+    return this.appendPosting (docid, locations, locations.length);
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param locations An array of positions where the term occurs.
+   *  @param tf The number of valid positions in the locations array.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] locations, int tf) {
     
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.positionOffsets[this.df] = this.ctf;
+    System.arraycopy (locations, 0, this.positions, this.ctf, tf);
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
+    this.positionOffsets[this.df] = this.ctf;
     return true;
   }
 
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
   }
 
   /**
@@ -183,11 +266,38 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
   }
 
+  /**
+   *  Get the j'th location of the term in the n'th document of the
+   *  inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location in the document.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+    return this.positions[this.positionOffsets[n] + j];
+  }
 
+  /**
+   *  Copy the locations of the term in the n'th document of the
+   *  inverted list into a buffer.  The buffer is replaced by a larger
+   *  one if it is too small.
+   *  @param n The index of the requested document.
+   *  @param buffer A buffer that may be reused.
+   *  @return The buffer that contains the locations.
+   */
+  public int[] getPositions(int n, int[] buffer) {
 
+    int tf = this.tfs[n];
+
+    if ((buffer == null) || (buffer.length < tf))
+      buffer = new int[Math.max (tf, INITIAL_CAPACITY)];
+
+    System.arraycopy (this.positions, this.positionOffsets[n], buffer, 0, tf);
+    return buffer;
+  }
 
   /**
    *  Print the inverted list.  This is handy for debugging.
@@ -197,11 +307,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.getTf(i); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
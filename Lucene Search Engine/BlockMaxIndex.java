@@ -0,0 +1,496 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.*;
+
+/**
+ *  Per-block score bounds for the inverted lists of frequent terms,
+ *  which Block-Max WAND uses to skip blocks of documents that can't
+ *  enter the top k.  Each list is divided into blocks of BLOCK_SIZE
+ *  postings.  For each block, the index records the last docid, the
+ *  largest BM25 tf component, tf / (tf + k1 * (1 - b + b * dl / avgdl)),
+ *  and, to bound Indri scores, the largest tf / dl, the largest tf,
+ *  and the smallest dl.  The index is
+ *  stored next to the Lucene index, and Idx uses it if it exists and
+ *  was built from the same version of the index.  The BM25 bounds are
+ *  only valid for the k1 and b that the index was built with.
+ *  <p>
+ *  The file format is a header, the blocks of each term, and a
+ *  directory.  All values are big-endian, and bounds are rounded up.
+ *  </p>
+ *  <pre>
+ *    header:     int magic, int maxDoc, long indexVersion, double k1,
+ *                double b, int numTerms, long directoryOffset
+ *    blocks:     int numBlocks, int[numBlocks] lastDocids,
+ *                float[numBlocks] maxTfComponents, float[numBlocks] maxTfRatios,
+ *                int[numBlocks] maxTfs, int[numBlocks] minDocLengths
+ *    directory:  numTerms * (UTF "field:term", long blocksOffset)
+ *  </pre>
+ *  <p>
+ *  To build a block-max index:
+ *  </p>
+ *  <pre>
+ *    java BlockMaxIndex indexPath k1 b [minDf [field ...]]
+ *  </pre>
+ *  <p>
+ *  Terms whose df is less than minDf (default 1024) in the listed
+ *  fields (default: body) are not included; their term-level bounds
+ *  are tight enough.
+ *  </p>
+ */
+public class BlockMaxIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the block-max file in the index directory.
+   */
+  public static final String FILE_NAME = "blockmax.idx";
+
+  /**
+   *  The number of postings in a block.
+   */
+  public static final int BLOCK_SIZE = 64;
+
+  private static final int MAGIC = 0x424D5831;		// "BMX1"
+  private static final int HEADER_LENGTH = 44;
+
+  private final int maxDoc;
+  private final long indexVersion;
+  private final double k1;
+  private final double b;
+
+  /**
+   *  The whole file up to the directory, if it is small enough to map
+   *  at once; otherwise null, and each term is mapped separately from
+   *  the channel.
+   */
+  private ByteBuffer mapped = null;
+  private FileChannel channel = null;
+
+  /**
+   *  The offset of each term, keyed by "field:term", and all of the
+   *  offsets in increasing order, followed by the directory's offset,
+   *  which give the length of each term.
+   */
+  private final Map<String, Long> directory = new HashMap<String, Long>();
+  private long[] offsets;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The block bounds of one term.
+   */
+  public static class Blocks {
+
+    private final int numBlocks;
+    private final IntBuffer lastDocids;
+    private final FloatBuffer maxTfComponents;
+    private final FloatBuffer maxTfRatios;
+    private final IntBuffer maxTfs;
+    private final IntBuffer minDocLengths;
+
+    private Blocks (ByteBuffer buffer) {
+      this.numBlocks = buffer.getInt (0);
+
+      buffer.position (4);
+      this.lastDocids = buffer.slice ().asIntBuffer ();
+      buffer.position (4 + 4 * this.numBlocks);
+      this.maxTfComponents = buffer.slice ().asFloatBuffer ();
+      buffer.position (4 + 8 * this.numBlocks);
+      this.maxTfRatios = buffer.slice ().asFloatBuffer ();
+      buffer.position (4 + 12 * this.numBlocks);
+      this.maxTfs = buffer.slice ().asIntBuffer ();
+      buffer.position (4 + 16 * this.numBlocks);
+      this.minDocLengths = buffer.slice ().asIntBuffer ();
+    }
+
+    /**
+     *  Find the block that would contain a docid.
+     *  @param docid An internal document id.
+     *  @return The block, or the number of blocks if docid is after
+     *    the last posting.
+     */
+    public int findBlock (int docid) {
+
+      int lo = 0;
+      int hi = this.numBlocks;
+
+      //  Invariant:  blocks before lo end before docid, and block hi
+      //  (if any) ends at or after docid.
+
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+
+        if (this.lastDocids.get (mid) < docid)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+
+      return lo;
+    }
+
+    public int getNumBlocks () {
+      return this.numBlocks;
+    }
+
+    public int getLastDocid (int block) {
+      return this.lastDocids.get (block);
+    }
+
+    public double getMaxTfComponent (int block) {
+      return this.maxTfComponents.get (block);
+    }
+
+    public double getMaxTfRatio (int block) {
+      return this.maxTfRatios.get (block);
+    }
+
+    public int getMaxTf (int block) {
+      return this.maxTfs.get (block);
+    }
+
+    public int getMinDocLength (int block) {
+      return this.minDocLengths.get (block);
+    }
+
+    /**
+     *  Get the largest BM25 tf component of any block.
+     */
+    public double getMaxTfComponent () {
+      double max = 0;
+
+      for (int i = 0; i < this.numBlocks; i++)
+        max = Math.max (max, this.maxTfComponents.get (i));
+
+      return max;
+    }
+
+    /**
+     *  Get the largest tf / dl of any block.
+     */
+    public double getMaxTfRatio () {
+      double max = 0;
+
+      for (int i = 0; i < this.numBlocks; i++)
+        max = Math.max (max, this.maxTfRatios.get (i));
+
+      return max;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Map a block-max index.
+   *  @param path The block-max file.
+   *  @throws IOException Error reading the file.
+   */
+  public BlockMaxIndex (String path) throws IOException {
+
+    FileInputStream file = new FileInputStream (path);
+    boolean keepOpen = false;
+
+    try {
+      FileChannel channel = file.getChannel ();
+      ByteBuffer header = ByteBuffer.allocate (HEADER_LENGTH);
+
+      while (header.hasRemaining ())
+        if (channel.read (header, header.position ()) < 0)
+          throw new IOException ("Truncated block-max index " + path);
+
+      header.flip ();
+
+      if (header.getInt () != MAGIC)
+        throw new IOException (path + " is not a block-max index.");
+
+      this.maxDoc = header.getInt ();
+      this.indexVersion = header.getLong ();
+      this.k1 = header.getDouble ();
+      this.b = header.getDouble ();
+
+      int numTerms = header.getInt ();
+      long directoryOffset = header.getLong ();
+
+      channel.position (directoryOffset);
+
+      DataInputStream input =
+        new DataInputStream (new BufferedInputStream (file));
+
+      this.offsets = new long[numTerms + 1];
+
+      for (int i = 0; i < numTerms; i++) {
+        String key = input.readUTF ();
+        this.offsets[i] = input.readLong ();
+        this.directory.put (key, this.offsets[i]);
+      }
+
+      this.offsets[numTerms] = directoryOffset;
+      Arrays.sort (this.offsets);
+
+      //  A file that is too large to map at once is mapped one term
+      //  at a time, so the channel stays open.
+
+      if (directoryOffset <= Integer.MAX_VALUE) {
+        this.mapped =
+          channel.map (FileChannel.MapMode.READ_ONLY, 0, directoryOffset);
+      } else {
+        this.channel = channel;
+        keepOpen = true;
+      }
+    } finally {
+      if (! keepOpen)
+        file.close ();
+    }
+  }
+
+  /**
+   *  Returns true if the index was built from the current version of
+   *  a Lucene index.
+   *  @param reader The Lucene index.
+   *  @return True if the block-max index matches the Lucene index.
+   */
+  public boolean matches (IndexReader reader) {
+    return ((reader.maxDoc () == this.maxDoc) &&
+            (Idx.getIndexVersion (reader) == this.indexVersion));
+  }
+
+  /**
+   *  Returns true if the BM25 bounds are valid for a retrieval model.
+   *  @param r A BM25 retrieval model.
+   *  @return True if the model's k1 and b match the index.
+   */
+  public boolean matches (RetrievalModelBM25 r) {
+    return ((r.getK1 () == this.k1) && (r.getB () == this.b));
+  }
+
+  /**
+   *  Get the block bounds of a term.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The term's blocks, or null if the term isn't indexed.
+   *  @throws IOException Error mapping the file.
+   */
+  public Blocks get (String termString, String fieldString)
+    throws IOException {
+
+    Long offset = this.directory.get (fieldString + ":" + termString);
+
+    if (offset == null)
+      return null;
+
+    return new Blocks (this.map (offset));
+  }
+
+  /**
+   *  Get a view of a term's part of the file.
+   *  @param offset The term's offset.
+   *  @return The term's part of the file, starting at position 0.
+   *  @throws IOException Error mapping the file.
+   */
+  private ByteBuffer map (long offset) throws IOException {
+
+    if (this.mapped != null) {
+      ByteBuffer buffer = this.mapped.duplicate ();
+      buffer.position ((int) offset);
+      return buffer.slice ();
+    }
+
+    long end = this.offsets[Arrays.binarySearch (this.offsets, offset) + 1];
+
+    return this.channel.map (FileChannel.MapMode.READ_ONLY, offset, end - offset);
+  }
+
+  /**
+   *  Convert a bound to a float, rounding up.
+   */
+  private static float roundUp (double value) {
+    float f = (float) value;
+    return (f < value) ? Math.nextUp (f) : f;
+  }
+
+  /**
+   *  Build a block-max index.
+   *  @param args See the class description.
+   *  @throws Exception Error reading the index or writing the file.
+   */
+  public static void main (String[] args) throws Exception {
+
+    if (args.length < 3) {
+      throw new IllegalArgumentException
+        ("Usage:  java BlockMaxIndex indexPath k1 b [minDf [field ...]]");
+    }
+
+    Idx.initialize (args[0]);
+
+    double k1 = Double.parseDouble (args[1]);
+    double b = Double.parseDouble (args[2]);
+    int minDf = (args.length > 3) ? Integer.parseInt (args[3]) : 1024;
+    String[] fields =
+      (args.length > 4) ? Arrays.copyOfRange (args, 4, args.length)
+                        : new String[] { "body" };
+
+    String path = new File (args[0], FILE_NAME).getPath ();
+    DataOutputStream output =
+      new DataOutputStream (new BufferedOutputStream (new FileOutputStream (path), 1 << 16));
+    List<String> keys = new ArrayList<String> ();
+    List<Long> offsets = new ArrayList<Long> ();
+    long offset = HEADER_LENGTH;
+    Bits liveDocs = MultiFields.getLiveDocs (Idx.INDEXREADER);
+
+    int[] lastDocids = new int[16];
+    float[] maxTfComponents = new float[16];
+    float[] maxTfRatios = new float[16];
+    int[] maxTfs = new int[16];
+    int[] minDocLengths = new int[16];
+
+    output.write (new byte[HEADER_LENGTH]);
+
+    for (String field : fields) {
+
+      Terms terms = MultiFields.getTerms (Idx.INDEXREADER, field);
+
+      if (terms == null)
+        continue;
+
+      int fieldId = Idx.getFieldId (field);
+      double avgDocLength =
+        ((double) Idx.getSumOfFieldLengths (field)) / (double) Idx.getDocCount (field);
+      TermsEnum termsEnum = terms.iterator (null);
+      DocsEnum docs = null;
+      BytesRef term;
+
+      while ((term = termsEnum.next ()) != null) {
+
+        if (termsEnum.docFreq () < minDf)
+          continue;
+
+        //  Walk the postings, one block at a time.
+
+        docs = termsEnum.docs (liveDocs, docs, DocsEnum.FLAG_FREQS);
+
+        int numBlocks = 0;
+        int n = 0;
+        int docid;
+        double maxTfComponent = 0;
+        double maxTfRatio = 0;
+        int maxTf = 0;
+        int minDocLength = Integer.MAX_VALUE;
+
+        while ((docid = docs.nextDoc ()) != DocIdSetIterator.NO_MORE_DOCS) {
+
+          int freq = docs.freq ();
+          int length = Idx.getFieldLength (fieldId, docid);
+          double tf = freq;
+          double docLength = length;
+
+          //  The same arithmetic as QrySopScore.getScoreBM25.
+
+          maxTfComponent =
+            Math.max (maxTfComponent,
+                      tf / (tf + k1 * ((1 - b) + b * docLength / avgDocLength)));
+          maxTfRatio = Math.max (maxTfRatio, tf / Math.max (docLength, 1));
+          maxTf = Math.max (maxTf, freq);
+          minDocLength = Math.min (minDocLength, length);
+          n++;
+
+          if (n == BLOCK_SIZE) {
+            if (numBlocks == lastDocids.length) {
+              lastDocids = Arrays.copyOf (lastDocids, 2 * numBlocks);
+              maxTfComponents = Arrays.copyOf (maxTfComponents, 2 * numBlocks);
+              maxTfRatios = Arrays.copyOf (maxTfRatios, 2 * numBlocks);
+              maxTfs = Arrays.copyOf (maxTfs, 2 * numBlocks);
+              minDocLengths = Arrays.copyOf (minDocLengths, 2 * numBlocks);
+            }
+
+            lastDocids[numBlocks] = docid;
+            maxTfComponents[numBlocks] = roundUp (maxTfComponent);
+            maxTfRatios[numBlocks] = roundUp (maxTfRatio);
+            maxTfs[numBlocks] = maxTf;
+            minDocLengths[numBlocks] = minDocLength;
+            numBlocks++;
+            n = 0;
+            maxTfComponent = 0;
+            maxTfRatio = 0;
+            maxTf = 0;
+            minDocLength = Integer.MAX_VALUE;
+          }
+        }
+
+        //  The last block may be partial.  Its last docid is
+        //  Integer.MAX_VALUE, so every docid falls in some block.
+
+        if (n > 0 || numBlocks == 0) {
+          if (numBlocks == lastDocids.length) {
+            lastDocids = Arrays.copyOf (lastDocids, 2 * numBlocks);
+            maxTfComponents = Arrays.copyOf (maxTfComponents, 2 * numBlocks);
+            maxTfRatios = Arrays.copyOf (maxTfRatios, 2 * numBlocks);
+            maxTfs = Arrays.copyOf (maxTfs, 2 * numBlocks);
+            minDocLengths = Arrays.copyOf (minDocLengths, 2 * numBlocks);
+          }
+
+          lastDocids[numBlocks] = Integer.MAX_VALUE;
+          maxTfComponents[numBlocks] = roundUp (maxTfComponent);
+          maxTfRatios[numBlocks] = roundUp (maxTfRatio);
+          maxTfs[numBlocks] = maxTf;
+          minDocLengths[numBlocks] = (n > 0) ? minDocLength : 0;
+          numBlocks++;
+        } else {
+          lastDocids[numBlocks - 1] = Integer.MAX_VALUE;
+        }
+
+        keys.add (field + ":" + term.utf8ToString ());
+        offsets.add (offset);
+
+        output.writeInt (numBlocks);
+
+        for (int i = 0; i < numBlocks; i++)
+          output.writeInt (lastDocids[i]);
+
+        for (int i = 0; i < numBlocks; i++)
+          output.writeFloat (maxTfComponents[i]);
+
+        for (int i = 0; i < numBlocks; i++)
+          output.writeFloat (maxTfRatios[i]);
+
+        for (int i = 0; i < numBlocks; i++)
+          output.writeInt (maxTfs[i]);
+
+        for (int i = 0; i < numBlocks; i++)
+          output.writeInt (minDocLengths[i]);
+
+        offset += 4L + 20L * numBlocks;
+      }
+    }
+
+    long directoryOffset = offset;
+
+    for (int i = 0; i < keys.size (); i++) {
+      output.writeUTF (keys.get (i));
+      output.writeLong (offsets.get (i));
+    }
+
+    output.close ();
+
+    RandomAccessFile file = new RandomAccessFile (path, "rw");
+    file.writeInt (MAGIC);
+    file.writeInt (Idx.INDEXREADER.maxDoc ());
+    file.writeLong (Idx.getIndexVersion (Idx.INDEXREADER));
+    file.writeDouble (k1);
+    file.writeDouble (b);
+    file.writeInt (keys.size ());
+    file.writeLong (directoryOffset);
+    file.close ();
+
+    System.out.println ("Wrote block bounds for " + keys.size () + " terms to " + path);
+  }
+}
@@ -0,0 +1,382 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A read-only inverted list whose postings are compressed.  Postings
+ *  are stored in blocks of BLOCK_SIZE documents.  In each block, the
+ *  docids are stored as gaps and the tfs as values, both in
+ *  variable-byte format.  Each document's locations are stored as
+ *  gaps, in a separate variable-byte stream.  A skip table records
+ *  the last docid of each block and where its data begins, so
+ *  advanceDocIndex can skip whole blocks without decoding them.
+ *  <p>
+ *  Blocks are decoded lazily, when a posting in the block is first
+ *  accessed, and a document's locations are decoded only if they
+ *  are accessed.  The decoded block is iteration state, so a list
+ *  must not be iterated by two threads at once; use share to get an
+ *  independent view of the same compressed data.
+ *  </p>
+ */
+public class CompressedInvList extends InvList {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The number of postings in a block.  Must be a power of 2.
+   */
+  private static final int BLOCK_SIZE = 128;
+  private static final int BLOCK_SHIFT = 7;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  /**
+   *  Docid gaps and tfs, block by block.
+   */
+  private final byte[] postings;
+
+  /**
+   *  Location gaps, document by document.
+   */
+  private final byte[] locations;
+
+  /**
+   *  The skip table:  the last docid of each block, and where the
+   *  block's postings and locations begin.
+   */
+  private final int[] blockLastDocids;
+  private final int[] blockPostingOffsets;
+  private final int[] blockLocationOffsets;
+
+  /**
+   *  The block that is decoded now, or -1.
+   */
+  private int block = -1;
+
+  /**
+   *  The decoded docids and tfs of the current block.
+   */
+  private int[] blockDocids = new int[BLOCK_SIZE];
+  private int[] blockTfs = new int[BLOCK_SIZE];
+
+  /**
+   *  The decoded locations of the current block.  The locations of
+   *  the i'th document begin at blockLocationStarts[i].  Locations
+   *  are decoded in document order, as far as they are needed.
+   */
+  private int[] blockLocationStarts = new int[BLOCK_SIZE + 1];
+  private int[] blockLocations = new int[BLOCK_SIZE];
+  private int blockLocationsDecoded = 0;
+  private int blockLocationCursor = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create a view of compressed postings.
+   */
+  private CompressedInvList (String fieldString, int df, int ctf,
+                             byte[] postings, byte[] locations,
+                             int[] blockLastDocids,
+                             int[] blockPostingOffsets,
+                             int[] blockLocationOffsets,
+                             boolean hasPositions) {
+    super (fieldString, df, ctf);
+    this.hasPositions = hasPositions;
+    this.postings = postings;
+    this.locations = locations;
+    this.blockLastDocids = blockLastDocids;
+    this.blockPostingOffsets = blockPostingOffsets;
+    this.blockLocationOffsets = blockLocationOffsets;
+  }
+
+  /**
+   *  Compress an inverted list.
+   *  @param list The inverted list.
+   *  @return A compressed copy of the inverted list.
+   */
+  public static CompressedInvList compress (InvList list) {
+
+    int numBlocks = (list.df + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+    int[] blockLastDocids = new int[numBlocks];
+    int[] blockPostingOffsets = new int[numBlocks];
+    int[] blockLocationOffsets = new int[numBlocks];
+    ByteArrayOutputStream postings = new ByteArrayOutputStream (list.df * 2);
+    ByteArrayOutputStream locations = new ByteArrayOutputStream (list.ctf + 16);
+    int lastDocid = 0;
+
+    for (int n = 0; n < list.df; n++) {
+
+      int b = n >>> BLOCK_SHIFT;
+
+      if ((n & BLOCK_MASK) == 0) {
+        blockPostingOffsets[b] = postings.size ();
+        blockLocationOffsets[b] = locations.size ();
+      }
+
+      int docid = list.getDocid (n);
+      int tf = list.getTf (n);
+
+      writeVInt (postings, docid - lastDocid);
+      writeVInt (postings, tf);
+      lastDocid = docid;
+      blockLastDocids[b] = docid;
+
+      if (! list.hasPositions ())
+        continue;
+
+      int lastLocation = 0;
+
+      for (int j = 0; j < tf; j++) {
+        int location = list.getPosition (n, j);
+        writeVInt (locations, location - lastLocation);
+        lastLocation = location;
+      }
+    }
+
+    return new CompressedInvList (list.field, list.df, list.ctf,
+                                  postings.toByteArray (),
+                                  locations.toByteArray (),
+                                  blockLastDocids, blockPostingOffsets,
+                                  blockLocationOffsets, list.hasPositions ());
+  }
+
+  /**
+   *  Write a non-negative integer in variable-byte format:  7 bits
+   *  per byte, low-order bits first, with the high bit set on every
+   *  byte except the last.
+   */
+  private static void writeVInt (ByteArrayOutputStream output, int value) {
+    while ((value & ~0x7F) != 0) {
+      output.write ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    output.write (value);
+  }
+
+  /**
+   *  The list is already compressed.
+   *  @return This list.
+   */
+  public InvList compress () {
+    return this;
+  }
+
+  /**
+   *  Get an independent view of the compressed postings.  The views
+   *  share the compressed data, but not the decoded blocks.
+   *  @return A new view of the list.
+   */
+  public InvList share () {
+    return new CompressedInvList (this.field, this.df, this.ctf,
+                                  this.postings, this.locations,
+                                  this.blockLastDocids,
+                                  this.blockPostingOffsets,
+                                  this.blockLocationOffsets, this.hasPositions);
+  }
+
+  /**
+   *  Decode the docids and tfs of a block, if it isn't decoded now.
+   *  @param b The block.
+   */
+  private void decodeBlock (int b) {
+
+    if (b == this.block)
+      return;
+
+    int length = Math.min (BLOCK_SIZE, this.df - (b << BLOCK_SHIFT));
+    int docid = (b == 0) ? 0 : this.blockLastDocids[b - 1];
+    int p = this.blockPostingOffsets[b];
+    byte[] bytes = this.postings;
+
+    for (int i = 0; i < length; i++) {
+
+      int v = bytes[p++];
+      int value = v & 0x7F;
+
+      for (int shift = 7; v < 0; shift += 7) {
+        v = bytes[p++];
+        value |= (v & 0x7F) << shift;
+      }
+
+      docid += value;
+      this.blockDocids[i] = docid;
+
+      v = bytes[p++];
+      value = v & 0x7F;
+
+      for (int shift = 7; v < 0; shift += 7) {
+        v = bytes[p++];
+        value |= (v & 0x7F) << shift;
+      }
+
+      this.blockTfs[i] = value;
+      this.blockLocationStarts[i + 1] = this.blockLocationStarts[i] + value;
+    }
+
+    this.block = b;
+    this.blockLocationsDecoded = 0;
+    this.blockLocationCursor = this.blockLocationOffsets[b];
+
+    if (this.blockLocations.length < this.blockLocationStarts[length])
+      this.blockLocations = new int[this.blockLocationStarts[length]];
+  }
+
+  /**
+   *  Decode the locations of the current block, through the i'th
+   *  document.
+   *  @param i The document's index in the block.
+   */
+  private void decodeLocations (int i) {
+
+    if (! this.hasPositions)
+      throw new IllegalStateException
+        ("The inverted list of " + this.field + " was read without locations.");
+
+    byte[] bytes = this.locations;
+    int p = this.blockLocationCursor;
+
+    for (; this.blockLocationsDecoded <= i; this.blockLocationsDecoded++) {
+
+      int location = 0;
+      int end = this.blockLocationStarts[this.blockLocationsDecoded + 1];
+
+      for (int k = this.blockLocationStarts[this.blockLocationsDecoded]; k < end; k++) {
+
+        int v = bytes[p++];
+        int value = v & 0x7F;
+
+        for (int shift = 7; v < 0; shift += 7) {
+          v = bytes[p++];
+          value |= (v & 0x7F) << shift;
+        }
+
+        location += value;
+        this.blockLocations[k] = location;
+      }
+    }
+
+    this.blockLocationCursor = p;
+  }
+
+  public int getDocid (int n) {
+    this.decodeBlock (n >>> BLOCK_SHIFT);
+    return this.blockDocids[n & BLOCK_MASK];
+  }
+
+  public int getTf (int n) {
+    this.decodeBlock (n >>> BLOCK_SHIFT);
+    return this.blockTfs[n & BLOCK_MASK];
+  }
+
+  public int getPosition (int n, int j) {
+    int i = n & BLOCK_MASK;
+
+    this.decodeBlock (n >>> BLOCK_SHIFT);
+
+    if (i >= this.blockLocationsDecoded)
+      this.decodeLocations (i);
+
+    return this.blockLocations[this.blockLocationStarts[i] + j];
+  }
+
+  public int[] getPositions (int n, int[] buffer) {
+    int i = n & BLOCK_MASK;
+
+    this.decodeBlock (n >>> BLOCK_SHIFT);
+
+    if (i >= this.blockLocationsDecoded)
+      this.decodeLocations (i);
+
+    int tf = this.blockTfs[i];
+
+    if ((buffer == null) || (buffer.length < tf))
+      buffer = new int[Math.max (tf, 16)];
+
+    System.arraycopy (this.blockLocations, this.blockLocationStarts[i], buffer, 0, tf);
+    return buffer;
+  }
+
+  /**
+   *  Find the first posting at or after index n whose docid is
+   *  greater than or equal to docid.  The skip table is searched
+   *  first, so only the block that contains the posting is decoded.
+   *  @param n The index to start from.
+   *  @param docid The internal document id to advance to.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int advanceDocIndex (int n, int docid) {
+
+    if (n >= this.df)
+      return n;
+
+    int b = n >>> BLOCK_SHIFT;
+
+    if (this.blockLastDocids[b] < docid) {
+
+      //  Gallop over the skip table, then binary search.
+      //  Invariant:  blockLastDocids[lo] < docid.
+
+      int numBlocks = this.blockLastDocids.length;
+      int lo = b;
+      int step = 1;
+      int hi = b + step;
+
+      while ((hi < numBlocks) && (this.blockLastDocids[hi] < docid)) {
+        lo = hi;
+        step <<= 1;
+        hi = lo + step;
+      }
+
+      if (hi >= numBlocks) {
+        hi = numBlocks;
+
+        if (this.blockLastDocids[numBlocks - 1] < docid)
+          return this.df;
+      }
+
+      //  Invariant:  blockLastDocids[lo] < docid <= blockLastDocids[hi].
+
+      while (hi - lo > 1) {
+        int mid = (lo + hi) >>> 1;
+
+        if (this.blockLastDocids[mid] < docid)
+          lo = mid;
+        else
+          hi = mid;
+      }
+
+      b = hi;
+      n = b << BLOCK_SHIFT;
+    }
+
+    //  The posting is in block b, which ends with a docid >= docid.
+
+    this.decodeBlock (b);
+
+    int i = n & BLOCK_MASK;
+
+    while (this.blockDocids[i] < docid)
+      i++;
+
+    return (b << BLOCK_SHIFT) + i;
+  }
+
+  public boolean appendPosting (int docid, int[] locations, int tf) {
+    throw new UnsupportedOperationException ("A compressed inverted list is read-only.");
+  }
+
+  public void trim () {
+  }
+
+  /**
+   *  Estimate the amount of memory that the compressed postings use.
+   *  The decoding buffers of each view are not included.
+   *  @return The approximate size of the inverted list, in bytes.
+   */
+  public long sizeInBytes () {
+    return 64L + this.postings.length + this.locations.length +
+      12L * this.blockLastDocids.length;
+  }
+}
@@ -18,6 +18,12 @@ public class Idx {
 
   public static IndexReader INDEXREADER=null;
   private static DocLengthStore DOCLENGTHSTORE;
+  private static DocidDictionary DOCIDDICTIONARY = null;
+  private static BlockMaxIndex BLOCKMAXINDEX = null;
+  private static ImpactIndex IMPACTINDEX = null;
+  private static InvListCache INVLISTCACHE = null;
+  private static PostingsSnapshot POSTINGSSNAPSHOT = null;
+  private static boolean COMPRESSPOSTINGS = false;
 
   //  --------------- Methods ---------------------------------------
 
@@ -34,15 +40,105 @@ public class Idx {
   /**
    * Get the external document id for a document specified by an internal
    * document id.
+   * The docid dictionary is used if there is one.
    * @param iid The internal document id of the document.
    * @throws IOException Error accessing the Lucene index.
    */
   static String getExternalDocid(int iid) throws IOException {
+    if (Idx.DOCIDDICTIONARY != null) {
+      return Idx.DOCIDDICTIONARY.getExternalDocid(iid);
+    }
+
     Document d = Idx.INDEXREADER.document(iid);
     String eid = d.get("externalId");
     return eid;
   }
 
+  /**
+   *  Get the block-max index.
+   *  @return The block-max index, or null if the index doesn't have a
+   *    current one.
+   */
+  static BlockMaxIndex getBlockMaxIndex () {
+    return Idx.BLOCKMAXINDEX;
+  }
+
+  /**
+   *  Get the impact index.
+   *  @return The impact index, or null if the index doesn't have a
+   *    current one.
+   */
+  static ImpactIndex getImpactIndex () {
+    return Idx.IMPACTINDEX;
+  }
+
+  /**
+   *  Get the inverted list of a term, from the postings snapshot if
+   *  it contains the term, otherwise from the postings cache if it
+   *  is enabled, otherwise from the Lucene index.  Lists from the
+   *  snapshot and the cache are shared, so they must not be modified;
+   *  each caller gets its own view of a compressed list.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The term's inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static InvList getInvList (String termString, String fieldString)
+    throws IOException {
+    return Idx.getInvList (termString, fieldString, true);
+  }
+
+  /**
+   *  Get the inverted list of a term, like getInvList, but without
+   *  reading its locations from the Lucene index if they aren't
+   *  needed.  A list that has locations may be returned anyway, if
+   *  the snapshot or the cache has one.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions False if the caller doesn't need locations.
+   *  @return The term's inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static InvList getInvList (String termString, String fieldString,
+                             boolean positions)
+    throws IOException {
+    if (Idx.hasSnapshotInvList (termString, fieldString)) {
+      return Idx.POSTINGSSNAPSHOT.get (termString, fieldString);
+    } else if (Idx.INVLISTCACHE != null) {
+      return Idx.INVLISTCACHE.get (termString, fieldString, positions).share ();
+    } else {
+      return new InvList (termString, fieldString, positions);
+    }
+  }
+
+  /**
+   *  Get the postings cache.
+   *  @return The postings cache, or null if it is not enabled.
+   */
+  static InvListCache getInvListCache () {
+    return Idx.INVLISTCACHE;
+  }
+
+  /**
+   *  Returns true if inverted lists that are cached or materialized
+   *  by query operators are stored in compressed form.
+   *  @return True if postings are compressed.
+   */
+  static boolean getCompressPostings () {
+    return Idx.COMPRESSPOSTINGS;
+  }
+
+  /**
+   *  Returns true if the postings snapshot contains a term.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return True if the term's inverted list is in the snapshot.
+   */
+  static boolean hasSnapshotInvList (String termString, String fieldString) {
+    return ((Idx.POSTINGSSNAPSHOT != null) &&
+            Idx.POSTINGSSNAPSHOT.contains (termString, fieldString));
+  }
+
   /**
    *  Get the length of the specified field in the specified document.
    *  @param fieldname Name of field to access lengths.
@@ -54,10 +150,33 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the length of the specified field in the specified document.
+   *  This is faster than looking the field up by name.
+   *  @param fieldId The id of the field, from getFieldId.
+   *  @param docid The internal docid in the lucene index.
+   *  @return the length of the field, including stopword positions.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  static int getFieldLength (int fieldId, int docid) throws IOException {
+    return Idx.DOCLENGTHSTORE.getDocLength (fieldId, docid);
+  }
+
+  /**
+   *  Get the id of a field, for use with getFieldLength.
+   *  @param fieldName The name of the field.
+   *  @return The field id.
+   *  @throws IllegalArgumentException The field is not indexed.
+   */
+  static int getFieldId (String fieldName) {
+    return Idx.DOCLENGTHSTORE.getFieldId (fieldName);
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
-   * exists, throw an exception.
+   * exists, throw an exception.  The docid dictionary is used if
+   * there is one.
    * @param externalId
    * @return iternal docid.
    * @throws Exception Could not read the internal document id from the index.
@@ -65,6 +184,16 @@ public class Idx {
   static int getInternalDocid(String externalId)
     throws Exception {
 
+    if (Idx.DOCIDDICTIONARY != null) {
+      int docid = Idx.DOCIDDICTIONARY.getInternalDocid(externalId);
+
+      if (docid < 0) {
+        throw new Exception("External id not found.");
+      }
+
+      return docid;
+    }
+
     Query q = new TermQuery(new Term("externalId", externalId));
 
     IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
@@ -88,6 +217,18 @@ public class Idx {
     return Idx.INDEXREADER.numDocs();
   }
 
+  /**
+   *  Get the version of an index, which changes whenever it is
+   *  modified.  Files that are built from an index record it, so that
+   *  they aren't used with a different version of the index.
+   *  @param reader The index.
+   *  @return The version, or -1 if it isn't available.
+   */
+  public static long getIndexVersion (IndexReader reader) {
+    return (reader instanceof DirectoryReader)
+      ? ((DirectoryReader) reader).getVersion () : -1;
+  }
+
   /**
    *  Get the total number of term occurrences contained in all
    *  instances of the specified field in the corpus (e.g., add up the
@@ -102,7 +243,49 @@ public class Idx {
   }
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Enable a postings cache that is shared by all queries.
+   *  @param capacity The maximum size of the cache, in bytes.
+   */
+  public static void initializeInvListCache (long capacity) {
+    Idx.INVLISTCACHE = new InvListCache (capacity);
+  }
+
+  /**
+   *  Store inverted lists that are cached or materialized by query
+   *  operators in compressed form, which uses less memory but is
+   *  slower to iterate.
+   *  @param compress True to compress postings.
+   */
+  public static void setCompressPostings (boolean compress) {
+    Idx.COMPRESSPOSTINGS = compress;
+  }
+
+  /**
+   *  Map a postings snapshot that was exported by PostingsSnapshot.
+   *  A snapshot that was exported from another version of the index
+   *  isn't used, because its docids may be wrong.
+   *  @param snapshotPath The snapshot file.
+   *  @throws IOException Error reading the snapshot.
+   */
+  public static void initializePostingsSnapshot (String snapshotPath)
+    throws IOException {
+
+    Idx.POSTINGSSNAPSHOT = null;
+
+    PostingsSnapshot s = new PostingsSnapshot (snapshotPath);
+
+    if (s.matches (Idx.INDEXREADER)) {
+      Idx.POSTINGSSNAPSHOT = s;
+    } else {
+      s.close ();
+      System.err.println ("Warning: " + snapshotPath + " is out of date; export it again with PostingsSnapshot.");
+    }
+  }
+
+  /**
+   *  Open a Lucene index, the associated DocLengthStore, and the
+   *  docid dictionary, block-max index, and impact index, if the index
+   *  has current ones.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
@@ -127,6 +310,57 @@ public class Idx {
     if (Idx.DOCLENGTHSTORE == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
+
+    //  Use the docid dictionary if it was built for this version of
+    //  the index; see DocidDictionary.
+
+    Idx.DOCIDDICTIONARY = null;
+
+    File dictionary = new File (indexPath, DocidDictionary.FILE_NAME);
+
+    if (dictionary.exists ()) {
+      DocidDictionary d = new DocidDictionary (dictionary.getPath ());
+
+      if (d.matches (Idx.INDEXREADER)) {
+        Idx.DOCIDDICTIONARY = d;
+      } else {
+        System.err.println ("Warning: " + dictionary + " is out of date; rebuild it with DocidDictionary.");
+      }
+    }
+
+    //  Use the block-max index if it was built for this version of
+    //  the index; see BlockMaxIndex.
+
+    Idx.BLOCKMAXINDEX = null;
+
+    File blockMax = new File (indexPath, BlockMaxIndex.FILE_NAME);
+
+    if (blockMax.exists ()) {
+      BlockMaxIndex b = new BlockMaxIndex (blockMax.getPath ());
+
+      if (b.matches (Idx.INDEXREADER)) {
+        Idx.BLOCKMAXINDEX = b;
+      } else {
+        System.err.println ("Warning: " + blockMax + " is out of date; rebuild it with BlockMaxIndex.");
+      }
+    }
+
+    //  Use the impact index if it was built for this version of the
+    //  index; see ImpactIndex.
+
+    Idx.IMPACTINDEX = null;
+
+    File impacts = new File (indexPath, ImpactIndex.FILE_NAME);
+
+    if (impacts.exists ()) {
+      ImpactIndex i = new ImpactIndex (impacts.getPath ());
+
+      if (i.matches (Idx.INDEXREADER)) {
+        Idx.IMPACTINDEX = i;
+      } else {
+        System.err.println ("Warning: " + impacts + " is out of date; rebuild it with ImpactIndex.");
+      }
+    }
   }
 
 }
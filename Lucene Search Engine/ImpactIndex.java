@@ -0,0 +1,479 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  An impact-ordered index of BM25 scores, for score-at-a-time query
+ *  evaluation (see SaatEngine).  For each term in the indexed fields,
+ *  the BM25 score of the term in each document that contains it is
+ *  computed when the index is built, with the QrySopScore formula,
+ *  and quantized to an integer impact between 1 and 2^bits - 1.  A
+ *  document's score is approximately the sum of its impacts times
+ *  the scale.  The term's postings are grouped into segments of
+ *  equal impact, in decreasing order of impact, and each segment's
+ *  docids are in increasing order.
+ *  <p>
+ *  The index is stored next to the Lucene index, and Idx uses it if
+ *  it exists and was built from the same version of the index.  The
+ *  impacts are only valid for the k1 and b that the index was built
+ *  with, and, because the RSJ weights depend on df and N, for the
+ *  documents that weren't deleted when it was built.
+ *  </p><p>
+ *  The file format is a header, the postings of each term, and a
+ *  directory.  All values are big-endian.
+ *  </p>
+ *  <pre>
+ *    header:     int magic, int maxDoc, long indexVersion, double k1,
+ *                double b, double scale, int numTerms, long directoryOffset
+ *    postings:   int numSegments, numSegments * (int impact, int count),
+ *                int[df] docids
+ *    directory:  int numFields, numFields * UTF field,
+ *                numTerms * (UTF "field:term", long postingsOffset)
+ *  </pre>
+ *  <p>
+ *  To build an impact index:
+ *  </p>
+ *  <pre>
+ *    java ImpactIndex indexPath k1 b [bits [field ...]]
+ *  </pre>
+ *  <p>
+ *  The default is 8 bits and the body field.
+ *  </p>
+ */
+public class ImpactIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The name of the impact file in the index directory.
+   */
+  public static final String FILE_NAME = "impacts.idx";
+
+  private static final int MAGIC = 0x494D5031;		// "IMP1"
+  private static final int HEADER_LENGTH = 52;
+
+  private final int maxDoc;
+  private final long indexVersion;
+  private final double k1;
+  private final double b;
+  private final double scale;
+
+  /**
+   *  The whole file up to the directory, if it is small enough to map
+   *  at once; otherwise null, and each term is mapped separately from
+   *  the channel.
+   */
+  private ByteBuffer mapped = null;
+  private FileChannel channel = null;
+  private final Set<String> fields = new HashSet<String>();
+
+  /**
+   *  The offset of each term, keyed by "field:term", and all of the
+   *  offsets in increasing order, followed by the directory's offset,
+   *  which give the length of each term.
+   */
+  private final Map<String, Long> directory = new HashMap<String, Long>();
+  private long[] offsets;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The impact-ordered postings of one term.
+   */
+  public static class Postings {
+
+    private final int numSegments;
+    private final int[] impacts;
+    private final int[] starts;
+    private final IntBuffer docids;
+
+    private Postings (ByteBuffer buffer) {
+      this.numSegments = buffer.getInt (0);
+      this.impacts = new int[this.numSegments];
+      this.starts = new int[this.numSegments + 1];
+
+      for (int s = 0; s < this.numSegments; s++) {
+        this.impacts[s] = buffer.getInt (4 + 8 * s);
+        this.starts[s + 1] = this.starts[s] + buffer.getInt (8 + 8 * s);
+      }
+
+      buffer.position (4 + 8 * this.numSegments);
+      this.docids = buffer.slice ().asIntBuffer ();
+    }
+
+    public int getNumSegments () {
+      return this.numSegments;
+    }
+
+    /**
+     *  Get the impact of the documents in a segment.
+     */
+    public int getImpact (int segment) {
+      return this.impacts[segment];
+    }
+
+    /**
+     *  Get the index of the first posting in a segment.
+     */
+    public int getStart (int segment) {
+      return this.starts[segment];
+    }
+
+    /**
+     *  Get the index after the last posting in a segment.
+     */
+    public int getEnd (int segment) {
+      return this.starts[segment + 1];
+    }
+
+    public int getDocid (int n) {
+      return this.docids.get (n);
+    }
+
+    /**
+     *  Returns true if a segment contains a docid.
+     */
+    public boolean contains (int segment, int docid) {
+      int lo = this.starts[segment];
+      int hi = this.starts[segment + 1] - 1;
+
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int d = this.docids.get (mid);
+
+        if (d < docid)
+          lo = mid + 1;
+        else if (d > docid)
+          hi = mid - 1;
+        else
+          return true;
+      }
+
+      return false;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Map an impact index.
+   *  @param path The impact file.
+   *  @throws IOException Error reading the file.
+   */
+  public ImpactIndex (String path) throws IOException {
+
+    FileInputStream file = new FileInputStream (path);
+    boolean keepOpen = false;
+
+    try {
+      FileChannel channel = file.getChannel ();
+      ByteBuffer header = ByteBuffer.allocate (HEADER_LENGTH);
+
+      while (header.hasRemaining ())
+        if (channel.read (header, header.position ()) < 0)
+          throw new IOException ("Truncated impact index " + path);
+
+      header.flip ();
+
+      if (header.getInt () != MAGIC)
+        throw new IOException (path + " is not an impact index.");
+
+      this.maxDoc = header.getInt ();
+      this.indexVersion = header.getLong ();
+      this.k1 = header.getDouble ();
+      this.b = header.getDouble ();
+      this.scale = header.getDouble ();
+
+      int numTerms = header.getInt ();
+      long directoryOffset = header.getLong ();
+
+      channel.position (directoryOffset);
+
+      DataInputStream input =
+        new DataInputStream (new BufferedInputStream (file));
+      int numFields = input.readInt ();
+
+      for (int i = 0; i < numFields; i++)
+        this.fields.add (input.readUTF ());
+
+      this.offsets = new long[numTerms + 1];
+
+      for (int i = 0; i < numTerms; i++) {
+        String key = input.readUTF ();
+        this.offsets[i] = input.readLong ();
+        this.directory.put (key, this.offsets[i]);
+      }
+
+      this.offsets[numTerms] = directoryOffset;
+      Arrays.sort (this.offsets);
+
+      //  A file that is too large to map at once is mapped one term
+      //  at a time, so the channel stays open.
+
+      if (directoryOffset <= Integer.MAX_VALUE) {
+        this.mapped =
+          channel.map (FileChannel.MapMode.READ_ONLY, 0, directoryOffset);
+      } else {
+        this.channel = channel;
+        keepOpen = true;
+      }
+    } finally {
+      if (! keepOpen)
+        file.close ();
+    }
+  }
+
+  /**
+   *  Returns true if the index was built from the current version of
+   *  a Lucene index.
+   *  @param reader The Lucene index.
+   *  @return True if the impact index matches the Lucene index.
+   */
+  public boolean matches (IndexReader reader) {
+    return ((reader.maxDoc () == this.maxDoc) &&
+            (Idx.getIndexVersion (reader) == this.indexVersion));
+  }
+
+  /**
+   *  Returns true if the impacts are valid for a retrieval model.
+   *  @param r A BM25 retrieval model.
+   *  @return True if the model's k1 and b match the index.
+   */
+  public boolean matches (RetrievalModelBM25 r) {
+    return ((r.getK1 () == this.k1) && (r.getB () == this.b));
+  }
+
+  /**
+   *  Returns true if the index has the terms of a field.
+   *  @param fieldString A field.
+   *  @return True if the field's terms were indexed.
+   */
+  public boolean hasField (String fieldString) {
+    return this.fields.contains (fieldString);
+  }
+
+  /**
+   *  Get the score of an impact.
+   *  @return The score of an impact of 1.
+   */
+  public double getScale () {
+    return this.scale;
+  }
+
+  /**
+   *  Get the impact-ordered postings of a term.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The term's postings, or null if the term doesn't occur
+   *    in the field, or no document has a positive impact.
+   *  @throws IOException Error mapping the file.
+   */
+  public Postings get (String termString, String fieldString)
+    throws IOException {
+
+    Long offset = this.directory.get (fieldString + ":" + termString);
+
+    if (offset == null)
+      return null;
+
+    return new Postings (this.map (offset));
+  }
+
+  /**
+   *  Get a view of a term's part of the file.
+   *  @param offset The term's offset.
+   *  @return The term's part of the file, starting at position 0.
+   *  @throws IOException Error mapping the file.
+   */
+  private ByteBuffer map (long offset) throws IOException {
+
+    if (this.mapped != null) {
+      ByteBuffer buffer = this.mapped.duplicate ();
+      buffer.position ((int) offset);
+      return buffer.slice ();
+    }
+
+    long end = this.offsets[Arrays.binarySearch (this.offsets, offset) + 1];
+
+    return this.channel.map (FileChannel.MapMode.READ_ONLY, offset, end - offset);
+  }
+
+  /**
+   *  Build an impact index.
+   *  @param args See the class description.
+   *  @throws Exception Error reading the index or writing the file.
+   */
+  public static void main (String[] args) throws Exception {
+
+    if (args.length < 3) {
+      throw new IllegalArgumentException
+        ("Usage:  java ImpactIndex indexPath k1 b [bits [field ...]]");
+    }
+
+    Idx.initialize (args[0]);
+
+    RetrievalModelBM25 model = new RetrievalModelBM25 ();
+    model.setK1 (Double.parseDouble (args[1]));
+    model.setB (Double.parseDouble (args[2]));
+
+    int bits = (args.length > 3) ? Integer.parseInt (args[3]) : 8;
+    String[] fields =
+      (args.length > 4) ? Arrays.copyOfRange (args, 4, args.length)
+                        : new String[] { "body" };
+
+    if ((bits < 1) || (bits > 16)) {
+      throw new IllegalArgumentException ("bits must be between 1 and 16.");
+    }
+
+    //  Every score is less than the RSJ weight of a term with df 1, so
+    //  that is the largest impact.
+
+    int maxImpact = (1 << bits) - 1;
+    double N = Idx.getNumDocs ();
+    double scale = Math.log ((N - 1 + 0.5) / (1 + 0.5)) / maxImpact;
+
+    String path = new File (args[0], FILE_NAME).getPath ();
+    DataOutputStream output =
+      new DataOutputStream (new BufferedOutputStream (new FileOutputStream (path), 1 << 16));
+    List<String> keys = new ArrayList<String> ();
+    List<Long> offsets = new ArrayList<Long> ();
+    long offset = HEADER_LENGTH;
+    int[] docids = new int[1024];
+    int[] impacts = new int[1024];
+    int[] counts = new int[maxImpact + 2];
+    int[] sorted = new int[1024];
+
+    output.write (new byte[HEADER_LENGTH]);
+
+    for (String field : fields) {
+
+      Terms terms = MultiFields.getTerms (Idx.INDEXREADER, field);
+
+      if (terms == null)
+        continue;
+
+      TermsEnum termsEnum = terms.iterator (null);
+      BytesRef term;
+
+      while ((term = termsEnum.next ()) != null) {
+
+        //  Score the term's postings with the SCORE operator, so that
+        //  the impacts use the same formula as query evaluation.
+
+        String termString = term.utf8ToString ();
+        QrySopScore score = new QrySopScore ();
+        QryIop postings = new QryIopTerm (termString, field);
+
+        score.appendArg (postings);
+        score.initialize (model);
+
+        int df = postings.getDf ();
+
+        if (df > docids.length) {
+          int n = Math.max (df, 2 * docids.length);
+          docids = new int[n];
+          impacts = new int[n];
+          sorted = new int[n];
+        }
+
+        Arrays.fill (counts, 0);
+
+        int n = 0;
+
+        while (postings.docIteratorHasMatch (model)) {
+          int docid = postings.docIteratorGetMatch ();
+          double s = score.scoreBM25 (docid, postings.docIteratorGetMatchTf ());
+          int impact = (int) Math.min (maxImpact, Math.round (s / scale));
+
+          if (s > 0) {
+            impact = Math.max (impact, 1);
+            docids[n] = docid;
+            impacts[n] = impact;
+            counts[impact]++;
+            n++;
+          }
+
+          postings.docIteratorAdvancePast (docid);
+        }
+
+        if (n == 0)
+          continue;
+
+        //  Group the postings by impact, largest first.  The sort is
+        //  stable, so docids stay in increasing order.
+
+        int numSegments = 0;
+        int start = 0;
+
+        for (int impact = maxImpact; impact > 0; impact--) {
+          if (counts[impact] > 0) {
+            int count = counts[impact];
+            counts[impact] = start;
+            start += count;
+            numSegments++;
+          } else {
+            counts[impact] = -1;
+          }
+        }
+
+        for (int i = 0; i < n; i++)
+          sorted[counts[impacts[i]]++] = docids[i];
+
+        keys.add (field + ":" + termString);
+        offsets.add (offset);
+
+        output.writeInt (numSegments);
+
+        start = 0;
+
+        for (int impact = maxImpact; impact > 0; impact--) {
+          if (counts[impact] >= 0) {
+            output.writeInt (impact);
+            output.writeInt (counts[impact] - start);
+            start = counts[impact];
+          }
+        }
+
+        for (int i = 0; i < n; i++)
+          output.writeInt (sorted[i]);
+
+        offset += 4L + 8L * numSegments + 4L * n;
+      }
+    }
+
+    long directoryOffset = offset;
+
+    output.writeInt (fields.length);
+
+    for (String field : fields)
+      output.writeUTF (field);
+
+    for (int i = 0; i < keys.size (); i++) {
+      output.writeUTF (keys.get (i));
+      output.writeLong (offsets.get (i));
+    }
+
+    output.close ();
+
+    RandomAccessFile file = new RandomAccessFile (path, "rw");
+    file.writeInt (MAGIC);
+    file.writeInt (Idx.INDEXREADER.maxDoc ());
+    file.writeLong (Idx.getIndexVersion (Idx.INDEXREADER));
+    file.writeDouble (model.getK1 ());
+    file.writeDouble (model.getB ());
+    file.writeDouble (scale);
+    file.writeInt (keys.size ());
+    file.writeLong (directoryOffset);
+    file.close ();
+
+    System.out.println ("Wrote impacts for " + keys.size () + " terms to " + path);
+  }
+}
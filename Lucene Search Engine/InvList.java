@@ -14,11 +14,36 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in parallel primitive arrays rather than as
+ *  one object per document.  The n'th posting is described by
+ *  docids[n] and tfs[n]; its locations are stored in the flat
+ *  positions array, starting at positionOffsets[n].  The arrays may
+ *  be larger than necessary; only the first df (or ctf) entries are
+ *  valid.
+ *  </p>
+ *  <p>
+ *  A list may be read without locations, if no query operator uses
+ *  them.  Such a list stores only docids and tfs, and its locations
+ *  can't be accessed.
+ *  </p>
  */
 public class InvList {
 
   //  --------------- Constants and variables -----------------------
 
+  /**
+   *  The initial capacity of the posting arrays of a list that is
+   *  built incrementally.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   *  The number of postings that advanceDocIndex scans sequentially
+   *  before it begins to gallop.
+   */
+  private static final int SCAN_LENGTH = 8;
+
   /**
    *  Collection term frequency: The number of times that a term
    *  occurs across all instances of the specified field.
@@ -37,50 +62,33 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  The internal ids of the documents that contain the term in the
+   *  specified field, in ascending order.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-  //  --------------- Nested classes --------------------------------
+  protected int[] docids;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  Term frequencies:  The number of times the term occurs in the
+   *  specified field of each document.
    */
-  public class DocPosting {
-
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
-
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  protected int[] tfs;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The index in the positions array of the first location of each
+   *  document's posting.
+   */
+  protected int[] positionOffsets;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  The locations where the term occurs in the specified field, for
+   *  all of the documents in the inverted list.
+   */
+  protected int[] positions;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  True if the list stores locations.
+   */
+  protected boolean hasPositions = true;
 
   //  --------------- Methods ---------------------------------------
 
@@ -88,6 +96,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -96,6 +105,7 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -105,25 +115,64 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (termString, fieldString, true);
+  }
+
+  /**
+   *  Get an empty inverted list, which may be built without locations.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions False if the list doesn't store locations.
+   */
+  public InvList(String fieldString, boolean positions) {
+    this.field = new String (fieldString);
+    this.hasPositions = positions;
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
+  }
+
+  /**
+   *  Get an inverted list from the index, optionally without
+   *  locations.  Reading only docids and tfs skips decoding the
+   *  locations, which are most of the postings of a long field.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions False if locations should not be read.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString, boolean positions)
+    throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
     this.field = new String (fieldString);
+    this.hasPositions = positions;
 
-    //  Prepare to access the index.
+    //  Lookup the term once; the terms enumerator provides the
+    //  statistics that are used to size the arrays and the postings.
 
-    BytesRef termBytes = new BytesRef(termString);
-    Term term = new Term(fieldString, termBytes);
+    Terms terms = MultiFields.getTerms (Idx.INDEXREADER, fieldString);
+    TermsEnum termsEnum = (terms == null) ? null : terms.iterator (null);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    if ((termsEnum == null) ||
+        (! termsEnum.seekExact (new BytesRef (termString), true))) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The statistics include deleted documents, so the arrays may be
+    //  a little too large.  They are trimmed later.
 
-    //  Lookup the inverted list.
+    int termDf = termsEnum.docFreq ();
+    long termCtf = termsEnum.totalTermFreq ();
+
+    if (! positions) {
+      this.readDocs (termsEnum, termDf);
+      return;
+    }
+
+    this.allocate (termDf, (int) Math.max (termDf, Math.min (termCtf, Integer.MAX_VALUE)));
 
     DocsAndPositionsEnum iList =
-      MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-				       MultiFields.getLiveDocs(Idx.INDEXREADER),
-				       fieldString, termBytes);
+      termsEnum.docsAndPositions (MultiFields.getLiveDocs(Idx.INDEXREADER), null);
 
     //  Copy from Lucene inverted list format to our inverted list
     //  format. This is a little inefficient, but allows query
@@ -133,15 +182,164 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (this.df + 1, this.ctf + tf);
+
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
+      this.positionOffsets[this.df] = this.ctf;
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[this.ctf + j] = iList.nextPosition();
+
+      this.df++;
+      this.ctf += tf;
+      this.positionOffsets[this.df] = this.ctf;
+    }
+
+    this.trim ();
+  }
+
+  /**
+   *  Copy docids and tfs, but not locations, from a Lucene inverted
+   *  list.
+   *  @param termsEnum The terms enumerator, positioned on the term.
+   *  @param termDf The term's df, including deleted documents.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void readDocs (TermsEnum termsEnum, int termDf) throws IOException {
+
+    this.allocate (termDf, 0);
+
+    DocsEnum iList =
+      termsEnum.docs (MultiFields.getLiveDocs(Idx.INDEXREADER), null, DocsEnum.FLAG_FREQS);
+
+    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+
+      int tf = iList.freq();
+
+      this.ensureCapacity (this.df + 1, 0);
+
+      this.docids[this.df] = iList.docID();
+      this.tfs[this.df] = tf;
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
       this.df++;
       this.ctf += tf;
     }
+
+    this.trim ();
+  }
+
+  /**
+   *  Constructor for subclasses that store their postings somewhere
+   *  other than the posting arrays.  Such subclasses override the
+   *  methods that access postings, and they can't be appended to.
+   *  @param fieldString The field that the term occurs in.
+   *  @param df The document frequency.
+   *  @param ctf The collection term frequency.
+   */
+  protected InvList(String fieldString, int df, int ctf) {
+    this.field = fieldString;
+    this.df = df;
+    this.ctf = ctf;
+    this.allocate (0, 0);
+  }
+
+  /**
+   *  Allocate the posting arrays.
+   *  @param docCapacity The number of postings that can be stored.
+   *  @param positionCapacity The number of locations that can be stored.
+   */
+  private void allocate (int docCapacity, int positionCapacity) {
+    this.docids = new int[docCapacity];
+    this.tfs = new int[docCapacity];
+
+    if (this.hasPositions) {
+      this.positionOffsets = new int[docCapacity + 1];
+      this.positions = new int[positionCapacity];
+    } else {
+      this.positionOffsets = new int[1];
+      this.positions = new int[0];
+    }
+  }
+
+  /**
+   *  Grow the posting arrays, if necessary, so that they can store
+   *  the specified number of postings and locations.
+   *  @param docCapacity The number of postings that must fit.
+   *  @param positionCapacity The number of locations that must fit.
+   */
+  private void ensureCapacity (int docCapacity, int positionCapacity) {
+
+    if (docCapacity > this.docids.length) {
+      int n = Math.max (docCapacity, this.docids.length + (this.docids.length >> 1) + 1);
+      this.docids = Arrays.copyOf (this.docids, n);
+      this.tfs = Arrays.copyOf (this.tfs, n);
+
+      if (this.hasPositions)
+        this.positionOffsets = Arrays.copyOf (this.positionOffsets, n + 1);
+    }
+
+    if (this.hasPositions && (positionCapacity > this.positions.length)) {
+      int n = Math.max (positionCapacity, this.positions.length + (this.positions.length >> 1) + 1);
+      this.positions = Arrays.copyOf (this.positions, n);
+    }
+  }
+
+  /**
+   *  Release unused capacity in the posting arrays.  This is useful
+   *  once a list is complete, especially if it will be kept for a
+   *  long time.
+   */
+  public void trim () {
+
+    if (this.docids.length > this.df) {
+      this.docids = Arrays.copyOf (this.docids, this.df);
+      this.tfs = Arrays.copyOf (this.tfs, this.df);
+
+      if (this.hasPositions)
+        this.positionOffsets = Arrays.copyOf (this.positionOffsets, this.df + 1);
+    }
+
+    if (this.hasPositions && (this.positions.length > this.ctf)) {
+      this.positions = Arrays.copyOf (this.positions, this.ctf);
+    }
+  }
+
+  /**
+   *  Returns true if the list stores locations.
+   *  @return True if the list's locations can be accessed.
+   */
+  public boolean hasPositions () {
+    return this.hasPositions;
+  }
+
+  /**
+   *  Estimate the amount of memory that the inverted list uses.
+   *  @return The approximate size of the inverted list, in bytes.
+   */
+  public long sizeInBytes () {
+    return 64L + 4L * ((long) this.docids.length + this.tfs.length +
+                       this.positionOffsets.length + this.positions.length);
+  }
+
+  /**
+   *  Get a compressed copy of the inverted list, which uses less
+   *  memory but is slower to access.
+   *  @return The compressed list.
+   */
+  public InvList compress () {
+    return CompressedInvList.compress (this);
+  }
+
+  /**
+   *  Get a view of the inverted list that can be iterated
+   *  independently of other views, for example by another thread.
+   *  Lists that keep no iteration state return themselves.
+   *  @return A view of the list.
+   */
+  public InvList share () {
+    return this;
   }
 
   /**
@@ -152,29 +350,83 @@ public class InvList {
    *  @return true if the posting was added successfully, otherwise false.
    */
   public boolean appendPosting (int docid, List<Integer> positions) {
+
+    int[] locations = new int[positions.size()];
+
+    for (int i = 0; i < locations.length; i++)
+      locations[i] = positions.get(i);
+
+    return this.appendPosting (docid, locations, locations.length);
+  }
+
+  /**
+   *  Append a posting to the posting list.  Posting must be appended
+   *  in docid order, otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param locations An array of positions where the term occurs.
+   *  @param tf The number of valid positions in the locations array.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int[] locations, int tf) {
+
+    if (! this.hasPositions)
+      return this.appendPosting (docid, tf);
     
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (this.df + 1, this.ctf + tf);
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
+    this.positionOffsets[this.df] = this.ctf;
+    System.arraycopy (locations, 0, this.positions, this.ctf, tf);
+
+    this.df ++;
+    this.ctf += tf;
+    this.positionOffsets[this.df] = this.ctf;
+    return true;
+  }
+
+  /**
+   *  Append a posting without locations to a list that doesn't store
+   *  them.  Posting must be appended in docid order, otherwise this
+   *  method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+
+    if (this.hasPositions)
+      throw new IllegalStateException
+        ("Postings without locations can't be appended to a list that stores them.");
+
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
+      return false;
+
+    this.ensureCapacity (this.df + 1, 0);
+
+    this.docids[this.df] = docid;
+    this.tfs[this.df] = tf;
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += tf;
     return true;
   }
 
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
   }
 
   /**
@@ -183,11 +435,139 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
   }
 
+  /**
+   *  Find the first posting at or after index n whose docid is
+   *  greater than or equal to docid.  Short moves are a sequential
+   *  scan, which is cheapest when the target is in the same cache
+   *  line.  Longer moves gallop forward (doubling the step each time)
+   *  until they pass docid, and then do a binary search over the last
+   *  step, so the cost is logarithmic in the distance skipped rather
+   *  than linear.
+   *  @param n The index to start from.
+   *  @param docid The internal document id to advance to.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int advanceDocIndex(int n, int docid) {
+
+    int scanEnd = Math.min (n + InvList.SCAN_LENGTH, this.df);
+
+    while ((n < scanEnd) && (this.getDocid (n) < docid))
+      n++;
+
+    if ((n >= this.df) || (this.getDocid (n) >= docid))
+      return n;
+
+    //  Gallop.  Invariant:  getDocid (lo) < docid.
+
+    int lo = n;
+    int step = 1;
+    int hi = n + step;
+
+    while ((hi < this.df) && (this.getDocid (hi) < docid)) {
+      lo = hi;
+      step <<= 1;
+      hi = lo + step;
+    }
+
+    if (hi > this.df)
+      hi = this.df;
+
+    //  Binary search.  Invariant:  getDocid (lo) < docid <= getDocid (hi).
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.getDocid (mid) < docid)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
+  /**
+   *  Find the first location at or after index j in the n'th
+   *  document whose value is greater than loc.  The search gallops,
+   *  like advanceDocIndex.
+   *  @param n The index of the document.
+   *  @param j The location index to start from.
+   *  @param loc The location to advance beyond.
+   *  @return The index of the location, or tf if there is none.
+   */
+  public int advancePositionIndex(int n, int j, int loc) {
+
+    int tf = this.getTf (n);
+
+    if ((j >= tf) || (this.getPosition (n, j) > loc))
+      return j;
 
+    //  Gallop.  Invariant:  getPosition (n, lo) <= loc.
 
+    int lo = j;
+    int step = 1;
+    int hi = j + step;
+
+    while ((hi < tf) && (this.getPosition (n, hi) <= loc)) {
+      lo = hi;
+      step <<= 1;
+      hi = lo + step;
+    }
+
+    if (hi > tf)
+      hi = tf;
+
+    //  Binary search.  Invariant:  getPosition (n, lo) <= loc < getPosition (n, hi).
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.getPosition (n, mid) <= loc)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
+  /**
+   *  Get the j'th location of the term in the n'th document of the
+   *  inverted list.
+   *  @param n The index of the requested document.
+   *  @param j The index of the requested location in the document.
+   *  @return The location.
+   */
+  public int getPosition(int n, int j) {
+    if (! this.hasPositions)
+      throw new IllegalStateException
+        ("The inverted list of " + this.field + " was read without locations.");
+    return this.positions[this.positionOffsets[n] + j];
+  }
+
+  /**
+   *  Copy the locations of the term in the n'th document of the
+   *  inverted list into a buffer.  The buffer is replaced by a larger
+   *  one if it is too small.
+   *  @param n The index of the requested document.
+   *  @param buffer A buffer that may be reused.
+   *  @return The buffer that contains the locations.
+   */
+  public int[] getPositions(int n, int[] buffer) {
+
+    int tf = this.getTf (n);
+
+    if ((buffer == null) || (buffer.length < tf))
+      buffer = new int[Math.max (tf, INITIAL_CAPACITY)];
+
+    for (int j = 0; j < tf; j++)
+      buffer[j] = this.getPosition (n, j);
+
+    return buffer;
+  }
 
   /**
    *  Print the inverted list.  This is handy for debugging.
@@ -197,11 +577,11 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i) + ", locs: ");
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; this.hasPositions && (j < this.getTf(i)); j++) {
+        System.out.print(this.getPosition(i, j) + " ");
       }
 
       System.out.println();
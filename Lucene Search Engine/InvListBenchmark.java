@@ -0,0 +1,262 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A micro-benchmark for inverted list iteration.  It does not need
+ *  a Lucene index; it builds synthetic inverted lists and evaluates
+ *  an unranked Boolean #AND of a rare term and a frequent term with
+ *  the normal Qry iterators.  Each conjunction is evaluated three
+ *  times:  with a reference list that advances one posting at a
+ *  time, with InvList, which gallops, and with a CompressedInvList.
+ *  The galloping cost should grow with (rare df * log gap) rather
+ *  than with the frequent term's df.  Then the frequent lists, with
+ *  several locations per posting, are scanned in full to measure
+ *  the cost of decoding compressed postings and locations.
+ *  <pre>
+ *    java InvListBenchmark [numDocs [rareDf]]
+ *  </pre>
+ */
+public class InvListBenchmark {
+
+  /**
+   *  The number of times each conjunction is evaluated.  The first
+   *  WARMUP repetitions warm up the JIT compiler and are not reported.
+   */
+  private static final int WARMUP = 20;
+  private static final int REPETITIONS = 60;
+
+  /**
+   *  The results of the timed loops are added here, so that the JIT
+   *  compiler can't remove the loops as dead code.
+   */
+  private static volatile long sink = 0;
+
+  /**
+   *  A query operator that iterates over a prebuilt inverted list.
+   */
+  private static class QryIopList extends QryIop {
+
+    private InvList list;
+
+    private QryIopList (InvList list) {
+      this.list = list;
+      this.field = "body";
+      this.setDisplayName ("#LIST");
+    }
+
+    protected void evaluate () throws IOException {
+      this.invertedList = this.list;
+    }
+
+    //  The list is never streamed, because streamOpen returns false.
+
+    protected void streamAdvanceTo (int docid) {
+      throw new UnsupportedOperationException ("#LIST does not stream.");
+    }
+
+    protected void streamLoadPositions () {
+      throw new UnsupportedOperationException ("#LIST does not stream.");
+    }
+  }
+
+  /**
+   *  A reference inverted list that advances one posting at a time,
+   *  which is how QryIop worked before it galloped.
+   */
+  private static class LinearInvList extends InvList {
+
+    private LinearInvList (String field) {
+      super (field);
+    }
+
+    public int advanceDocIndex (int n, int docid) {
+      while ((n < this.df) && (this.getDocid (n) < docid))
+        n++;
+      return n;
+    }
+  }
+
+  /**
+   *  @param args [numDocs [rareDf]]
+   *  @throws Exception Error evaluating a query.
+   */
+  public static void main (String[] args) throws Exception {
+
+    int numDocs = (args.length > 0) ? Integer.parseInt (args[0]) : 10000000;
+    int rareDf = (args.length > 1) ? Integer.parseInt (args[1]) : 1000;
+    Random random = new Random (11642);
+
+    InvList rare = fill (new InvList ("body"), sample (random, numDocs, rareDf));
+
+    System.out.println ("numDocs: " + numDocs + ", rare df: " + rareDf);
+    System.out.println ("frequentDf\tgap\tlinear\tgalloping\tspeedup\tcompressed");
+
+    for (int frequentDf = rareDf * 10; frequentDf <= numDocs / 2; frequentDf *= 10) {
+
+      int[] docids = sample (random, numDocs, frequentDf);
+      InvList linear = fill (new LinearInvList ("body"), docids);
+      InvList galloping = fill (new InvList ("body"), docids);
+
+      double linearMs = time (rare, linear);
+      double gallopingMs = time (rare, galloping);
+      double compressedMs = time (rare.compress (), galloping.compress ());
+
+      System.out.println (frequentDf + "\t" + (frequentDf / rareDf) + "\t" +
+                          String.format ("%.3f ms\t%.3f ms\t%.1fx\t%.3f ms",
+                                         linearMs, gallopingMs,
+                                         linearMs / gallopingMs,
+                                         compressedMs));
+    }
+
+    System.out.println ();
+    System.out.println ("df\tctf\tbytes\tcompressed\tscan\tcompressed scan");
+
+    for (int df = rareDf * 10; df <= numDocs / 2; df *= 10) {
+
+      InvList list = fillLocations (new InvList ("body"), random,
+                                    sample (random, numDocs, df));
+      InvList compressed = list.compress ();
+
+      System.out.println (df + "\t" + list.ctf + "\t" +
+                          list.sizeInBytes () + "\t" +
+                          compressed.sizeInBytes () + "\t" +
+                          String.format ("%.3f ms\t%.3f ms",
+                                         scan (list), scan (compressed)));
+    }
+  }
+
+  /**
+   *  Choose n distinct docids from [0, numDocs), in ascending order.
+   */
+  private static int[] sample (Random random, int numDocs, int n) {
+
+    BitSet chosen = new BitSet (numDocs);
+
+    for (int k = 0; k < n; ) {
+      int d = random.nextInt (numDocs);
+
+      if (! chosen.get (d)) {
+        chosen.set (d);
+        k++;
+      }
+    }
+
+    int[] docids = new int[n];
+
+    for (int i = 0, d = chosen.nextSetBit (0); d >= 0; d = chosen.nextSetBit (d + 1))
+      docids[i++] = d;
+
+    return docids;
+  }
+
+  /**
+   *  Append a posting with one location for each docid.
+   */
+  private static InvList fill (InvList list, int[] docids) {
+
+    int[] locations = { 0 };
+
+    for (int i = 0; i < docids.length; i++)
+      list.appendPosting (docids[i], locations, 1);
+
+    list.trim ();
+    return list;
+  }
+
+  /**
+   *  Append a posting with 1-8 random, ascending locations for each
+   *  docid.
+   */
+  private static InvList fillLocations (InvList list, Random random, int[] docids) {
+
+    int[] locations = new int[8];
+
+    for (int i = 0; i < docids.length; i++) {
+      int tf = 1 + random.nextInt (locations.length);
+
+      for (int j = 0, loc = 0; j < tf; j++) {
+        loc += 1 + random.nextInt (100);
+        locations[j] = loc;
+      }
+
+      list.appendPosting (docids[i], locations, tf);
+    }
+
+    list.trim ();
+    return list;
+  }
+
+  /**
+   *  Read every docid, tf, and location of a list, and return the
+   *  median time.
+   */
+  private static double scan (InvList list) {
+
+    double[] ms = new double[REPETITIONS - WARMUP];
+    int[] buffer = new int[16];
+    long checksum = 0;
+
+    for (int rep = 0; rep < REPETITIONS; rep++) {
+
+      long start = System.nanoTime ();
+
+      for (int n = 0; n < list.df; n++) {
+        int tf = list.getTf (n);
+
+        buffer = list.getPositions (n, buffer);
+        checksum += list.getDocid (n);
+
+        for (int j = 0; j < tf; j++)
+          checksum += buffer[j];
+      }
+
+      if (rep >= WARMUP)
+        ms[rep - WARMUP] = (System.nanoTime () - start) / 1e6;
+    }
+
+    sink += checksum;
+
+    Arrays.sort (ms);
+    return ms[ms.length / 2];
+  }
+
+  /**
+   *  Evaluate #AND (rare frequent) and return the median time.
+   */
+  private static double time (InvList rare, InvList frequent) throws IOException {
+
+    RetrievalModel model = new RetrievalModelUnrankedBoolean ();
+    double[] ms = new double[REPETITIONS - WARMUP];
+    int matches = 0;
+
+    for (int rep = 0; rep < REPETITIONS; rep++) {
+
+      Qry q = new QrySopAnd ();
+      q.setDisplayName ("#AND");
+      q.appendArg (new QryIopList (rare));
+      q.appendArg (new QryIopList (frequent));
+      q.initialize (model);
+
+      long start = System.nanoTime ();
+
+      matches = 0;
+
+      while (q.docIteratorHasMatch (model)) {
+        matches++;
+        q.docIteratorAdvancePast (q.docIteratorGetMatch ());
+      }
+
+      if (rep >= WARMUP)
+        ms[rep - WARMUP] = (System.nanoTime () - start) / 1e6;
+    }
+
+    sink += matches;
+
+    Arrays.sort (ms);
+    return ms[ms.length / 2];
+  }
+}
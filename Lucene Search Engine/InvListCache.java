@@ -0,0 +1,151 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A memory-bounded cache of term inverted lists that is shared by
+ *  all of the queries in a run.  Lists are keyed by (term, field),
+ *  and the least recently used lists are evicted when the total size
+ *  of the cached lists exceeds the budget.  Cached lists must not be
+ *  modified.  Lists are compressed before they are cached if
+ *  Idx.getCompressPostings is true.
+ *  <p>
+ *  The cache is safe for concurrent use.  Lists are read from the
+ *  index outside of the lock, so a slow read doesn't block lookups of
+ *  other terms; if two threads miss on the same term at the same
+ *  time, both read it, and the first copy is kept.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The maximum total size of the cached lists, in bytes.
+   */
+  private final long capacity;
+
+  /**
+   *  The total size of the cached lists, in bytes.
+   */
+  private long size = 0;
+
+  /**
+   *  The cached lists, in least-recently-used order.
+   */
+  private final LinkedHashMap<String, InvList> lists =
+    new LinkedHashMap<String, InvList> (16, 0.75f, true);
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param capacity The maximum total size of the cached lists, in bytes.
+   */
+  public InvListCache (long capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   *  Get the inverted list for a term, from the cache if possible,
+   *  otherwise from the index.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The term's inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList get (String termString, String fieldString) throws IOException {
+    return this.get (termString, fieldString, true);
+  }
+
+  /**
+   *  Get the inverted list for a term, from the cache if possible,
+   *  otherwise from the index.  Lists with and without locations are
+   *  cached separately, but a list that has locations also serves
+   *  callers that don't need them.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positions False if the caller doesn't need locations.
+   *  @return The term's inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList get (String termString, String fieldString, boolean positions)
+    throws IOException {
+
+    //  Field names never contain ':' or begin with '-', so the keys
+    //  are unambiguous.  Keys of lists without locations begin with '-'.
+
+    String key = fieldString + ":" + termString;
+    String docsKey = "-" + key;
+
+    synchronized (this) {
+      InvList list = this.lists.get (key);
+
+      if ((list == null) && ! positions)
+        list = this.lists.get (docsKey);
+
+      if (list != null) {
+        this.hits ++;
+        return list;
+      }
+
+      this.misses ++;
+    }
+
+    InvList list = new InvList (termString, fieldString, positions);
+
+    if (Idx.getCompressPostings ())
+      list = list.compress ();
+
+    this.put (positions ? key : docsKey, list);
+    return list;
+  }
+
+  /**
+   *  Add a list to the cache, and evict lists until the cache is
+   *  within its budget.  A list that is larger than the whole budget
+   *  is not cached.
+   *  @param key The (field, term) key.
+   *  @param list The inverted list.
+   */
+  private synchronized void put (String key, InvList list) {
+
+    long bytes = list.sizeInBytes ();
+
+    if ((bytes > this.capacity) || this.lists.containsKey (key))
+      return;
+
+    this.lists.put (key, list);
+    this.size += bytes;
+
+    Iterator<InvList> iterator = this.lists.values ().iterator ();
+
+    while (this.size > this.capacity) {
+      this.size -= iterator.next ().sizeInBytes ();
+      iterator.remove ();
+      this.evictions ++;
+    }
+  }
+
+  /**
+   *  Get a string that describes the cache's size and hit rate.
+   *  @return Cache statistics.
+   */
+  @Override public synchronized String toString () {
+
+    long lookups = this.hits + this.misses;
+
+    return ("Postings cache:  " + this.lists.size () + " lists, " +
+            String.format ("%.1f of %.1f MB, ", this.size / 1048576.0,
+                           this.capacity / 1048576.0) +
+            this.hits + " hits, " + this.misses + " misses (" +
+            ((lookups == 0) ? 0 : (100 * this.hits / lookups)) + "% hits), " +
+            this.evictions + " evictions");
+  }
+}
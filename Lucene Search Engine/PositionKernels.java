@@ -0,0 +1,289 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  Positional matching over sorted arrays of locations, for the
+ *  QryIop operators that combine their arguments' locations:  a k-way
+ *  merge for #SYN, an ordered-proximity match for #NEAR/n, and a
+ *  sliding window for #WINDOW/n.  The operators copy each argument's
+ *  locations into buffers that they reuse, and the kernels work on
+ *  those arrays directly, so matching a document doesn't allocate
+ *  anything or call the arguments' locIterators.
+ *  <p>
+ *  The merge and the window use a heap of list indexes ordered by
+ *  each list's next location, and then by list index.  Its buffers
+ *  belong to the object and grow as needed, so each operator should
+ *  have its own object.
+ *  </p>
+ */
+public class PositionKernels {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The heap:  list indexes and their next locations, and each
+   *  list's cursor.
+   */
+  private int[] heap = new int[16];
+  private int[] heapPositions = new int[16];
+  private int[] cursors = new int[16];
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Merge sorted lists of locations.  Locations that are in more than
+   *  one list are kept once per list.
+   *  @param lists The lists.
+   *  @param tfs The number of locations in each list.
+   *  @param m The number of lists.
+   *  @param out Receives the merged locations; it must have room for
+   *    all of them.
+   *  @return The number of locations.
+   */
+  public int merge (int[][] lists, int[] tfs, int m, int[] out) {
+
+    if (m == 1) {
+      System.arraycopy (lists[0], 0, out, 0, tfs[0]);
+      return tfs[0];
+    }
+
+    if (m == 2) {
+      int[] a = lists[0];
+      int[] b = lists[1];
+      int na = tfs[0];
+      int nb = tfs[1];
+      int i = 0;
+      int j = 0;
+      int k = 0;
+
+      while ((i < na) && (j < nb))
+        out[k++] = (a[i] <= b[j]) ? a[i++] : b[j++];
+
+      while (i < na)
+        out[k++] = a[i++];
+
+      while (j < nb)
+        out[k++] = b[j++];
+
+      return k;
+    }
+
+    //  Build the heap from the lists that have locations.
+
+    this.ensureCapacity (m);
+
+    int size = 0;
+
+    for (int j = 0; j < m; j++) {
+      this.cursors[j] = 0;
+
+      if (tfs[j] > 0) {
+        this.heap[size] = j;
+        this.heapPositions[size] = lists[j][0];
+        size++;
+      }
+    }
+
+    this.heapify (size);
+
+    //  Repeatedly take the smallest next location, and replace it with
+    //  the next location in its list.
+
+    int k = 0;
+
+    while (size > 0) {
+      int j = this.heap[0];
+
+      out[k++] = this.heapPositions[0];
+
+      int cursor = ++this.cursors[j];
+
+      if (cursor < tfs[j]) {
+        this.siftDown (0, size, j, lists[j][cursor]);
+      } else if (--size > 0) {
+        this.siftDown (0, size, this.heap[size], this.heapPositions[size]);
+      }
+    }
+
+    return k;
+  }
+
+  /**
+   *  The ordered-proximity match of #NEAR/n for one more argument:
+   *  each location in prev is matched with the first unused location
+   *  in next that follows it by at most distance, and the matched
+   *  locations in next are the result.  out may be prev, because
+   *  each result is written after the prev location that it matches
+   *  is read.
+   *  @param prev The locations that matched the previous arguments.
+   *  @param nprev The number of locations in prev.
+   *  @param next The argument's locations.
+   *  @param nnext The number of locations in next.
+   *  @param distance The largest distance.
+   *  @param out Receives the matched locations; it must have room for
+   *    nprev locations.
+   *  @return The number of matched locations.
+   */
+  public static int near (int[] prev, int nprev, int[] next, int nnext,
+                          int distance, int[] out) {
+    int n = 0;
+    int j = 0;
+    int k = 0;
+
+    while ((j < nprev) && (k < nnext)) {
+      int loc1 = prev[j];
+      int loc2 = next[k];
+
+      if (loc1 > loc2) {
+        k++;
+      } else if (loc2 - loc1 > distance) {
+        j++;
+      } else {
+        j++;
+        k++;
+        out[n++] = loc2;
+      }
+    }
+
+    return n;
+  }
+
+  /**
+   *  The unordered match of #WINDOW/n:  while every list has a
+   *  location, if the smallest and largest current locations fit in
+   *  a window of width locations, the largest is a match and every
+   *  list moves to its next location; otherwise the list that has the
+   *  smallest location moves to its next location.  The heap finds
+   *  the smallest location, and the largest is updated as lists move.
+   *  @param lists The lists, one per argument.
+   *  @param tfs The number of locations in each list.
+   *  @param n The number of lists.
+   *  @param width The width of the window.
+   *  @param out Receives the matched locations; it must have room for
+   *    as many locations as the shortest list has.
+   *  @return The number of matched locations.
+   */
+  public int window (int[][] lists, int[] tfs, int n, int width, int[] out) {
+
+    this.ensureCapacity (n);
+
+    for (int i = 0; i < n; i++) {
+      if (tfs[i] == 0)
+        return 0;
+
+      this.cursors[i] = 0;
+    }
+
+    int max = this.startWindow (lists, n);
+    int k = 0;
+
+    while (true) {
+      int i = this.heap[0];
+
+      if (1 + max - this.heapPositions[0] > width) {
+
+        //  No match.  Move the list that has the smallest location.
+
+        int cursor = ++this.cursors[i];
+
+        if (cursor == tfs[i])
+          break;
+
+        int position = lists[i][cursor];
+
+        if (position > max)
+          max = position;
+
+        this.siftDown (0, n, i, position);
+      } else {
+
+        //  A match.  Move every list.
+
+        out[k++] = max;
+
+        for (int j = 0; j < n; j++) {
+          if (++this.cursors[j] == tfs[j])
+            return k;
+        }
+
+        max = this.startWindow (lists, n);
+      }
+    }
+
+    return k;
+  }
+
+  /**
+   *  Build the heap from every list's current location.
+   *  @return The largest current location, or 0.
+   */
+  private int startWindow (int[][] lists, int n) {
+    int max = 0;
+
+    for (int j = 0; j < n; j++) {
+      int position = lists[j][this.cursors[j]];
+
+      this.heap[j] = j;
+      this.heapPositions[j] = position;
+
+      if (position > max)
+        max = position;
+    }
+
+    this.heapify (n);
+    return max;
+  }
+
+  /**
+   *  Grow the heap buffers to hold n lists.
+   */
+  private void ensureCapacity (int n) {
+    if (this.heap.length < n) {
+      this.heap = new int[n];
+      this.heapPositions = new int[n];
+      this.cursors = new int[n];
+    }
+  }
+
+  /**
+   *  Put the first size heap nodes in heap order.
+   */
+  private void heapify (int size) {
+    for (int node = size / 2 - 1; node >= 0; node--)
+      this.siftDown (node, size, this.heap[node], this.heapPositions[node]);
+  }
+
+  /**
+   *  Put a list and its next location at a heap node, and move it
+   *  down until the heap is in order.
+   */
+  private void siftDown (int node, int size, int j, int position) {
+
+    while (true) {
+      int child = 2 * node + 1;
+
+      if (child >= size)
+        break;
+
+      if ((child + 1 < size) &&
+          before (this.heapPositions[child + 1], this.heap[child + 1],
+                  this.heapPositions[child], this.heap[child]))
+        child++;
+
+      if (! before (this.heapPositions[child], this.heap[child], position, j))
+        break;
+
+      this.heap[node] = this.heap[child];
+      this.heapPositions[node] = this.heapPositions[child];
+      node = child;
+    }
+
+    this.heap[node] = j;
+    this.heapPositions[node] = position;
+  }
+
+  private static boolean before (int position1, int j1, int position2, int j2) {
+    return (position1 < position2) || ((position1 == position2) && (j1 < j2));
+  }
+}
@@ -0,0 +1,426 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A binary snapshot of the inverted lists of selected terms, which
+ *  is memory-mapped and read without copying.  The main method
+ *  exports a snapshot from a Lucene index; the constructor maps one.
+ *  Because the file is mapped, the operating system's page cache
+ *  keeps hot postings in memory across program runs, and a mapped
+ *  inverted list is ready as soon as it is looked up.
+ *  <p>
+ *  The file format is a 28 byte header, the postings of each term,
+ *  and a directory.  All values are big-endian.  The header records
+ *  the maxDoc and version of the index that the snapshot was
+ *  exported from; see matches.
+ *  </p>
+ *  <pre>
+ *    header:     int magic, int maxDoc, long indexVersion,
+ *                int numTerms, long directoryOffset
+ *    postings:   int df, int ctf, int[df] docids, int[df] tfs,
+ *                int[df+1] positionOffsets, int[ctf] positions
+ *    directory:  numTerms * (UTF "field:term", long postingsOffset)
+ *  </pre>
+ *  <p>
+ *  To export a snapshot:
+ *  </p>
+ *  <pre>
+ *    java PostingsSnapshot indexPath snapshotPath minDf [field ...]
+ *    java PostingsSnapshot indexPath snapshotPath -terms termFile
+ *  </pre>
+ *  <p>
+ *  The first form exports every term whose df is at least minDf in
+ *  the listed fields (default: body).  The second form exports the
+ *  terms in termFile, one per line, as term or term.field.  Terms
+ *  must already be processed (stemmed, etc.) the way the index was.
+ *  </p>
+ */
+public class PostingsSnapshot {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int MAGIC = 0x50534E32;		// "PSN2"
+  private static final int OLD_MAGIC = 0x50534E31;	// "PSN1"
+  private static final int HEADER_LENGTH = 28;
+
+  private static final String USAGE =
+    "Usage:  java PostingsSnapshot indexPath snapshotPath minDf [field ...]\n" +
+    "        java PostingsSnapshot indexPath snapshotPath -terms termFile\n";
+
+  /**
+   *  The snapshot file.
+   */
+  private FileChannel channel;
+
+  /**
+   *  The maxDoc and version of the index that the snapshot was
+   *  exported from.
+   */
+  private final int maxDoc;
+  private final long indexVersion;
+
+  /**
+   *  The whole snapshot, if it is small enough to map at once;
+   *  otherwise null, and each term's postings are mapped separately.
+   */
+  private ByteBuffer mapped = null;
+
+  /**
+   *  The offset of each term's postings, keyed by "field:term".
+   */
+  private Map<String, Long> directory = new HashMap<String, Long>();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  An inverted list whose postings are views of a mapped file.
+   */
+  private static class MappedInvList extends InvList {
+
+    private IntBuffer docids;
+    private IntBuffer tfs;
+    private IntBuffer positionOffsets;
+    private IntBuffer positions;
+
+    private MappedInvList (String fieldString, IntBuffer postings) {
+      super (fieldString, postings.get (0), postings.get (1));
+
+      int n = 2;
+      this.docids = slice (postings, n, this.df);
+      n += this.df;
+      this.tfs = slice (postings, n, this.df);
+      n += this.df;
+      this.positionOffsets = slice (postings, n, this.df + 1);
+      n += this.df + 1;
+      this.positions = slice (postings, n, this.ctf);
+    }
+
+    private static IntBuffer slice (IntBuffer buffer, int start, int length) {
+      IntBuffer b = buffer.duplicate ();
+      b.position (start);
+      b = b.slice ();
+      b.limit (length);
+      return b;
+    }
+
+    public int getDocid (int n) {
+      return this.docids.get (n);
+    }
+
+    public int getTf (int n) {
+      return this.tfs.get (n);
+    }
+
+    public int getPosition (int n, int j) {
+      return this.positions.get (this.positionOffsets.get (n) + j);
+    }
+
+    public boolean appendPosting (int docid, int[] locations, int tf) {
+      throw new UnsupportedOperationException ("A mapped inverted list is read-only.");
+    }
+
+    public void trim () {
+    }
+
+    /**
+     *  The postings are already compact, and they aren't on the heap.
+     */
+    public InvList compress () {
+      return this;
+    }
+
+    /**
+     *  The postings are in the page cache, not on the heap; this is
+     *  the approximate size of the buffer views.
+     */
+    public long sizeInBytes () {
+      return 256L;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Map a snapshot file and read its directory.
+   *  @param snapshotPath The snapshot file.
+   *  @throws IOException Error reading the snapshot.
+   */
+  public PostingsSnapshot (String snapshotPath) throws IOException {
+
+    FileInputStream file = new FileInputStream (snapshotPath);
+    this.channel = file.getChannel ();
+
+    //  Read the header.
+
+    ByteBuffer header = ByteBuffer.allocate (HEADER_LENGTH);
+
+    while (header.hasRemaining ())
+      if (this.channel.read (header, header.position ()) < 0)
+        throw new IOException ("Truncated postings snapshot " + snapshotPath);
+
+    header.flip ();
+
+    int magic = header.getInt ();
+
+    if (magic == OLD_MAGIC)
+      throw new IOException (snapshotPath + " doesn't record its index version; export it again.");
+
+    if (magic != MAGIC)
+      throw new IOException (snapshotPath + " is not a postings snapshot.");
+
+    this.maxDoc = header.getInt ();
+    this.indexVersion = header.getLong ();
+
+    int numTerms = header.getInt ();
+    long directoryOffset = header.getLong ();
+
+    //  Read the directory.  The stream shares the channel's position.
+
+    this.channel.position (directoryOffset);
+
+    DataInputStream input =
+      new DataInputStream (new BufferedInputStream (file));
+
+    for (int i = 0; i < numTerms; i++) {
+      String key = input.readUTF ();
+      this.directory.put (key, input.readLong ());
+    }
+
+    //  Map the postings.
+
+    if (directoryOffset <= Integer.MAX_VALUE) {
+      this.mapped =
+        this.channel.map (FileChannel.MapMode.READ_ONLY, 0, directoryOffset);
+    }
+  }
+
+  /**
+   *  Returns true if the snapshot was exported from the current
+   *  version of a Lucene index.  A snapshot of another version may
+   *  have different docids.
+   *  @param reader The Lucene index.
+   *  @return True if the snapshot matches the Lucene index.
+   */
+  public boolean matches (IndexReader reader) {
+    return ((reader.maxDoc () == this.maxDoc) &&
+            (Idx.getIndexVersion (reader) == this.indexVersion));
+  }
+
+  /**
+   *  Close the snapshot file.  Inverted lists that were already
+   *  mapped remain valid.
+   *  @throws IOException Error closing the file.
+   */
+  public void close () throws IOException {
+    this.channel.close ();
+  }
+
+  /**
+   *  Returns true if the snapshot contains the term's inverted list.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return True if the term is in the snapshot.
+   */
+  public boolean contains (String termString, String fieldString) {
+    return this.directory.containsKey (fieldString + ":" + termString);
+  }
+
+  /**
+   *  Get a term's inverted list from the snapshot.  The list is a
+   *  view of the mapped file; the postings are not copied.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list, or null if the term isn't in the snapshot.
+   *  @throws IOException Error reading the snapshot.
+   */
+  public InvList get (String termString, String fieldString)
+    throws IOException {
+
+    Long offset = this.directory.get (fieldString + ":" + termString);
+
+    if (offset == null)
+      return null;
+
+    ByteBuffer postings;
+
+    if (this.mapped != null) {
+      postings = this.mapped.duplicate ();
+      postings.position ((int) offset.longValue ());
+      postings = postings.slice ();
+    } else {
+
+      //  A large snapshot is mapped one term at a time.  The length
+      //  of the term's postings is determined by its df and ctf.
+
+      ByteBuffer stats = ByteBuffer.allocate (8);
+
+      while (stats.hasRemaining ())
+        if (this.channel.read (stats, offset + stats.position ()) < 0)
+          throw new IOException ("Truncated postings snapshot.");
+
+      stats.flip ();
+
+      long df = stats.getInt ();
+      long ctf = stats.getInt ();
+
+      postings = this.channel.map (FileChannel.MapMode.READ_ONLY, offset,
+                                   4L * (3 + 3 * df + ctf));
+    }
+
+    return new MappedInvList (fieldString, postings.asIntBuffer ());
+  }
+
+  /**
+   *  Get the number of terms in the snapshot.
+   *  @return The number of terms.
+   */
+  public int size () {
+    return this.directory.size ();
+  }
+
+  /**
+   *  Export a snapshot from a Lucene index.
+   *  @param args See the class description.
+   *  @throws Exception Error accessing the index or writing the snapshot.
+   */
+  public static void main (String[] args) throws Exception {
+
+    if (args.length < 3) {
+      throw new IllegalArgumentException (USAGE);
+    }
+
+    Idx.initialize (args[0]);
+
+    //  Select the terms, as (field, term) pairs.
+
+    List<String[]> terms = new ArrayList<String[]> ();
+
+    if (args[2].equals ("-terms")) {
+
+      if (args.length < 4) {
+        throw new IllegalArgumentException (USAGE);
+      }
+
+      BufferedReader input = new BufferedReader (new FileReader (args[3]));
+      String line;
+
+      while ((line = input.readLine ()) != null) {
+        line = line.trim ();
+
+        if (line.length () == 0)
+          continue;
+
+        int delimiter = line.lastIndexOf ('.');
+
+        if (delimiter < 0)
+          terms.add (new String[] { "body", line });
+        else
+          terms.add (new String[] { line.substring (delimiter + 1),
+                                    line.substring (0, delimiter) });
+      }
+
+      input.close ();
+    } else {
+
+      int minDf = Integer.parseInt (args[2]);
+      String[] fields =
+        (args.length > 3) ? Arrays.copyOfRange (args, 3, args.length)
+                          : new String[] { "body" };
+
+      for (String field : fields) {
+        Terms fieldTerms = MultiFields.getTerms (Idx.INDEXREADER, field);
+
+        if (fieldTerms == null)
+          continue;
+
+        TermsEnum termsEnum = fieldTerms.iterator (null);
+
+        while (termsEnum.next () != null) {
+          if (termsEnum.docFreq () >= minDf)
+            terms.add (new String[] { field, termsEnum.term ().utf8ToString () });
+        }
+      }
+    }
+
+    //  Write the postings, then the directory, then the header.
+
+    String snapshotPath = args[1];
+    DataOutputStream output =
+      new DataOutputStream (new BufferedOutputStream (new FileOutputStream (snapshotPath), 1 << 16));
+    List<String> keys = new ArrayList<String> ();
+    Set<String> seen = new HashSet<String> ();
+    List<Long> offsets = new ArrayList<Long> ();
+    long offset = HEADER_LENGTH;
+
+    output.write (new byte[HEADER_LENGTH]);
+
+    for (String[] fieldTerm : terms) {
+      String key = fieldTerm[0] + ":" + fieldTerm[1];
+
+      if (! seen.add (key))
+        continue;
+
+      InvList list = new InvList (fieldTerm[1], fieldTerm[0]);
+
+      if (list.df == 0)
+        continue;
+
+      keys.add (key);
+      offsets.add (offset);
+
+      output.writeInt (list.df);
+      output.writeInt (list.ctf);
+
+      for (int n = 0; n < list.df; n++)
+        output.writeInt (list.getDocid (n));
+
+      for (int n = 0; n < list.df; n++)
+        output.writeInt (list.getTf (n));
+
+      int positionOffset = 0;
+
+      for (int n = 0; n < list.df; n++) {
+        output.writeInt (positionOffset);
+        positionOffset += list.getTf (n);
+      }
+
+      output.writeInt (positionOffset);
+
+      for (int n = 0; n < list.df; n++)
+        for (int j = 0; j < list.getTf (n); j++)
+          output.writeInt (list.getPosition (n, j));
+
+      offset += 4L * (3 + 3L * list.df + list.ctf);
+    }
+
+    long directoryOffset = offset;
+
+    for (int i = 0; i < keys.size (); i++) {
+      output.writeUTF (keys.get (i));
+      output.writeLong (offsets.get (i));
+    }
+
+    output.close ();
+
+    RandomAccessFile file = new RandomAccessFile (snapshotPath, "rw");
+    file.writeInt (MAGIC);
+    file.writeInt (Idx.INDEXREADER.maxDoc ());
+    file.writeLong (Idx.getIndexVersion (Idx.INDEXREADER));
+    file.writeInt (keys.size ());
+    file.writeLong (directoryOffset);
+    file.close ();
+
+    System.out.println ("Wrote " + keys.size () + " inverted lists (" +
+                        (directoryOffset / (1024L * 1024L)) + " MB) to " +
+                        snapshotPath);
+  }
+}
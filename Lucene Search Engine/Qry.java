@@ -102,6 +102,27 @@ public abstract class Qry {
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
+  /**
+   *  The order in which docIteratorHasMatchAll visits the arguments,
+   *  cheapest first.  Set the first time that it is needed.
+   */
+  private int[] costOrder = null;
+
+  /**
+   *  docIteratorHasMatchMin keeps operators that have at least
+   *  MIN_HEAP_ARGS arguments in a binary min-heap, so that a match
+   *  doesn't look at every argument.  heapArgs are the argument
+   *  indexes, and heapDocids are the docids that the arguments had
+   *  when they were last looked at, or Integer.MAX_VALUE if they are
+   *  exhausted.  Iterators only move forward, so an argument's docid
+   *  is never less than its heap docid; heap docids are updated when
+   *  the arguments reach the top of the heap.  Set the first time
+   *  that they are needed.
+   */
+  private static final int MIN_HEAP_ARGS = 8;
+  private int[] heapArgs = null;
+  private int[] heapDocids = null;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -188,26 +209,69 @@ public abstract class Qry {
    *  @param docid An internal document id.
    */
   public void docIteratorAdvancePast (int docid) {
+    this.docIteratorAdvanceArgs (docid, true);
+    this.docIteratorClearMatchCache ();
+  }
+
+  /**
+   *  Advance the internal document iterator to the specified
+   *  document, or beyond if it doesn't.
+   *  @param docid An internal document id.
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    this.docIteratorAdvanceArgs (docid, false);
+    this.docIteratorClearMatchCache ();
+  }
 
+  /**
+   *  Advance the arguments' document iterators to a document, or
+   *  beyond it.  Operators that override docIteratorAdvanceTo and
+   *  docIteratorAdvancePast can use this to move their arguments.
+   *  @param docid An internal document id.
+   *  @param past True to advance past the docid, false to advance to it.
+   */
+  protected void docIteratorAdvanceArgs (int docid, boolean past) {
+
+    if (this.heapArgs != null) {
+      this.heapAdvance (0, docid, past);
+    } else if (past) {
       for (Qry q_i: this.args) {
         q_i.docIteratorAdvancePast (docid);
       }
-
-    this.docIteratorClearMatchCache ();
+    } else {
+      for (Qry q_i: this.args) {
+        q_i.docIteratorAdvanceTo (docid);
+      }
     }
+  }
 
   /**
-   *  Advance the internal document iterator to the specified
-   *  document, or beyond if it doesn't.
+   *  Advance the arguments in a subtree of the heap that may be
+   *  before a docid.  An argument's heap docid is never more than its
+   *  docid, so if a heap docid is past the docid, the argument and
+   *  its subtree can be skipped.
+   *  @param node The root of the subtree.
    *  @param docid An internal document id.
+   *  @param past True to advance past the docid, false to advance to it.
    */
-  public void docIteratorAdvanceTo (int docid) {
-    
-    for (Qry q_i: this.args) {
+  private void heapAdvance (int node, int docid, boolean past) {
+
+    if ((node >= this.heapArgs.length) ||
+        (this.heapDocids[node] > docid) ||
+        ((! past) && (this.heapDocids[node] == docid))) {
+      return;
+    }
+
+    Qry q_i = this.args.get (this.heapArgs[node]);
+
+    if (past) {
+      q_i.docIteratorAdvancePast (docid);
+    } else {
       q_i.docIteratorAdvanceTo (docid);
     }
-    
-    this.docIteratorClearMatchCache ();
+
+    this.heapAdvance (2 * node + 1, docid, past);
+    this.heapAdvance (2 * node + 2, docid, past);
   }
 
   /**
@@ -240,24 +304,74 @@ public abstract class Qry {
    */
   public abstract boolean docIteratorHasMatch (RetrievalModel r);
 
+  /**
+   *  Estimate the cost of iterating over the operator's matches, which
+   *  is the number of documents that it is expected to match.  By
+   *  default, an operator matches the union of its arguments' matches,
+   *  so the estimate is the sum of their costs.  The estimate is valid
+   *  after the operator is initialized.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The estimated number of matching documents.
+   */
+  public long getCost (RetrievalModel r) {
+    long cost = 0;
+
+    for (Qry q_i : this.args) {
+      cost += q_i.getCost (r);
+    }
+
+    return cost;
+  }
+
+  /**
+   *  Get the indexes of the arguments in order of increasing cost.
+   *  Arguments that have the same cost stay in query order.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The argument indexes.
+   */
+  private int[] getCostOrder (RetrievalModel r) {
+    int n = this.args.size ();
+    long[] costs = new long[n];
+    int[] order = new int[n];
+
+    for (int i = 0; i < n; i++) {
+      costs[i] = this.args.get (i).getCost (r);
+      order[i] = i;
+
+      for (int k = i; (k > 0) && (costs[order[k - 1]] > costs[i]); k--) {
+        order[k] = order[k - 1];
+        order[k - 1] = i;
+      }
+    }
+
+    return order;
+  }
+
   /**
    *  An instantiation of docIteratorHasMatch that is true if the
    *  query has a document that matches all query arguments; some
-   *  subclasses may choose to use this implementation.  
+   *  subclasses may choose to use this implementation.  The
+   *  arguments are visited in order of increasing cost, so the
+   *  rarest argument proposes candidate documents and the others
+   *  skip to them.  The matches don't depend on the order.
    *  @param r The retrieval model that determines what is a match
    *  @return True if the query matches, otherwise false.
    */
   protected boolean docIteratorHasMatchAll (RetrievalModel r) {
 
+    if (this.costOrder == null) {
+      this.costOrder = this.getCostOrder (r);
+    }
+
     boolean matchFound = false;
 
     // Keep trying until a match is found or no match is possible.
 
     while (! matchFound) {
 
-      // Get the docid of the first query argument.
+      // Get the docid of the cheapest query argument.
       
-      Qry q_0 = this.args.get (0);
+      Qry q_0 = this.args.get (this.costOrder[0]);
 
       if (! q_0.docIteratorHasMatch (r)) {
 	return false;
@@ -265,13 +379,13 @@ public abstract class Qry {
 
       int docid_0 = q_0.docIteratorGetMatch ();
 
-      // Other query arguments must match the docid of the first query
-      // argument.
+      // Other query arguments must match the docid of the cheapest
+      // query argument.
       
       matchFound = true;
 
       for (int i=1; i<this.args.size(); i++) {
-	Qry q_i = this.args.get(i);
+	Qry q_i = this.args.get(this.costOrder[i]);
 
 	q_i.docIteratorAdvanceTo (docid_0);
 
@@ -326,6 +440,27 @@ public abstract class Qry {
    */
   protected boolean docIteratorHasMatchMin (RetrievalModel r) {
 
+    int minDocid = this.docIteratorGetMinDocid (r);
+
+    if (minDocid != Qry.INVALID_DOCID) {
+      docIteratorSetMatchCache (minDocid);
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   *  Get the smallest docid that any query argument matches.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The docid, or INVALID_DOCID if no argument has a match.
+   */
+  protected int docIteratorGetMinDocid (RetrievalModel r) {
+
+    if (this.args.size () >= MIN_HEAP_ARGS) {
+      return this.heapGetMinDocid (r);
+    }
+
     int minDocid = Qry.INVALID_DOCID;
 
     for (int i=0; i<this.args.size(); i++) {
@@ -341,12 +476,144 @@ public abstract class Qry {
       }
     }
 
-    if (minDocid != Qry.INVALID_DOCID) {
-      docIteratorSetMatchCache (minDocid);
-      return true;
-    } else {
-      return false;
+    return minDocid;
+  }
+
+  /**
+   *  docIteratorGetMinDocid for operators that have many arguments.
+   *  The argument at the top of the heap is looked at again until its
+   *  docid is its heap docid; then no argument can have a smaller
+   *  docid.  Arguments that have been advanced sink below it.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The docid, or INVALID_DOCID if no argument has a match.
+   */
+  private int heapGetMinDocid (RetrievalModel r) {
+
+    if (this.heapArgs == null) {
+      int n = this.args.size ();
+
+      this.heapArgs = new int[n];
+      this.heapDocids = new int[n];
+
+      for (int i = 0; i < n; i++) {
+        this.heapArgs[i] = i;
+        this.heapDocids[i] = this.heapGetDocid (i, r);
+      }
+
+      for (int node = n / 2 - 1; node >= 0; node--) {
+        this.heapSiftDown (node);
+      }
     }
+
+    while (this.heapDocids[0] != Integer.MAX_VALUE) {
+      int docid = this.heapGetDocid (this.heapArgs[0], r);
+
+      if (docid == this.heapDocids[0]) {
+        return docid;
+      }
+
+      this.heapDocids[0] = docid;
+      this.heapSiftDown (0);
+    }
+
+    return Qry.INVALID_DOCID;
+  }
+
+  /**
+   *  Get the docid of argument i, or Integer.MAX_VALUE if it is
+   *  exhausted.
+   */
+  private int heapGetDocid (int i, RetrievalModel r) {
+    Qry q_i = this.args.get (i);
+
+    return q_i.docIteratorHasMatch (r) ? q_i.docIteratorGetMatch () : Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Restore the heap order below a node whose docid increased.
+   *  Arguments that have the same docid are ordered by index.
+   */
+  private void heapSiftDown (int node) {
+    int n = this.heapArgs.length;
+    int arg = this.heapArgs[node];
+    int docid = this.heapDocids[node];
+
+    while (true) {
+      int child = 2 * node + 1;
+
+      if (child >= n) {
+        break;
+      }
+
+      if ((child + 1 < n) &&
+          heapBefore (this.heapDocids[child + 1], this.heapArgs[child + 1],
+                      this.heapDocids[child], this.heapArgs[child])) {
+        child++;
+      }
+
+      if (! heapBefore (this.heapDocids[child], this.heapArgs[child], docid, arg)) {
+        break;
+      }
+
+      this.heapArgs[node] = this.heapArgs[child];
+      this.heapDocids[node] = this.heapDocids[child];
+      node = child;
+    }
+
+    this.heapArgs[node] = arg;
+    this.heapDocids[node] = docid;
+  }
+
+  private static boolean heapBefore (int docid1, int arg1, int docid2, int arg2) {
+    return (docid1 < docid2) || ((docid1 == docid2) && (arg1 < arg2));
+  }
+
+  /**
+   *  Find the arguments whose docid is the docid that
+   *  docIteratorGetMinDocid found.  For operators that have a heap,
+   *  only the arguments at the top of the heap are looked at.
+   *  @param r The retrieval model that determines what is a match
+   *  @param docid The docid that docIteratorGetMinDocid found.
+   *  @param buffer Receives the argument indexes; it must have room
+   *    for every argument.
+   *  @return The number of arguments found.
+   */
+  protected int docIteratorGetMatchingArgs (RetrievalModel r, int docid, int[] buffer) {
+
+    if (this.heapArgs != null) {
+      return this.heapGetMatchingArgs (0, r, docid, buffer, 0);
+    }
+
+    int n = 0;
+
+    for (int i = 0; i < this.args.size (); i++) {
+      Qry q_i = this.args.get (i);
+
+      if (q_i.docIteratorHasMatch (r) && (q_i.docIteratorGetMatch () == docid)) {
+        buffer[n++] = i;
+      }
+    }
+
+    return n;
+  }
+
+  /**
+   *  Find the arguments in a subtree of the heap whose docid is a
+   *  docid.
+   */
+  private int heapGetMatchingArgs (int node, RetrievalModel r, int docid,
+                                   int[] buffer, int n) {
+
+    if ((node >= this.heapArgs.length) || (this.heapDocids[node] > docid)) {
+      return n;
+    }
+
+    if (this.heapGetDocid (this.heapArgs[node], r) == docid) {
+      buffer[n++] = this.heapArgs[node];
+    }
+
+    n = this.heapGetMatchingArgs (2 * node + 1, r, docid, buffer, n);
+    return this.heapGetMatchingArgs (2 * node + 2, r, docid, buffer, n);
   }
 
   /**
@@ -361,7 +628,7 @@ public abstract class Qry {
    *  Set the matching docid cache.
    *  @param docid The internal document id to store in the cache.
    */
-  private void docIteratorSetMatchCache (int docid) {
+  protected void docIteratorSetMatchCache (int docid) {
     this.docIteratorMatchCache = docid;
   }
 
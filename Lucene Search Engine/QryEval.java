@@ -6,6 +6,7 @@
 import java.io.*;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -61,9 +62,76 @@ public class QryEval {
   private static final String[] TEXT_FIELDS =
     { "body", "title", "url", "inlink", "keywords" };
 
-  public static int opnum = 0;
+  /**
+   *  The number of documents that are written for each query.
+   */
+  private static int outputLength = 100;
+
+  /**
+   *  If true, query operators that support dynamic pruning skip
+   *  documents that can't enter the top k results.
+   */
+  private static boolean dynamicPruning = false;
+
+  /**
+   *  If true, flat queries are evaluated term-at-a-time.  An engine's
+   *  accumulators belong to one query at a time, so each thread that
+   *  evaluates queries has its own engine.  Every engine is also kept
+   *  in a list, so that their statistics can be reported.
+   */
+  private static boolean termAtATime = false;
+
+  private static final List<TaatEngine> taatEngines =
+    Collections.synchronizedList (new ArrayList<TaatEngine> ());
+
+  private static final ThreadLocal<TaatEngine> taatEngine =
+    ThreadLocal.withInitial (() -> {
+        TaatEngine engine = new TaatEngine (Idx.INDEXREADER.maxDoc ());
+        taatEngines.add (engine);
+        return engine;
+      });
+
+  /**
+   *  If true, flat BM25 queries are evaluated score-at-a-time, from
+   *  the impact index.  Each thread has its own engine, like the
+   *  term-at-a-time engines.
+   */
+  private static boolean scoreAtATime = false;
+
+  private static final List<SaatEngine> saatEngines =
+    Collections.synchronizedList (new ArrayList<SaatEngine> ());
 
-  public static boolean isExpansion = false;
+  private static final ThreadLocal<SaatEngine> saatEngine =
+    ThreadLocal.withInitial (() -> {
+        SaatEngine engine =
+          new SaatEngine (Idx.getImpactIndex (), Idx.INDEXREADER.maxDoc ());
+        saatEngines.add (engine);
+        return engine;
+      });
+
+  /**
+   *  If true, documents are scored by a QryScorer that is compiled
+   *  for the retrieval model, instead of the query operators.
+   */
+  private static boolean compileQueries = false;
+
+  /**
+   *  If true, the locations that each query didn't read, because no
+   *  query operator uses them, are reported.
+   */
+  private static boolean reportPositionsSkipped = false;
+
+  /**
+   *  The threads that evaluate a batch of queries, or null if queries
+   *  are evaluated one at a time; see runTasks.
+   */
+  private static volatile ExecutorService queryThreads = null;
+
+  /**
+   *  The threads that evaluate the docid ranges of one query, or null
+   *  if each query is evaluated by one thread; see evaluatePartitions.
+   */
+  private static volatile ForkJoinPool partitionThreads = null;
 
   //  --------------- Methods ---------------------------------------
 
@@ -91,15 +159,17 @@ public class QryEval {
 
     Map<String, String> parameters = readParameterFile (args[0]);
 
-    //  Configure query lexical processing to match index lexical
-    //  processing.  Initialize the index and retrieval model.
+    RetrievalModel model = initialize (parameters);
 
-    ANALYZER.setLowercase(true);
-    ANALYZER.setStopwordRemoval(true);
-    ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+    //  In daemon mode, serve queries until the process is stopped.
 
-    Idx.initialize(parameters.get("indexPath"));
-    RetrievalModel model = initializeRetrievalModel (parameters);
+    if (parameters.containsKey("serverPort")) {
+      QryServer server = new QryServer(parameters, model);
+
+      server.warmUp(parameters.get("queryFilePath"));
+      server.start();
+      return;
+    }
 
     //  Perform experiments.
 
@@ -145,113 +215,259 @@ public class QryEval {
     }
     //  Clean up.
 
+    if (Idx.getInvListCache() != null) {
+      System.err.println(Idx.getInvListCache());
+    }
+
+    synchronized (taatEngines) {
+      for (TaatEngine engine : taatEngines) {
+        System.err.println(engine);
+      }
+    }
+
+    synchronized (saatEngines) {
+      for (SaatEngine engine : saatEngines) {
+        System.err.println(engine);
+      }
+    }
+
     timer.stop();
     // System.out.println ("Time:  " + timer);
   }
 
-  private static ArrayList<String> queryExpansion (ArrayList<ArrayList<DocScore>> initialResult, int fbTerms,
-                                                  int fbMu, int fbDocs, boolean writeExpansion,
-                                                  String fbExpansionQueryFile, ArrayList<String> qids)
-          throws IOException{
-    //System.out.println("fbMu: " + fbMu);
+  /**
+   * Enable or disable dynamic pruning.
+   * @param prune True to skip documents that can't enter the top k.
+   */
+  static void setDynamicPruning(boolean prune) {
+    dynamicPruning = prune;
+  }
 
-    DecimalFormat formatter = new DecimalFormat("#0.000000000000");
-    ArrayList<String> expandedQueries = new ArrayList<String>();
-    HashMap<String, Double> termScoreMap;
-    HashMap<String, Integer> termCTF;
-    ArrayList<TermScore> termList;
-    ArrayList<TermVector> tvs = new ArrayList<TermVector>();
-    int qnum;
-    for (qnum=0; qnum < initialResult.size(); qnum++){//for each query
-      ArrayList<DocScore> docList = initialResult.get(qnum);
-
-      if (docList.size() != fbDocs){
-        System.out.println("docList size not equals to  fbDocs -_- !!");
-      }
-
-      termScoreMap = new HashMap<String, Double>();
-      termCTF = new HashMap<String, Integer>();
-      termList = new ArrayList<TermScore>();
-      int i;
-      String term;
-      double score;
-      double prevscore;
-      double ptd;
-      double ctf;
-      double cLength = (double)Idx.getSumOfFieldLengths("body");;
-      for (DocScore doc : docList){//for each doc
-        //System.out.println(doc.docid + " " + doc.score);
-        try {
-          TermVector termVector = new TermVector(doc.docid, "body");
-          tvs.add(termVector);
-          int len = termVector.stemsLength();
-          for (i=1; i<len; i++){//0 is stopwords
-            term = termVector.stemString(i).toLowerCase();
-            //System.out.print(term + " ");
-            //skip '.' and ','
-            if ((term.indexOf('.') >= 0) || (term.indexOf(',') >= 0) ){
-              continue;
-            }
-            //compoute score
-            ctf = termVector.totalStemFreq(i);
-            if (!termCTF.containsKey(term)){//store ctf
-              termCTF.put(term, (int)ctf);
-            }
-            ptd = (termVector.stemFreq(i) + (double)fbMu * ctf / cLength) / (termVector.positionsLength() + (double)fbMu);
-            score = ptd * doc.score * Math.log(cLength / ctf);
-            //System.out.println(score);
+  /**
+   * The number of documents that are written for each query.
+   */
+  static int getOutputLength() {
+    return outputLength;
+  }
 
+  /**
+   * Enable or disable compiled scorers.
+   * @param compile True to score documents with a QryScorer.
+   */
+  static void setCompileQueries(boolean compile) {
+    compileQueries = compile;
+  }
 
+  /**
+   * Set the number of threads that evaluate a batch of queries.
+   * @param threads The number of threads; 1 evaluates queries one at
+   *   a time, on the calling thread.
+   */
+  static synchronized void setThreads(int threads) {
 
-            //update score
-            if (termScoreMap.containsKey(term)){
-              prevscore = termScoreMap.get(term);
-              termScoreMap.put(term, prevscore + score);
-            } else {
-              termScoreMap.put(term, score);
-              termList.add(new TermScore(term, 0));
-            }
-          }
+    if (queryThreads != null) {
+      queryThreads.shutdown();
+      queryThreads = null;
+    }
 
+    if (threads > 1) {
+      queryThreads = Executors.newFixedThreadPool(threads, task -> {
+          Thread thread = new Thread(task, "query");
+          thread.setDaemon(true);
+          return thread;
+        });
+    }
+  }
 
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
+  /**
+   * Set the number of docid ranges that each document-at-a-time query
+   * is divided into, and evaluated in parallel.
+   * @param partitions The number of ranges; 1 evaluates each query
+   *   on one thread.
+   */
+  static synchronized void setQueryPartitions(int partitions) {
+
+    if (partitionThreads != null) {
+      partitionThreads.shutdown();
+      partitionThreads = null;
+    }
+
+    if (partitions > 1) {
+      partitionThreads = new ForkJoinPool(partitions);
+    }
+  }
+
+  /**
+   * Configure query processing, open the index, and apply the
+   * parameters that control evaluation.
+   * @param parameters The parameters, from readParameterFile.
+   * @return The retrieval model.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  static RetrievalModel initialize (Map<String, String> parameters)
+    throws IOException {
+
+    //  Configure query lexical processing to match index lexical
+    //  processing.  Initialize the index and retrieval model.
+
+    ANALYZER.setLowercase(true);
+    ANALYZER.setStopwordRemoval(true);
+    ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+
+    Idx.initialize(parameters.get("indexPath"));
+    RetrievalModel model = initializeRetrievalModel (parameters);
+
+    //  Optionally, terms read postings from Lucene on demand instead
+    //  of copying each inverted list before evaluation begins.
+
+    if (parameters.containsKey("streamPostings")) {
+      QryIopTerm.setStreaming(parameters.get("streamPostings").equalsIgnoreCase("true"));
+    }
+
+    //  Optionally, #NEAR, #WINDOW, and #SYN compute a document's
+    //  posting only when the rest of the query asks about it, if the
+    //  retrieval model doesn't use their df and ctf.
+
+    if (parameters.containsKey("streamOperators")) {
+      QryIop.setStreamOperators(parameters.get("streamOperators").equalsIgnoreCase("true"));
+    }
+
+    //  Optionally, report the locations that each query didn't read.
+
+    if (parameters.containsKey("reportPositionsSkipped")) {
+      reportPositionsSkipped = parameters.get("reportPositionsSkipped").equalsIgnoreCase("true");
+    }
+
+    //  Optionally, compress inverted lists that are kept in memory.
+
+    if (parameters.containsKey("compressPostings")) {
+      Idx.setCompressPostings(parameters.get("compressPostings").equalsIgnoreCase("true"));
+    }
+
+    //  Optionally, keep recently used inverted lists across queries.
+    //  The cache size is in MB.
+
+    if (parameters.containsKey("postingsCacheSize")) {
+      Idx.initializeInvListCache(Long.parseLong(parameters.get("postingsCacheSize")) * 1024L * 1024L);
+    }
+
+    //  Optionally, read inverted lists from a memory-mapped snapshot.
+    //  Terms that aren't in the snapshot are read from the index.
+
+    if (parameters.containsKey("postingsSnapshotPath")) {
+      Idx.initializePostingsSnapshot(parameters.get("postingsSnapshotPath"));
+    }
+
+    //  Optionally, skip documents that can't enter the top k.  The
+    //  results are the same.
+
+    if (parameters.containsKey("dynamicPruning")) {
+      setDynamicPruning(parameters.get("dynamicPruning").equalsIgnoreCase("true"));
+    }
+
+    //  Optionally, evaluate flat bag-of-words queries term-at-a-time.
+    //  The results are the same.
+
+    if (parameters.containsKey("termAtATime") &&
+        parameters.get("termAtATime").equalsIgnoreCase("true")) {
+      termAtATime = true;
+      taatEngine.get();
+    }
+
+    //  Optionally, evaluate flat BM25 queries score-at-a-time, from
+    //  the impact index.  The scores are quantized, so the results are
+    //  approximate.
+
+    if (parameters.containsKey("scoreAtATime") &&
+        parameters.get("scoreAtATime").equalsIgnoreCase("true")) {
+      if (Idx.getImpactIndex() == null) {
+        throw new IllegalArgumentException
+          ("scoreAtATime requires an impact index; build one with ImpactIndex.");
       }
 
-      //get final scores
-      for (TermScore termScore : termList){
-        ctf = termCTF.get(termScore.term);
-        // update default score
-        for (i=0; i < fbDocs; i++){
-          TermVector termVector = tvs.get(i);
-          if (termVector.indexOfStem(termScore.term) == -1){
-            ptd = ((double)fbMu * ctf / cLength) / (termVector.positionsLength() + (double)fbMu);
-            score = ptd * docList.get(i).score * Math.log(cLength / ctf);
-            prevscore = termScoreMap.get(termScore.term);
-            termScoreMap.put(termScore.term, prevscore + score);
-          }
+      scoreAtATime = true;
+      saatEngine.get();
+    }
 
-        }
-        termScore.score = termScoreMap.get(termScore.term);
+    //  Optionally, score documents with compiled scorers.  Indri
+    //  scores are calculated in log space, so they may differ from the
+    //  query operators' scores by rounding.
+
+    if (parameters.containsKey("compileQueries")) {
+      setCompileQueries(parameters.get("compileQueries").equalsIgnoreCase("true"));
+    }
+
+    //  Optionally, evaluate the queries of a batch on several threads.
+    //  The results are written in query file order.
+
+    if (parameters.containsKey("threads")) {
+      int threads = Integer.parseInt(parameters.get("threads"));
+
+      if (threads < 1) {
+        throw new IllegalArgumentException
+          ("threads must be at least 1, not " + threads);
       }
 
-      termList.sort(new TermScore());
-      //System.out.println(termList.toString());
-      termList = new ArrayList<TermScore> (termList.subList(0, fbTerms));
-      //System.out.println(termList.toString());
-      StringBuilder expandedQuery = new StringBuilder("#wand (");
-      for (TermScore termScore : termList){
-        expandedQuery.append(" " + formatter.format(termScore.score) + " " + termScore.term);
+      setThreads(threads);
+    }
+
+    //  Optionally, divide each document-at-a-time query into docid
+    //  ranges that are evaluated in parallel.  The results are the
+    //  same.
+
+    if (parameters.containsKey("queryPartitions")) {
+      int partitions = Integer.parseInt(parameters.get("queryPartitions"));
+
+      if (partitions < 1) {
+        throw new IllegalArgumentException
+          ("queryPartitions must be at least 1, not " + partitions);
+      }
+
+      setQueryPartitions(partitions);
+    }
+
+    //  Optionally, limit the time (in milliseconds) and the work (in
+    //  documents) of each query.  A query that runs out returns the
+    //  documents that it has scored so far.
+
+    QueryBudget.setLimits(
+      parameters.containsKey("queryTimeLimit") ?
+        Long.parseLong(parameters.get("queryTimeLimit")) : 0,
+      parameters.containsKey("queryWorkLimit") ?
+        Long.parseLong(parameters.get("queryWorkLimit")) : 0);
+
+    //  Optionally, write more or fewer than 100 documents per query.
+
+    if (parameters.containsKey("trecEvalOutputLength")) {
+      outputLength = Integer.parseInt(parameters.get("trecEvalOutputLength"));
+
+      if (outputLength < 1) {
+        throw new IllegalArgumentException
+          ("trecEvalOutputLength must be at least 1, not " + outputLength);
       }
-      expandedQuery.append(")");
-      String tmp = new String(expandedQuery.toString());
-      //System.out.println(tmp);
-      expandedQueries.add(tmp);
+    }
+
+    return model;
+  }
+
+  private static ArrayList<String> queryExpansion (ArrayList<ArrayList<DocScore>> initialResult, final int fbTerms,
+                                                  final int fbMu, final int fbDocs, boolean writeExpansion,
+                                                  String fbExpansionQueryFile, ArrayList<String> qids)
+          throws IOException{
+    //System.out.println("fbMu: " + fbMu);
+
+    //  Each query is expanded independently, from its own documents,
+    //  so the queries may be expanded concurrently; see runTasks.
 
+    List<Callable<String>> tasks = new ArrayList<Callable<String>>();
 
+    for (final ArrayList<DocScore> docList : initialResult) {
+      tasks.add(() -> expandQuery(docList, fbTerms, fbMu, fbDocs));
     }
 
+    ArrayList<String> expandedQueries = new ArrayList<String>(runTasks(tasks, null));
+    int qnum;
+
     // write expanded queries
     if (writeExpansion){
       PrintWriter writer = new PrintWriter(fbExpansionQueryFile);
@@ -265,6 +481,107 @@ public class QryEval {
     return expandedQueries;
   }
 
+  /**
+   * Select the expansion terms of one query from the term vectors of
+   * its top-ranked documents.  The default scores of the terms are
+   * computed from the same documents.
+   * @param docList The query's top-ranked documents.
+   * @return The expansion terms, as a #wand query.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  private static String expandQuery (ArrayList<DocScore> docList, int fbTerms,
+                                     int fbMu, int fbDocs)
+          throws IOException{
+
+    DecimalFormat formatter = new DecimalFormat("#0.000000000000");
+    HashMap<String, Double> termScoreMap;
+    HashMap<String, Integer> termCTF;
+    ArrayList<TermScore> termList;
+    ArrayList<TermVector> tvs = new ArrayList<TermVector>();
+
+    if (docList.size() != fbDocs){
+      System.out.println("docList size not equals to  fbDocs -_- !!");
+    }
+
+    termScoreMap = new HashMap<String, Double>();
+    termCTF = new HashMap<String, Integer>();
+    termList = new ArrayList<TermScore>();
+    int i;
+    String term;
+    double score;
+    double prevscore;
+    double ptd;
+    double ctf;
+    double cLength = (double)Idx.getSumOfFieldLengths("body");;
+    for (DocScore doc : docList){//for each doc
+      //System.out.println(doc.docid + " " + doc.score);
+      try {
+        TermVector termVector = new TermVector(doc.docid, "body");
+        tvs.add(termVector);
+        int len = termVector.stemsLength();
+        for (i=1; i<len; i++){//0 is stopwords
+          term = termVector.stemString(i).toLowerCase();
+          //System.out.print(term + " ");
+          //skip '.' and ','
+          if ((term.indexOf('.') >= 0) || (term.indexOf(',') >= 0) ){
+            continue;
+          }
+          //compoute score
+          ctf = termVector.totalStemFreq(i);
+          if (!termCTF.containsKey(term)){//store ctf
+            termCTF.put(term, (int)ctf);
+          }
+          ptd = (termVector.stemFreq(i) + (double)fbMu * ctf / cLength) / (termVector.positionsLength() + (double)fbMu);
+          score = ptd * doc.score * Math.log(cLength / ctf);
+          //System.out.println(score);
+
+
+
+          //update score
+          if (termScoreMap.containsKey(term)){
+            prevscore = termScoreMap.get(term);
+            termScoreMap.put(term, prevscore + score);
+          } else {
+            termScoreMap.put(term, score);
+            termList.add(new TermScore(term, 0));
+          }
+        }
+
+
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    //get final scores
+    for (TermScore termScore : termList){
+      ctf = termCTF.get(termScore.term);
+      // update default score
+      for (i=0; i < fbDocs && i < tvs.size(); i++){
+        TermVector termVector = tvs.get(i);
+        if (termVector.indexOfStem(termScore.term) == -1){
+          ptd = ((double)fbMu * ctf / cLength) / (termVector.positionsLength() + (double)fbMu);
+          score = ptd * docList.get(i).score * Math.log(cLength / ctf);
+          prevscore = termScoreMap.get(termScore.term);
+          termScoreMap.put(termScore.term, prevscore + score);
+        }
+
+      }
+      termScore.score = termScoreMap.get(termScore.term);
+    }
+
+    termList.sort(new TermScore());
+    //System.out.println(termList.toString());
+    termList = new ArrayList<TermScore> (termList.subList(0, Math.min(fbTerms, termList.size())));
+    //System.out.println(termList.toString());
+    StringBuilder expandedQuery = new StringBuilder("#wand (");
+    for (TermScore termScore : termList){
+      expandedQuery.append(" " + formatter.format(termScore.score) + " " + termScore.term);
+    }
+    expandedQuery.append(")");
+    return expandedQuery.toString();
+  }
+
 // return a list of top n docids for each original query
   private static ArrayList<ArrayList<DocScore>> readInitial (String filename, int fbDocs, ArrayList<String> qids)
           throws Exception {
@@ -627,7 +944,7 @@ public class QryEval {
   }
 
   /**
-   * Process one query.
+   * Process one query, and keep as many results as are written.
    * @param qString A string that contains a query.
    * @param model The retrieval model determines how matching and scoring is done.
    * @return Search results
@@ -635,13 +952,97 @@ public class QryEval {
    */
   static ScoreList processQuery(String qString, RetrievalModel model)
     throws IOException {
+    return processQuery(qString, model, outputLength);
+  }
 
-    Qry q = parseQuery(qString, model);
+  /**
+   * Process one query.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param depth The number of results to keep.
+   * @return Search results, sorted
+   * @throws IOException Error accessing the index
+   */
+  static ScoreList processQuery(String qString, RetrievalModel model, int depth)
+    throws IOException {
+
+    Qry q = parseAndOptimizeQuery(qString, model);
+
+    // Show the query that is evaluated
+
+    // test
+    //System.out.println("    --> " + q);
+    //System.out.println(((double)Idx.getSumOfFieldLengths("body"))/(double)Idx.getDocCount("body"));
+
+    if (q != null) {
+
+      //  The query's budget is checked by the evaluation loops, and by
+      //  the query operators that build inverted lists.  Flat queries
+      //  may be evaluated score-at-a-time or term-at-a-time.
+
+      QueryBudget budget = QueryBudget.start ();
+      boolean saat = scoreAtATime && saatEngine.get ().supports (q, model);
+      ScoreList r = new ScoreList (depth);
+
+      QueryBudget.setCurrent (budget);
+
+      try {
+        if (saat) {
+          r = saatEngine.get ().evaluate ((QrySop) q, model, depth, budget);
+        } else if (termAtATime && TaatEngine.supports (q, model)) {
+          r = taatEngine.get ().evaluate ((QrySop) q, model, depth, budget);
+        } else {
+          if (q.args.size () > 0) {		// Ignore empty queries
+
+            q.initialize (model);
+
+            if (partitionThreads != null) {
+              r = evaluatePartitions (qString, q, model, depth, budget);
+            } else {
+              evaluateRange (q, model, r, 0, Integer.MAX_VALUE, budget);
+            }
+          }
+
+          r.sort();
+        }
+      } catch (QueryBudget.Exhausted ex) {
+
+        //  An operator ran out of budget before any document was
+        //  scored.  The query is cancelled.
+
+        r = new ScoreList (depth);
+        r.setTruncated (true);
+      } finally {
+        QueryBudget.setCurrent (null);
+      }
+
+      if (! saat) {
+        reportPositionsSkipped (qString, q);
+      }
+
+      if (r.isTruncated ()) {
+        System.err.println ("Query ran out of budget; " + r.size () +
+                            " results for " + qString.trim ());
+      }
 
+      return r;
+    } else
+      return null;
+  }
+
+  /**
+   * Parse a query, and remove query operators (except SCORE
+   * operators) that have only 1 argument.  This improves efficiency
+   * and readability a bit.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model.
+   * @return The query, or null if nothing is left of it.
+   * @throws IOException Error accessing the index
+   */
+  static Qry parseAndOptimizeQuery(String qString, RetrievalModel model)
+    throws IOException {
 
-    // Optimize the query.  Remove query operators (except SCORE
-    // operators) that have only 1 argument. This improves efficiency
-    // and readability a bit.
+    Qry q = parseQuery(qString, model);
 
     if (q.args.size() == 1) {
       Qry q_0 = q.args.get(0);
@@ -654,31 +1055,204 @@ public class QryEval {
     while ((q != null) && parseQueryCleanup(q))
       ;
 
-    // Show the query that is evaluated
+    return q;
+  }
 
-    // test
-    //System.out.println("    --> " + q);
-    //System.out.println(((double)Idx.getSumOfFieldLengths("body"))/(double)Idx.getDocCount("body"));
+  /**
+   * Evaluate an initialized query document-at-a-time over a range of
+   * docids, and add the matching documents to a score list.
+   * @param q The query.
+   * @param model The retrieval model.
+   * @param r Receives the matching documents and their scores.
+   * @param lo The first docid of the range.
+   * @param hi The docid after the range.
+   * @param budget The query's budget, or null.  If it runs out, the
+   *   documents scored so far are kept, and r is marked truncated.
+   * @throws IOException Error accessing the index
+   */
+  private static void evaluateRange (Qry q, RetrievalModel model,
+                                     ScoreList r, int lo, int hi,
+                                     QueryBudget budget)
+    throws IOException {
 
-    if (q != null) {
+    QryScorer scorer = compileQueries ? QryScorer.compile (q, model) : null;
 
-      ScoreList r = new ScoreList ();
-      
-      if (q.args.size () > 0) {		// Ignore empty queries
+    if (lo > 0) {
+      q.docIteratorAdvanceTo (lo);
+    }
+
+    //  A streaming operator that runs out of budget stops the loop,
+    //  but the documents that were scored are kept.
+
+    try {
+      while (q.docIteratorHasMatch (model)) {
+        int docid = q.docIteratorGetMatch ();
+
+        if (docid >= hi)
+          break;
+
+        if ((budget != null) && ! budget.charge (1)) {
+          r.setTruncated (true);
+          break;
+        }
 
-        q.initialize (model);
+        double score = (scorer != null) ?
+          scorer.getScore (docid) : ((QrySop) q).getScore (model);
+        r.add (docid, score);
+        q.docIteratorAdvancePast (docid);
 
-        while (q.docIteratorHasMatch (model)) {
-          int docid = q.docIteratorGetMatch ();
-          double score = ((QrySop) q).getScore (model);
-          r.add (docid, score);
-          q.docIteratorAdvancePast (docid);
+        if (dynamicPruning) {
+          ((QrySop) q).setScoreThreshold (r.getThreshold ());
         }
       }
-      r.sort();
+    } catch (QueryBudget.Exhausted ex) {
+      r.setTruncated (true);
+    }
+  }
+
+  /**
+   * Evaluate an initialized query in parallel, by dividing the docid
+   * space into equal ranges.  Each range after the first is evaluated
+   * by its own copy of the query, which is parsed again and shares
+   * the query's inverted lists, so df, ctf, and the other collection
+   * statistics are the same as in serial evaluation, and so are the
+   * scores.  The first range is evaluated by the query itself, on the
+   * calling thread.  Each range keeps its own top documents, and
+   * because every document is in one range, the best documents of
+   * all ranges include the best documents overall.
+   * @param qString The query string that q was parsed from.
+   * @param q The query, initialized.
+   * @param model The retrieval model.
+   * @param depth The number of results to keep.
+   * @param budget The query's budget, or null.  Each range gets an
+   *   equal part of it.
+   * @return The best documents, not sorted.
+   * @throws IOException Error accessing the index
+   */
+  private static ScoreList evaluatePartitions (final String qString, final Qry q,
+                                               final RetrievalModel model,
+                                               final int depth,
+                                               QueryBudget budget)
+    throws IOException {
+
+    ForkJoinPool threads = partitionThreads;
+    int n = threads.getParallelism ();
+    final int maxDoc = Idx.INDEXREADER.maxDoc ();
+    List<Future<ScoreList>> futures = new ArrayList<Future<ScoreList>> ();
+
+    try {
+      for (int p = 1; p < n; p++) {
+        final int lo = (int) ((long) maxDoc * p / n);
+        final int hi = (int) ((long) maxDoc * (p + 1) / n);
+        final QueryBudget part = (budget == null) ? null : budget.part (n);
+
+        futures.add (threads.submit (() -> {
+              Qry copy = parseAndOptimizeQuery (qString, model);
+              ScoreList r = new ScoreList (depth);
+
+              QueryBudget.setCurrent (part);
+
+              try {
+                shareInvertedLists (copy, q);
+                copy.initialize (model);
+                evaluateRange (copy, model, r, lo, hi, part);
+              } catch (QueryBudget.Exhausted ex) {
+                r.setTruncated (true);
+              } finally {
+                QueryBudget.setCurrent (null);
+              }
+
+              return r;
+            }));
+      }
+
+      ScoreList r = new ScoreList (depth);
+
+      evaluateRange (q, model, r, 0, (int) ((long) maxDoc / n),
+                     (budget == null) ? null : budget.part (n));
+
+      for (Future<ScoreList> future : futures) {
+        ScoreList r_p;
+
+        try {
+          r_p = future.get ();
+        } catch (ExecutionException ex) {
+          throw taskFailure (ex.getCause ());
+        }
+
+        if (r_p.isTruncated ()) {
+          r.setTruncated (true);
+        }
+
+        for (int i = 0; i < r_p.size (); i++) {
+          r.add (r_p.getDocid (i), r_p.getDocidScore (i));
+        }
+      }
+
       return r;
-    } else
-      return null;
+    } catch (InterruptedException ex) {
+      Thread.currentThread ().interrupt ();
+      throw new InterruptedIOException ("Query evaluation was interrupted.");
+    } finally {
+      for (Future<ScoreList> future : futures) {
+        future.cancel (true);
+      }
+    }
+  }
+
+  /**
+   * Make the inverted list operators of a copy of a query share the
+   * inverted lists of the original query's operators.
+   * @param copy A copy of the query, not initialized.
+   * @param original The query, initialized.
+   */
+  private static void shareInvertedLists (Qry copy, Qry original) {
+
+    if (copy instanceof QryIop) {
+      ((QryIop) copy).shareInvertedList ((QryIop) original);
+    }
+
+    for (int i = 0; i < copy.args.size (); i++) {
+      shareInvertedLists (copy.args.get (i), original.args.get (i));
+    }
+  }
+
+  /**
+   *  Report how many locations a query didn't read because no query
+   *  operator uses them, and how much memory the query's inverted
+   *  lists would have used to store them, if reporting is enabled.
+   *  @param qString The query.
+   *  @param q The query, after it is evaluated.
+   */
+  private static void reportPositionsSkipped (String qString, Qry q) {
+
+    if (! reportPositionsSkipped)
+      return;
+
+    long[] totals = new long[2];
+
+    addPositionsSkipped (q, totals);
+    System.err.println ("Locations not read:  " + totals[0] + " (" +
+                        String.format ("%.1f", totals[1] / 1024.0) +
+                        " KB of postings memory) for " + qString.trim ());
+  }
+
+  /**
+   *  Add the locations that the terms of a query didn't read, and
+   *  the memory that they didn't use, to running totals.
+   *  @param q A query.
+   *  @param totals The number of locations and the number of bytes.
+   */
+  private static void addPositionsSkipped (Qry q, long[] totals) {
+
+    if (q instanceof QryIopTerm) {
+      totals[0] += ((QryIopTerm) q).getPositionsSkipped ();
+      totals[1] += ((QryIopTerm) q).getBytesSaved ();
+    }
+
+    for (Qry q_i : q.args) {
+      addPositionsSkipped (q_i, totals);
+    }
   }
 
   /**
@@ -691,44 +1265,24 @@ public class QryEval {
                                RetrievalModel model, String output)
       throws IOException {
 
-    BufferedReader input = null;
     PrintWriter writer = new PrintWriter(output);
 
     try {
-      String qLine = null;
+      ArrayList<String> qids = new ArrayList<String>();
+      ArrayList<String> queries = new ArrayList<String>();
 
-      input = new BufferedReader(new FileReader(queryFilePath));
+      readQueryFile(queryFilePath, qids, queries);
 
-      //  Each pass of the loop processes one query.
+      List<ScoreList> results = processQueries(queries, model, outputLength);
 
-      while ((qLine = input.readLine()) != null) {
-        int d = qLine.indexOf(':');
-
-        if (d < 0) {
-          throw new IllegalArgumentException
-            ("Syntax error:  Missing ':' in query line.");
-        }
-
-        //printMemoryUsage(false);
-
-        String qid = qLine.substring(0, d);
-        String query = qLine.substring(d + 1);
-
-        //System.out.println("Query " + qLine);
-
-        ScoreList r = null;
-
-        r = processQuery(query, model);
-
-        if (r != null) {
-          printResults(qid, r, writer);
-          //System.out.println();
+      for (int i = 0; i < results.size(); i++) {
+        if (results.get(i) != null) {
+          printResults(qids.get(i), results.get(i), writer);
         }
       }
     } catch (IOException ex) {
       ex.printStackTrace();
     } finally {
-      input.close();
       writer.close();
     }
   }
@@ -736,107 +1290,249 @@ public class QryEval {
   static void processQueryFile(String queryFilePath, ArrayList<String> expandedQueries, double fbOrigWeight,
                                RetrievalModel model, String output)
           throws IOException {
-    BufferedReader input = null;
+
     PrintWriter writer = new PrintWriter(output);
 
     try {
-      int i = 0;
+      ArrayList<String> qids = new ArrayList<String>();
+      ArrayList<String> queries = new ArrayList<String>();
 
+      readQueryFile(queryFilePath, qids, queries);
 
+      //  Combine each original query with its expansion terms.
 
-      String qLine = null;
-      String addedLine = null;
-      input = new BufferedReader(new FileReader(queryFilePath));
-
-      //  Each pass of the loop processes one query.
-
-      while ((qLine = input.readLine()) != null) {
+      for (int i = 0; i < queries.size(); i++) {
+        String query = "#wand ( " + fbOrigWeight + " #and ( " + queries.get(i) +
+                " ) " + Double.toString(1-fbOrigWeight) + " " + expandedQueries.get(i) + " )";
+        queries.set(i, query);
+      }
 
-        addedLine = expandedQueries.get(i);
-        int d = qLine.indexOf(':');
+      List<ScoreList> results = processQueries(queries, model, outputLength);
 
-        if (d < 0) {
-          throw new IllegalArgumentException
-                  ("Syntax error:  Missing ':' in query line.");
+      for (int i = 0; i < results.size(); i++) {
+        if (results.get(i) != null) {
+          printResults(qids.get(i), results.get(i), writer);
         }
+      }
+    } catch (IOException ex) {
+      ex.printStackTrace();
+    } finally {
+      writer.close();
+    }
+  }
 
-        //printMemoryUsage(false);
+  static ArrayList<ArrayList<DocScore>> processQueryFile(String queryFilePath,
+                               RetrievalModel model, int fbDocs, ArrayList<String> qids)
+          throws IOException {
 
-        String qid = qLine.substring(0, d);
-        //the combined new query
-        String query = "#wand ( " + fbOrigWeight + " #and ( " + qLine.substring(d + 1) +
-                " ) " + Double.toString(1-fbOrigWeight) + " " + addedLine + " )";
+    ArrayList<ArrayList<DocScore>> initialResult = new ArrayList<ArrayList<DocScore>> ();
+
+    try {
+      ArrayList<String> queries = new ArrayList<String>();
 
-        //System.out.println("Query " + query);
+      readQueryFile(queryFilePath, qids, queries);
 
-        ScoreList r = null;
+      List<ScoreList> results = processQueries(queries, model, fbDocs);
 
-        r = processQuery(query, model);
+      for (ScoreList r : results) {
+        ArrayList<DocScore> tmpList = new ArrayList<>();
 
         if (r != null) {
-          printResults(qid, r, writer);
-          //System.out.println();
+          for (int i = 0; i < fbDocs && i < r.size(); i++) {
+            tmpList.add(new DocScore(r.getDocid(i), r.getDocidScore(i)));
+          }
         }
-        i++;
+        initialResult.add(tmpList);
       }
     } catch (IOException ex) {
       ex.printStackTrace();
-    } finally {
-      writer.close();
     }
+    return initialResult;
   }
 
-  static ArrayList<ArrayList<DocScore>> processQueryFile(String queryFilePath,
-                               RetrievalModel model, int fbDocs, ArrayList<String> qids)
-          throws IOException {
+  /**
+   * Read a query file.  Each line is a query id, a ':', and a query.
+   * @param queryFilePath The query file.
+   * @param qids Receives the query ids, in file order.
+   * @param queries Receives the queries, in file order.
+   * @throws IOException Error reading the query file.
+   */
+  static void readQueryFile(String queryFilePath, List<String> qids,
+                            List<String> queries) throws IOException {
 
-    BufferedReader input = null;
-    ArrayList<ArrayList<DocScore>> initialResult = new ArrayList<ArrayList<DocScore>> ();
-    ArrayList<DocScore> tmpList;
+    BufferedReader input = new BufferedReader(new FileReader(queryFilePath));
 
     try {
       String qLine = null;
 
-      input = new BufferedReader(new FileReader(queryFilePath));
-
-      //  Each pass of the loop processes one query.
       while ((qLine = input.readLine()) != null) {
-        tmpList = new ArrayList<>();
         int d = qLine.indexOf(':');
 
         if (d < 0) {
           throw new IllegalArgumentException
-                  ("Syntax error:  Missing ':' in query line.");
+            ("Syntax error:  Missing ':' in query line.");
         }
 
-        //printMemoryUsage(false);
+        qids.add(qLine.substring(0, d));
+        queries.add(qLine.substring(d + 1));
+      }
+    } finally {
+      input.close();
+    }
+  }
 
-        String qid = qLine.substring(0, d);
-        qids.add(qid);
-        String query = qLine.substring(d + 1);
+  /**
+   * Process a batch of queries.  If there are query threads, the
+   * queries are evaluated concurrently, and the queries that are
+   * estimated to be the most expensive are started first; see
+   * estimateCost.  Either way, the results are in query order.
+   * @param queries The queries.
+   * @param model The retrieval model determines how matching and scoring is done.
+   * @param depth The number of results to keep for each query.
+   * @return The search results of each query, in query order.
+   * @throws IOException Error accessing the index
+   */
+  static List<ScoreList> processQueries(List<String> queries,
+                                        final RetrievalModel model,
+                                        final int depth)
+    throws IOException {
 
-        //System.out.println("Query " + qLine);
+    List<Callable<ScoreList>> tasks = new ArrayList<Callable<ScoreList>>();
+    long[] costs = (queryThreads == null) ? null : new long[queries.size()];
 
-        ScoreList r = null;
+    for (int i = 0; i < queries.size(); i++) {
+      final String query = queries.get(i);
 
-        r = processQuery(query, model);
+      tasks.add(() -> processQuery(query, model, depth));
 
-        if (r != null) {
-          for (int i = 0; i < fbDocs && i < r.size(); i++) {
-            tmpList.add(new DocScore(r.getDocid(i), r.getDocidScore(i)));
-            //System.out.println("docid: " + r.getDocid(i) + "doc score: " + r.getDocidScore(i));
-          }
+      if (costs != null) {
+        costs[i] = estimateCost(query, model);
+      }
+    }
 
+    return runTasks(tasks, costs);
+  }
+
+  /**
+   * Estimate the cost of evaluating a query:  the number of postings
+   * in its terms' inverted lists.  The query is parsed, but its
+   * inverted lists are not read.
+   * @param qString A string that contains a query.
+   * @param model The retrieval model.
+   * @return The estimated cost.
+   * @throws IOException Error accessing the index
+   */
+  static long estimateCost(String qString, RetrievalModel model)
+    throws IOException {
+    return estimateCost(parseQuery(qString, model));
+  }
+
+  private static long estimateCost(Qry q) throws IOException {
+
+    if (q instanceof QryIopTerm) {
+      QryIopTerm term = (QryIopTerm) q;
+      return Idx.INDEXREADER.docFreq(new Term(term.getField(), term.getTerm()));
+    }
+
+    long cost = 0;
+
+    for (Qry q_i : q.args) {
+      cost += estimateCost(q_i);
+    }
+
+    return cost;
+  }
+
+  /**
+   * Run tasks, and return their results in task order.  If there are
+   * query threads, the tasks run on them, and they are started in
+   * order of decreasing cost, so that an expensive task doesn't start
+   * last and delay the end of the batch.  Otherwise they run in order
+   * on the calling thread.
+   * @param tasks The tasks.
+   * @param costs The estimated cost of each task, or null if the
+   *   tasks should be started in order.
+   * @return The results of the tasks.
+   * @throws IOException A task failed to access the index.
+   */
+  private static <T> List<T> runTasks(List<Callable<T>> tasks, long[] costs)
+    throws IOException {
+
+    List<T> results = new ArrayList<T>(tasks.size());
+    ExecutorService threads = queryThreads;
+
+    if ((threads == null) || (tasks.size() < 2)) {
+      for (Callable<T> task : tasks) {
+        try {
+          results.add(task.call());
+        } catch (Exception ex) {
+          throw taskFailure(ex);
         }
-        initialResult.add(tmpList);
       }
-    } catch (IOException ex) {
-      ex.printStackTrace();
+      return results;
+    }
+
+    //  Start the tasks in order of decreasing cost.  The sort is
+    //  stable, so tasks that have the same cost start in order.
+
+    Integer[] order = new Integer[tasks.size()];
+
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+
+    if (costs != null) {
+      Arrays.sort(order, (i, j) -> Long.compare(costs[j], costs[i]));
+    }
+
+    List<Future<T>> futures = new ArrayList<Future<T>>(Collections.nCopies(tasks.size(), (Future<T>) null));
+
+    try {
+      for (int i : order) {
+        futures.set(i, threads.submit(tasks.get(i)));
+      }
+
+      for (Future<T> future : futures) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException ex) {
+          throw taskFailure(ex.getCause());
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Query evaluation was interrupted.");
     } finally {
-      input.close();
+      for (Future<T> future : futures) {
+        if (future != null) {
+          future.cancel(true);
+        }
+      }
     }
-    return initialResult;
+
+    return results;
   }
+
+  /**
+   * Convert the failure of a task into an exception that its caller
+   * can throw:  index errors and unchecked exceptions are rethrown
+   * as they are, and anything else is wrapped in an IOException.
+   * @param cause The task's exception.
+   * @return The exception to throw.
+   */
+  private static IOException taskFailure(Throwable cause) {
+
+    if (cause instanceof IOException) {
+      return (IOException) cause;
+    } else if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    } else if (cause instanceof Error) {
+      throw (Error) cause;
+    } else {
+      return new IOException(cause);
+    }
+  }
+
   /**
    * Print the query results.
    * 
@@ -858,8 +1554,8 @@ public class QryEval {
     if (result.size() < 1) {
       writer.println(queryName + "\tQ0\t" + "dummy\t1\t0\t" + "run-1");
     } else {
-      for (int i = 0; i < 100 && i < result.size(); i++) {
-        writer.println(queryName + "\tQ0\t" + Idx.getExternalDocid(result.getDocid(i)) + "\t"
+      for (int i = 0; i < outputLength && i < result.size(); i++) {
+        writer.println(queryName + "\tQ0\t" + result.getExternalDocid(i) + "\t"
                 + (i+1) + "\t" + formatter.format(result.getDocidScore(i)) + "\trun-1");
       }
     }
@@ -869,10 +1565,11 @@ public class QryEval {
    * Read the specified parameter file, and confirm that the required
    * parameters are present.  The parameters are returned in a
    * HashMap.  The caller (or its minions) are responsible for
-   * processing them.
+   * processing them.  A parameter file that starts the query server
+   * (serverPort) doesn't need a query file or an output file.
    * @return The parameters, in <key, value> format.
    */
-  private static Map<String, String> readParameterFile (String parameterFileName)
+  static Map<String, String> readParameterFile (String parameterFileName)
     throws IOException {
 
     Map<String, String> parameters = new HashMap<String, String>();
@@ -894,9 +1591,11 @@ public class QryEval {
 
     scan.close();
 
+    boolean server = parameters.containsKey ("serverPort");
+
     if (! (parameters.containsKey ("indexPath") &&
-           parameters.containsKey ("queryFilePath") &&
-           parameters.containsKey ("trecEvalOutputPath") &&
+           (server || parameters.containsKey ("queryFilePath")) &&
+           (server || parameters.containsKey ("trecEvalOutputPath")) &&
            parameters.containsKey ("retrievalAlgorithm"))) {
       throw new IllegalArgumentException
         ("Required parameters were missing from the parameter file.");
@@ -0,0 +1,121 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A benchmark for top-k query evaluation.  It reads a QryEval
+ *  parameter file and evaluates each query in the query file twice:
+ *  exhaustively, and with dynamic pruning.  For each query, it
+ *  reports the number of documents that were scored and the median
+ *  latency of each mode, and checks that the rankings are identical.
+ *  <pre>
+ *    java QryEvalBenchmark paramFile [repetitions]
+ *  </pre>
+ */
+public class QryEvalBenchmark {
+
+  /**
+   *  The number of times each query is evaluated before timing
+   *  begins, to warm up the JIT compiler and the postings cache.
+   */
+  private static final int WARMUP = 3;
+
+  /**
+   *  @param args paramFile [repetitions]
+   *  @throws Exception Error accessing the index or reading a file.
+   */
+  public static void main (String[] args) throws Exception {
+
+    if (args.length < 1) {
+      throw new IllegalArgumentException
+        ("Usage:  java QryEvalBenchmark paramFile [repetitions]");
+    }
+
+    Map<String, String> parameters = QryEval.readParameterFile (args[0]);
+    RetrievalModel model = QryEval.initialize (parameters);
+    int repetitions = (args.length > 1) ? Integer.parseInt (args[1]) : 10;
+
+    BufferedReader input =
+      new BufferedReader (new FileReader (parameters.get ("queryFilePath")));
+    String qLine;
+    long[] totalScored = new long[2];
+    double[] totalMs = new double[2];
+    int differences = 0;
+
+    System.out.println ("qid\tscored\tpruned scored\tms\tpruned ms\tsame ranking");
+
+    while ((qLine = input.readLine ()) != null) {
+
+      int d = qLine.indexOf (':');
+
+      if (d < 0) {
+        throw new IllegalArgumentException
+          ("Syntax error:  Missing ':' in query line.");
+      }
+
+      String qid = qLine.substring (0, d);
+      String query = qLine.substring (d + 1);
+      ScoreList[] results = new ScoreList[2];
+      double[] ms = new double[2];
+
+      for (int mode = 0; mode < 2; mode++) {
+        QryEval.setDynamicPruning (mode == 1);
+
+        double[] times = new double[repetitions];
+
+        for (int rep = 0; rep < WARMUP + repetitions; rep++) {
+          long start = System.nanoTime ();
+          results[mode] = QryEval.processQuery (query, model);
+
+          if (rep >= WARMUP)
+            times[rep - WARMUP] = (System.nanoTime () - start) / 1e6;
+        }
+
+        Arrays.sort (times);
+        ms[mode] = times[times.length / 2];
+        totalMs[mode] += ms[mode];
+        totalScored[mode] += (results[mode] == null) ? 0 : results[mode].getNumAdded ();
+      }
+
+      boolean same = sameRanking (results[0], results[1]);
+
+      if (! same)
+        differences++;
+
+      System.out.println (qid + "\t" +
+                          ((results[0] == null) ? 0 : results[0].getNumAdded ()) + "\t" +
+                          ((results[1] == null) ? 0 : results[1].getNumAdded ()) + "\t" +
+                          String.format ("%.3f\t%.3f", ms[0], ms[1]) + "\t" +
+                          (same ? "yes" : "NO"));
+    }
+
+    input.close ();
+
+    System.out.println ("total\t" + totalScored[0] + "\t" + totalScored[1] + "\t" +
+                        String.format ("%.3f\t%.3f", totalMs[0], totalMs[1]) + "\t" +
+                        ((differences == 0) ? "yes" : (differences + " differ")));
+  }
+
+  /**
+   *  Returns true if two result lists have the same documents and
+   *  scores in the same order.
+   */
+  private static boolean sameRanking (ScoreList a, ScoreList b) {
+
+    if ((a == null) || (b == null))
+      return (a == b);
+
+    if (a.size () != b.size ())
+      return false;
+
+    for (int i = 0; i < a.size (); i++)
+      if ((a.getDocid (i) != b.getDocid (i)) ||
+          (a.getDocidScore (i) != b.getDocidScore (i)))
+        return false;
+
+    return true;
+  }
+}
@@ -25,6 +25,12 @@ import java.util.*;
  *  The QryIop.locIterator is initialized automatically each time
  *  Qry.docIteratorHasMatch finds a match; no additional initialization
  *  is required.
+ *  </p><p>
+ *  Some QryIop operators can also run in a streaming mode, in which
+ *  postings are produced on demand, one document at a time, rather
+ *  than cached in a full inverted list.  A streaming operator
+ *  implements streamAdvanceTo and streamLoadPositions; the
+ *  docIterator and locIterator methods are the same in both modes.
  */
 public abstract class QryIop extends Qry {
 
@@ -33,7 +39,8 @@ public abstract class QryIop extends Qry {
    * 
    *  Iteration in QryIop and QrySop is very different.  In QryIop,
    *  docIterator and locIterator iterate over the cached inverted
-   *  list, NOT recursively over the query arguments.
+   *  list, NOT recursively over the query arguments.  In streaming
+   *  mode, they iterate over the current posting of the stream.
    */
 
   /**
@@ -63,6 +70,68 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  The docid of a stream that has no more postings.
+   */
+  protected static final int STREAM_EXHAUSTED = Integer.MAX_VALUE;
+
+  /**
+   *  True if the operator produces its postings on demand instead of
+   *  caching a full inverted list.  Set by evaluate or streamOpen.
+   */
+  protected boolean streaming = false;
+
+  /**
+   *  The document frequency (df) and collection term frequency (ctf)
+   *  of a streaming operator.  Set by evaluate or streamOpen.
+   */
+  protected int streamDf = 0;
+  protected int streamCtf = 0;
+
+  /**
+   *  The posting that a streaming docIterator points to now.  The
+   *  docid is STREAM_EXHAUSTED when there are no more postings.  The
+   *  locations are loaded only if a locIterator method asks for them.
+   */
+  protected int streamDocid = QryIop.STREAM_EXHAUSTED;
+  protected int streamTf = 0;
+  protected int[] streamPositions = new int[16];
+  private boolean streamPositionsLoaded = false;
+
+  /**
+   *  The budget of the query that initialized a streaming operator.
+   *  streamAdvanceTo charges it for each document that it examines,
+   *  as evaluate does.  Null if the query has no budget.
+   */
+  protected QueryBudget streamBudget = null;
+
+  /**
+   *  True if operators that compute their postings from their
+   *  arguments' postings should stream them when the retrieval model
+   *  doesn't use their df and ctf; see streamOpen.
+   */
+  private static boolean streamOperators = false;
+
+  /**
+   *  True if a parent operator uses the operator's locations.  If it
+   *  is false, only docids and tfs are needed, so the operator may
+   *  read its postings without locations.  Set by the parent before
+   *  the operator is initialized; see argsNeedPositions.
+   */
+  protected boolean needsPositions = false;
+
+  /**
+   *  An operator whose inverted list this operator shares instead of
+   *  evaluating its own, or null; see shareInvertedList.
+   */
+  private QryIop sharedOperator = null;
+
+  /**
+   *  The largest tf in the inverted list, or -1 if it hasn't been
+   *  computed yet.
+   */
+  private int maxTf = -1;
+
 
 
   public int getDocIteratorIndex (){
@@ -75,11 +144,23 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (this.streaming) {
+      if (this.streamDocid <= docid) {
+        if (docid == Integer.MAX_VALUE)
+          this.docIteratorFinish ();
+        else
+          this.streamAdvance (docid + 1);
+      }
+      this.locIteratorIndex = 0;
+      return;
     }
-           
+
+    if (docid == Integer.MAX_VALUE)
+      this.docIteratorIndex = this.invertedList.df;
+    else
+      this.docIteratorIndex =
+        this.invertedList.advanceDocIndex (this.docIteratorIndex, docid + 1);
+
     this.locIteratorIndex = 0;
   }
 
@@ -90,11 +171,16 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
+    if (this.streaming) {
+      if (this.streamDocid < docid)
+        this.streamAdvance (docid);
+      this.locIteratorIndex = 0;
+      return;
     }
-           
+
+    this.docIteratorIndex =
+      this.invertedList.advanceDocIndex (this.docIteratorIndex, docid);
+
     this.locIteratorIndex = 0;
   }
 
@@ -103,7 +189,10 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    this.streamDocid = QryIop.STREAM_EXHAUSTED;
+
+    if (! this.streaming)
+      this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -114,16 +203,43 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int docIteratorGetMatch () {
+    if (this.streaming)
+      return this.streamDocid;
     return this.invertedList.getDocid (this.docIteratorIndex);
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the term frequency of the document that the docIterator
+   *  points to now, or throw an error if the docIterator doesn't
+   *  point at a document.
+   *  @return The term frequency.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchTf () {
+    if (this.streaming)
+      return this.streamTf;
+    return this.invertedList.getTf (this.docIteratorIndex);
+  }
+
+  /**
+   *  Copy the locations of the document that the docIterator points
+   *  to now into a buffer, or throw an error if the docIterator
+   *  doesn't point at a document.  The buffer is replaced by a larger
+   *  one if it is too small.  Use docIteratorGetMatchTf to determine
+   *  how many locations were copied.
+   *  @param buffer A buffer that may be reused.
+   *  @return The buffer that contains the locations.
+   */
+  public int[] docIteratorGetMatchPositions (int[] buffer) {
+    if (this.streaming) {
+      this.streamEnsurePositions ();
+
+      if ((buffer == null) || (buffer.length < this.streamTf))
+        buffer = new int[this.streamTf];
+
+      System.arraycopy (this.streamPositions, 0, buffer, 0, this.streamTf);
+      return buffer;
+    }
+    return this.invertedList.getPositions (this.docIteratorIndex, buffer);
   }
 
   /**
@@ -132,6 +248,8 @@ public abstract class QryIop extends Qry {
    *  @return True if the query matches a document, otherwise false.
    */
   public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.streaming)
+      return (this.streamDocid != QryIop.STREAM_EXHAUSTED);
     return (this.docIteratorIndex < this.invertedList.df);
   }
 
@@ -142,6 +260,8 @@ public abstract class QryIop extends Qry {
    *  @return The collection term frequency (ctf).
    */
   public int getCtf () {
+    if (this.streaming)
+      return this.streamCtf;
     return this.invertedList.ctf;
   }
 
@@ -152,9 +272,44 @@ public abstract class QryIop extends Qry {
    *  @return The document frequency (df).
    */
   public int getDf () {
+    if (this.streaming)
+      return this.streamDf;
     return this.invertedList.df;
   }
 
+  /**
+   *  Estimate the cost of iterating over the operator's matches,
+   *  which is its document frequency.  It is an error to call this
+   *  method before the object's initialize method is called.
+   *  @param r The retrieval model that determines what is a match
+   *  @return The document frequency (df).
+   */
+  public long getCost (RetrievalModel r) {
+    return this.getDf ();
+  }
+
+  /**
+   *  Get the largest term frequency of any document in the inverted
+   *  list.  This is used to bound scores.  It is an error to call
+   *  this method before the object's initialize method is called.
+   *  @return The largest tf, or Integer.MAX_VALUE if it isn't known.
+   */
+  public int getMaxTf () {
+    if (this.streaming)
+      return Integer.MAX_VALUE;
+
+    if (this.maxTf < 0) {
+      int max = 0;
+
+      for (int n = 0; n < this.invertedList.df; n++)
+        max = Math.max (max, this.invertedList.getTf (n));
+
+      this.maxTf = max;
+    }
+
+    return this.maxTf;
+  }
+
   /**
    *  Get the field associated with this query operator.
    *  @return The field associated with this query operator.
@@ -170,6 +325,134 @@ public abstract class QryIop extends Qry {
    */
   protected abstract void evaluate () throws IOException;
 
+  /**
+   *  Prepare to compute the operator's postings on demand instead of
+   *  evaluating a full inverted list:  a document's posting is
+   *  computed only when the docIterator reaches it, so the arguments
+   *  are read only at the documents that the rest of the query asks
+   *  about.  streamDf and streamCtf are estimates, so this is used
+   *  only when the retrieval model doesn't use them.  Operators that
+   *  can stream override this method to set streaming, streamDf, and
+   *  streamCtf, and return true.
+   *  @return True if the operator will stream its postings.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected boolean streamOpen () throws IOException {
+    return false;
+  }
+
+  /**
+   *  Advance a streaming operator to the first posting whose docid
+   *  is greater than or equal to docid, and set streamDocid and
+   *  streamTf.  The stream is positioned before docid when this
+   *  method is called.  It is called only if streamOpen returned true.
+   *  @param docid The document's internal document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected abstract void streamAdvanceTo (int docid) throws IOException;
+
+  /**
+   *  Copy the locations of the current posting of a streaming
+   *  operator into streamPositions, which must be grown if it is too
+   *  small.  This is called at most once per posting, and only for
+   *  postings that weren't set by streamSetPosting.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected abstract void streamLoadPositions () throws IOException;
+
+  /**
+   *  Set the current posting of a streaming operator whose locations
+   *  were computed to decide whether the document matches.
+   *  @param docid The document's internal document id
+   *  @param positions The locations.
+   *  @param tf The number of locations.
+   */
+  protected void streamSetPosting (int docid, int[] positions, int tf) {
+
+    if (this.streamPositions.length < tf)
+      this.streamPositions = new int[2 * tf];
+
+    System.arraycopy (positions, 0, this.streamPositions, 0, tf);
+    this.streamDocid = docid;
+    this.streamTf = tf;
+    this.streamPositionsLoaded = true;
+  }
+
+  /**
+   *  Set whether operators that compute their postings from their
+   *  arguments' postings stream them when the retrieval model allows
+   *  it; see streamOpen.
+   *  @param stream True if operators should be streamed.
+   */
+  public static void setStreamOperators (boolean stream) {
+    QryIop.streamOperators = stream;
+  }
+
+  /**
+   *  Advance a streaming operator, converting index errors into
+   *  unchecked exceptions, because docIterators can't throw them.
+   *  @param docid The document's internal document id
+   */
+  private void streamAdvance (int docid) {
+    try {
+      this.streamPositionsLoaded = false;
+      this.streamAdvanceTo (docid);
+    } catch (IOException ex) {
+      throw new UncheckedIOException (ex);
+    }
+  }
+
+  /**
+   *  Make sure that the locations of the current posting of a
+   *  streaming operator are loaded.
+   */
+  private void streamEnsurePositions () {
+    if (! this.streamPositionsLoaded) {
+      try {
+        this.streamLoadPositions ();
+        this.streamPositionsLoaded = true;
+      } catch (IOException ex) {
+        throw new UncheckedIOException (ex);
+      }
+    }
+  }
+
+  /**
+   *  Share another operator's inverted list when this operator is
+   *  initialized, instead of evaluating the operator again.  The
+   *  other operator must be a copy of this one (e.g., from parsing
+   *  the same query), and it must be initialized first.  Copies of a
+   *  query can then iterate over different parts of the docid space
+   *  with the same inverted lists, so their df and ctf are the same.
+   *  If the other operator streams its postings, there is no list to
+   *  share, and this operator is initialized as usual.  The arguments
+   *  of the two operators are paired in the same way by the caller.
+   *  @param other The operator whose inverted list is shared.
+   */
+  public void shareInvertedList (QryIop other) {
+    this.sharedOperator = other;
+  }
+
+  /**
+   *  Returns true if the operator uses its arguments' locations.  By
+   *  default the arguments' locations are needed only if this
+   *  operator's locations are; positional operators (e.g., #NEAR/n)
+   *  override this method to return true.
+   *  @return True if the arguments must read their locations.
+   */
+  protected boolean argsNeedPositions () {
+    return this.needsPositions;
+  }
+
+  /**
+   *  Returns true if a retrieval model doesn't use the df and ctf of
+   *  query operators, so they may be estimated.
+   */
+  private static boolean ignoresStatistics (RetrievalModel r) {
+    return ((r instanceof RetrievalModelUnrankedBoolean) ||
+            (r instanceof RetrievalModelRankedBoolean));
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
@@ -178,20 +461,45 @@ public abstract class QryIop extends Qry {
    */
   public void initialize(RetrievalModel r) throws IOException {
 
-    //  Initialize the query arguments (if any).
+    QryIop shared = this.sharedOperator;
 
-    for (Qry q_i: this.args) {
-      ((QryIop) q_i).initialize (r);
-    }
+    if ((shared != null) && (shared.invertedList != null) && ! shared.streaming) {
+
+      //  Use a view of the other operator's inverted list.  The
+      //  arguments aren't needed.
+
+      this.invertedList = shared.invertedList.share ();
+      this.streaming = false;
+    } else {
 
-    //  Evaluate the operator.
-    
-    this.evaluate ();
+      //  Initialize the query arguments (if any).
+
+      for (Qry q_i: this.args) {
+        ((QryIop) q_i).needsPositions = this.argsNeedPositions ();
+        ((QryIop) q_i).initialize (r);
+      }
+
+      //  Evaluate the operator, or, if the retrieval model doesn't use
+      //  its df and ctf, let it compute its postings on demand.
+
+      if (! (QryIop.streamOperators && QryIop.ignoresStatistics (r) && this.streamOpen ()))
+        this.evaluate ();
+
+      //  Optionally, keep the operator's inverted list in compressed form.
+
+      if (Idx.getCompressPostings () && ! this.streaming)
+        this.invertedList = this.invertedList.compress ();
+    }
 
     //  Initialize the internal iterators.
 
+    this.maxTf = -1;
     this.docIteratorIndex = 0;
     this.locIteratorIndex = 0;
+    this.streamBudget = QueryBudget.current ();
+
+    if (this.streaming && (this.streamDocid != QryIop.STREAM_EXHAUSTED))
+      this.streamAdvance (0);
   }
   
  /**
@@ -208,13 +516,19 @@ public abstract class QryIop extends Qry {
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
-
-    while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
-      locIteratorIndex ++;
+    if (this.streaming) {
+      this.streamEnsurePositions ();
+
+      while ((this.locIteratorIndex < this.streamTf) &&
+             (this.streamPositions[this.locIteratorIndex] <= loc)) {
+        locIteratorIndex ++;
+      }
+      return;
     }
+
+    this.locIteratorIndex =
+      this.invertedList.advancePositionIndex (this.docIteratorIndex,
+                                              this.locIteratorIndex, loc);
   }
 
   /**
@@ -222,8 +536,13 @@ public abstract class QryIop extends Qry {
    *  any possible location.
    */
   public void locIteratorFinish () {
+    if (this.streaming) {
+      this.locIteratorIndex = this.streamTf;
+      return;
+    }
+
     this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+      this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -234,8 +553,13 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    if (this.streaming) {
+      this.streamEnsurePositions ();
+      return this.streamPositions[this.locIteratorIndex];
+    }
+
+    return this.invertedList.getPosition (this.docIteratorIndex,
+                                          this.locIteratorIndex);
   }
 
   /**
@@ -244,6 +568,9 @@ public abstract class QryIop extends Qry {
    *  @return True if the iterator currently points to a location.
    */
   public boolean locIteratorHasMatch () {
+    if (this.streaming)
+      return (this.locIteratorIndex < this.streamTf);
+
     return (this.locIteratorIndex <
             this.invertedList.getTf (this.docIteratorIndex));
   }
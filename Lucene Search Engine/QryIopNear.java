@@ -3,24 +3,34 @@
  */
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Vector;
 
 /**
  *  The NEAR/n operator for all retrieval models.
  */
 public class QryIopNear extends QryIop {
 
+  /**
+   *  Scratch buffers that are reused for each document, so that
+   *  evaluation doesn't allocate new arrays per posting:  the
+   *  locations that match the arguments so far, and the next
+   *  argument's locations.
+   */
+  private int[] positions = new int[16];
+  private int[] argPositions = new int[16];
+
+  /**
+   *  NEAR/n matches its arguments' locations.
+   *  @return True.
+   */
+  protected boolean argsNeedPositions () {
+    return true;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
-
-
-
   protected void evaluate () throws IOException {
 
     //  Create an empty inverted list.  If there are no query arguments,
@@ -31,100 +41,122 @@ public class QryIopNear extends QryIop {
     if (args.size () == 0) {
       return;
     }
-    //  If arguments have no same DocID, we are done
-    if (!this.docIteratorHasMatchAll(null)){
-      return;
-    }
 
     //  Each pass of the loop adds 1 document to result inverted list
-    //  until any of the argument inverted lists is depleted.
+    //  until any of the argument inverted lists is depleted.  The
+    //  arguments are aligned on a document in order of cost, so the
+    //  rarest argument leads; see Qry.docIteratorHasMatchAll.  Each
+    //  document is charged to the query's budget.
 
-    // If any document id is INVALID, we are done.
-    boolean flagdone = false;
+    QueryBudget budget = QueryBudget.current ();
 
-    while (!flagdone) {
+    while (this.docIteratorHasMatchAll (null)) {
 
+      QueryBudget.check (budget);
 
-      for (Qry q_i: this.args) {
-        if (!q_i.docIteratorHasMatch (null)) {
-          flagdone = true;
-        }else {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          if (q_iDocid == Qry.INVALID_DOCID)
-            flagdone = true;
-        }
-      }
+      int docid = this.args.get(0).docIteratorGetMatch();
+      int npositions = this.matchPositions ();
 
-      if (flagdone)
-        break;				// A docid has been depleted.  Done.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-      // find the minimum docid, and find if all args have the same docid
-      int minDocid = this.args.get(0).docIteratorGetMatch();
-
-      // debug
-
-      int minindex = 0;
-      boolean flagsamedocid = true;
-
-      for (int i = 0; i < this.args.size(); i++) {
-        if (this.args.get(i).docIteratorGetMatch() != minDocid)
-          flagsamedocid = false;
-        if (this.args.get(i).docIteratorGetMatch() < minDocid) {
-          minDocid = this.args.get(i).docIteratorGetMatch();
-          minindex = i;
-        }
+      if (npositions > 0) {
+        this.invertedList.appendPosting(docid, this.positions, npositions);
       }
 
-      if (!flagsamedocid){//docids not same
-        this.args.get(minindex).docIteratorAdvancePast(minDocid);
-      } else{//same doc ids, try to find matches
+      //  Advance all doc iterators.
+
+      for (Qry q_i : this.args) {
+        q_i.docIteratorAdvancePast(docid);
+      }
+    }
+  }
 
-        ArrayList<Integer> positions;// = new ArrayList<Integer>();
+  /**
+   *  Prepare to compute the operator's postings on demand.  A
+   *  document can't match more often than any argument does, so df
+   *  and ctf are estimated by the arguments' smallest df and ctf.
+   *  @return True if the operator will stream its postings.
+   */
+  protected boolean streamOpen () {
 
+    if (args.size () == 0) {
+      return false;
+    }
 
-        //find all matches in this doc
+    this.streaming = true;
+    this.streamDocid = -1;		// Before the first posting.
+    this.streamDf = Integer.MAX_VALUE;
+    this.streamCtf = Integer.MAX_VALUE;
 
-        ArrayList<Integer> tmppositions;
-        QryIop argi = (QryIop) this.args.get(0);
+    for (Qry q_i : this.args) {
+      this.streamDf = Math.min (this.streamDf, ((QryIop) q_i).getDf ());
+      this.streamCtf = Math.min (this.streamCtf, ((QryIop) q_i).getCtf ());
+    }
 
-        positions = new ArrayList<Integer>((argi.docIteratorGetMatchPosting().positions));
+    return true;
+  }
 
-        int tmploc1;
-        int tmploc2;
-        for (int i=1; i < this.args.size(); i++){
-          argi = (QryIop) this.args.get(i);
+  /**
+   *  Advance the operator to the first document at or after docid
+   *  that all of the arguments match in order.  Locations are matched
+   *  only for documents that all of the arguments contain.
+   *  @param docid The document's internal document id
+   */
+  protected void streamAdvanceTo (int docid) {
 
+    this.docIteratorAdvanceArgs (docid, false);
 
-          tmppositions = positions;
+    while (this.docIteratorHasMatchAll (null)) {
 
-          positions = new ArrayList<Integer>();
-          for(int j=0; j < tmppositions.size() && argi.locIteratorHasMatch();){
-            tmploc1 = tmppositions.get(j);
-            tmploc2 = argi.locIteratorGetMatch();
-            if (tmploc1 > tmploc2){
-              argi.locIteratorAdvance();
-            } else if (tmploc2 - tmploc1 > this.para){
-              j++;
-            } else{// match
-              positions.add(tmploc2);
-              j++;
-              argi.locIteratorAdvance();
-            }
-          }
-        }
-        if (! positions.isEmpty()){
-          this.invertedList.appendPosting(minDocid, positions);
-        }
+      QueryBudget.check (this.streamBudget);
 
+      int d = this.args.get(0).docIteratorGetMatch();
+      int npositions = this.matchPositions ();
 
-        //advance all doc iterators
-        for (Qry q_i: this.args){
-          q_i.docIteratorAdvancePast(minDocid);
-        }
+      if (npositions > 0) {
+        this.streamSetPosting (d, this.positions, npositions);
+        return;
       }
+
+      this.docIteratorAdvanceArgs (d, true);
     }
 
+    this.streamDocid = QryIop.STREAM_EXHAUSTED;
+  }
+
+  /**
+   *  The locations of each posting are matched, and set with
+   *  streamSetPosting, when streamAdvanceTo finds it, so there is
+   *  nothing to load.
+   */
+  protected void streamLoadPositions () {
   }
 
+  /**
+   *  Match the locations of the document that all of the arguments
+   *  point to now.  The matches are left in positions.
+   *  @return The number of matches.
+   */
+  private int matchPositions () {
+
+    //  Note:  This implementation assumes that a location will not appear
+    //  in two or more arguments.  #SYN (apple apple) would break it.
+
+    //  Match the arguments' locations in query order; see
+    //  PositionKernels.near.  The matches are written over the
+    //  locations that they match.
+
+    QryIop arg = (QryIop) this.args.get(0);
+    int npositions = arg.docIteratorGetMatchTf();
+
+    this.positions = arg.docIteratorGetMatchPositions(this.positions);
+
+    for (int i=1; (i < this.args.size()) && (npositions > 0); i++) {
+      arg = (QryIop) this.args.get(i);
+      this.argPositions = arg.docIteratorGetMatchPositions(this.argPositions);
+      npositions = PositionKernels.near(this.positions, npositions,
+                                        this.argPositions, arg.docIteratorGetMatchTf(),
+                                        this.para, this.positions);
+    }
+
+    return npositions;
+  }
 }
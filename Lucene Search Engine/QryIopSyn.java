@@ -9,6 +9,24 @@ import java.util.*;
  */
 public class QryIopSyn extends QryIop {
 
+  /**
+   *  Scratch buffers that are reused for each document, so that
+   *  evaluation doesn't allocate new arrays per posting:  the merged
+   *  positions, the indexes of the arguments that match the document,
+   *  and each matching argument's positions and tf.
+   */
+  private int[] positions = new int[16];
+  private int[] matchingArgs;
+  private int[][] argPositions;
+  private int[] argTfs;
+  private final PositionKernels kernels = new PositionKernels ();
+
+  /**
+   *  The number of arguments in matchingArgs that match the current
+   *  posting of a streaming operator.
+   */
+  private int streamMatchingArgs = 0;
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -19,55 +37,179 @@ public class QryIopSyn extends QryIop {
     //  Create an empty inverted list.  If there are no query arguments,
     //  that's the final result.
     
-    this.invertedList = new InvList (this.getField());
+    this.invertedList = new InvList (this.getField(), this.needsPositions);
 
     if (args.size () == 0) {
       return;
     }
 
+    this.allocateBuffers ();
+
     //  Each pass of the loop adds 1 document to result inverted list
-    //  until all of the argument inverted lists are depleted.
+    //  until all of the argument inverted lists are depleted.  The
+    //  minimum next document id is found with docIteratorGetMinDocid,
+    //  which uses a heap when there are many arguments.  Each document
+    //  is charged to the query's budget.
 
-    while (true) {
+    QueryBudget budget = QueryBudget.current ();
 
-      //  Find the minimum next document id.  If there is none, we're done.
+    while (true) {
 
-      int minDocid = Qry.INVALID_DOCID;
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null)) {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocid > q_iDocid) ||
-              (minDocid == Qry.INVALID_DOCID)) {
-            minDocid = q_iDocid;
-          }
-        }
-      }
+      int minDocid = this.docIteratorGetMinDocid (null);
 
       if (minDocid == Qry.INVALID_DOCID)
         break;				// All docids have been processed.  Done.
+
+      QueryBudget.check (budget);
       
       //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-
-      List<Integer> positions = new ArrayList<Integer>();
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
-	}
+      //  that match the minDocid.  Save it.  If no parent uses the
+      //  locations, only the tfs are added.
+
+      int m = this.docIteratorGetMatchingArgs (null, minDocid, this.matchingArgs);
+
+      if (this.needsPositions) {
+        int tf = this.loadArgPositions (m);
+
+        if (this.positions.length < tf)
+          this.positions = new int[2 * tf];
+
+        this.kernels.merge (this.argPositions, this.argTfs, m, this.positions);
+        this.invertedList.appendPosting (minDocid, this.positions, tf);
+      } else {
+        this.invertedList.appendPosting (minDocid, this.getMatchingTf (m));
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      for (int j = 0; j < m; j++) {
+        this.args.get (this.matchingArgs[j]).docIteratorAdvancePast (minDocid);
+      }
     }
   }
 
+  /**
+   *  Prepare to compute the operator's postings on demand.  ctf is
+   *  the sum of the arguments' ctf, and df is estimated by the sum of
+   *  their df.
+   *  @return True if the operator will stream its postings.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected boolean streamOpen () throws IOException {
+
+    if (args.size () == 0) {
+      return false;
+    }
+
+    this.allocateBuffers ();
+
+    long df = 0;
+    long ctf = 0;
+
+    for (Qry q_i : this.args) {
+      df += ((QryIop) q_i).getDf ();
+      ctf += ((QryIop) q_i).getCtf ();
+    }
+
+    this.streaming = true;
+    this.streamDocid = -1;		// Before the first posting.
+    this.streamDf = (int) Math.min (df, Idx.getNumDocs ());
+    this.streamCtf = (int) Math.min (ctf, Integer.MAX_VALUE);
+    return true;
+  }
+
+  /**
+   *  Advance the operator to the first document at or after docid
+   *  that any argument matches.  The tf is the sum of the matching
+   *  arguments' tfs; their locations are merged only if they are
+   *  needed.
+   *  @param docid The document's internal document id
+   */
+  protected void streamAdvanceTo (int docid) {
+
+    this.docIteratorAdvanceArgs (docid, false);
+
+    int minDocid = this.docIteratorGetMinDocid (null);
+
+    if (minDocid == Qry.INVALID_DOCID) {
+      this.streamDocid = QryIop.STREAM_EXHAUSTED;
+      return;
+    }
+
+    QueryBudget.check (this.streamBudget);
+
+    this.streamMatchingArgs =
+      this.docIteratorGetMatchingArgs (null, minDocid, this.matchingArgs);
+    this.streamDocid = minDocid;
+    this.streamTf = this.getMatchingTf (this.streamMatchingArgs);
+  }
+
+  /**
+   *  Merge the locations of the arguments that match the current
+   *  posting.
+   */
+  protected void streamLoadPositions () {
+
+    int m = this.streamMatchingArgs;
+
+    this.loadArgPositions (m);
+
+    if (this.streamPositions.length < this.streamTf)
+      this.streamPositions = new int[2 * this.streamTf];
+
+    this.kernels.merge (this.argPositions, this.argTfs, m, this.streamPositions);
+  }
+
+  /**
+   *  Allocate the buffers that have one element per argument.
+   */
+  private void allocateBuffers () {
+    int n = this.args.size ();
+
+    this.matchingArgs = new int[n];
+    this.argPositions = new int[n][];
+    this.argTfs = new int[n];
+  }
+
+  /**
+   *  Get the sum of the tfs of the arguments in matchingArgs.
+   *  @param m The number of matching arguments.
+   *  @return The total tf.
+   */
+  private int getMatchingTf (int m) {
+
+    int tf = 0;
+
+    for (int j = 0; j < m; j++) {
+      tf += ((QryIop) this.args.get (this.matchingArgs[j])).docIteratorGetMatchTf ();
+    }
+
+    return tf;
+  }
+
+  /**
+   *  Copy the locations and tfs of the arguments in matchingArgs into
+   *  argPositions and argTfs.
+   *  @param m The number of matching arguments.
+   *  @return The total number of locations.
+   */
+  private int loadArgPositions (int m) {
+
+    //  Note:  This implementation assumes that a location will not appear
+    //  in two or more arguments.  #SYN (apple apple) would break it.
+
+    int tf = 0;
+
+    for (int j = 0; j < m; j++) {
+      QryIop iop_j = (QryIop) this.args.get (this.matchingArgs[j]);
+
+      this.argTfs[j] = iop_j.docIteratorGetMatchTf ();
+
+      if (this.argPositions[j] == null)
+        this.argPositions[j] = new int[Math.max (16, this.argTfs[j])];
+
+      this.argPositions[j] = iop_j.docIteratorGetMatchPositions (this.argPositions[j]);
+      tf += this.argTfs[j];
+    }
+
+    return tf;
+  }
 }
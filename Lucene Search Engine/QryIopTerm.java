@@ -4,18 +4,53 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the term's inverted list is copied from Lucene when the
+ *  operator is initialized.  In streaming mode, the docIterator
+ *  reads Lucene's postings directly, and locations are decoded only
+ *  if a positional parent (e.g., #NEAR/n) asks for them, so memory
+ *  use doesn't grow with df and conjunctions touch only the parts of
+ *  long inverted lists that they need.  If the postings cache is
+ *  enabled, it takes precedence over streaming.
+ *  </p>
+ *  <p>
+ *  If no parent uses the term's locations (e.g., the term is only
+ *  scored), the postings are read without locations in either mode.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
+  /**
+   *  Whether terms read their postings in streaming mode.
+   */
+  private static boolean streamPostings = false;
+
   private String term;
 
+  /**
+   *  Lucene's postings for the term, in streaming mode.
+   */
+  private DocsEnum postings = null;
+
+  /**
+   *  The number of locations that weren't read because no parent
+   *  uses them, and the amount of memory that the inverted list
+   *  would have used to store them.  Set by evaluate, and in
+   *  streaming mode, as postings are read.
+   */
+  private long positionsSkipped = 0;
+  private long bytesSaved = 0;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,13 +70,145 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term string.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    this.positionsSkipped = 0;
+    this.bytesSaved = 0;
+
+    if (QryIopTerm.streamPostings && (Idx.getInvListCache () == null) &&
+        ! Idx.hasSnapshotInvList (this.term, this.field)) {
+      this.openPostings ();
+    } else {
+      this.invertedList = Idx.getInvList(this.term, this.field, this.needsPositions);
+
+      if (! this.invertedList.hasPositions ()) {
+        this.positionsSkipped = this.invertedList.ctf;
+        this.bytesSaved = 4L * ((long) this.invertedList.ctf + this.invertedList.df);
+      }
+    }
+  }
+
+  /**
+   *  Prepare to stream the term's postings from Lucene.  The term is
+   *  looked up once, and the terms enumerator supplies df and ctf.
+   *  Those statistics include deleted documents, so if the index has
+   *  deletions, df and ctf are counted over the live documents, which
+   *  reads frequencies but not locations.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void openPostings () throws IOException {
+
+    this.streaming = true;
+    this.streamDocid = QryIop.STREAM_EXHAUSTED;
+    this.streamDf = 0;
+    this.streamCtf = 0;
+    this.postings = null;
+
+    Terms terms = MultiFields.getTerms (Idx.INDEXREADER, this.field);
+    TermsEnum termsEnum = (terms == null) ? null : terms.iterator (null);
+
+    if ((termsEnum == null) ||
+        (! termsEnum.seekExact (new BytesRef (this.term), true))) {
+      return;
+    }
+
+    Bits liveDocs = MultiFields.getLiveDocs (Idx.INDEXREADER);
+
+    if (liveDocs == null) {
+      this.streamDf = termsEnum.docFreq ();
+      this.streamCtf = (int) termsEnum.totalTermFreq ();
+    } else {
+      DocsEnum docs = termsEnum.docs (liveDocs, null, DocsEnum.FLAG_FREQS);
+
+      while (docs.nextDoc () != DocIdSetIterator.NO_MORE_DOCS) {
+        this.streamDf ++;
+        this.streamCtf += docs.freq ();
+      }
+    }
+
+    if (this.needsPositions) {
+      this.postings = termsEnum.docsAndPositions (liveDocs, null);
+    } else {
+      this.postings = termsEnum.docs (liveDocs, null, DocsEnum.FLAG_FREQS);
+    }
+    this.streamDocid = -1;		// Before the first posting.
+  }
+
+  /**
+   *  Advance the Lucene postings to the first document whose docid
+   *  is greater than or equal to docid.
+   *  @param docid The document's internal document id
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void streamAdvanceTo (int docid) throws IOException {
+
+    int d = (docid == this.postings.docID () + 1) ?
+      this.postings.nextDoc () : this.postings.advance (docid);
+
+    if (d == DocIdSetIterator.NO_MORE_DOCS) {
+      this.streamDocid = QryIop.STREAM_EXHAUSTED;
+    } else {
+      this.streamDocid = d;
+      this.streamTf = this.postings.freq ();
+
+      if (! this.needsPositions)
+        this.positionsSkipped += this.streamTf;
+    }
+  }
+
+  /**
+   *  Decode the locations of the current Lucene posting.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void streamLoadPositions () throws IOException {
+
+    if (this.streamPositions.length < this.streamTf)
+      this.streamPositions = new int[this.streamTf];
+
+    DocsAndPositionsEnum positions = (DocsAndPositionsEnum) this.postings;
+
+    for (int j = 0; j < this.streamTf; j++)
+      this.streamPositions[j] = positions.nextPosition ();
+  }
+
+  /**
+   *  Get the number of locations that weren't read because no parent
+   *  uses them.  In streaming mode, this counts the postings that
+   *  have been read so far.
+   *  @return The number of locations.
+   */
+  public long getPositionsSkipped () {
+    return this.positionsSkipped;
+  }
+
+  /**
+   *  Get the amount of memory that the term's inverted list would
+   *  have used to store the locations that weren't read.
+   *  @return The number of bytes.
+   */
+  public long getBytesSaved () {
+    return this.bytesSaved;
+  }
+
+  /**
+   *  Set whether terms read their postings in streaming mode.
+   *  @param stream True if postings should be streamed.
+   */
+  public static void setStreaming (boolean stream) {
+    QryIopTerm.streamPostings = stream;
   }
 
   /**
@@ -3,21 +3,35 @@
  */
 
 import java.io.IOException;
-import java.util.ArrayList;
 
 /**
- *  The NEAR/n operator for all retrieval models.
+ *  The WINDOW/n operator for all retrieval models.
  */
 public class QryIopWindow extends QryIop {
 
+  /**
+   *  Scratch buffers that are reused for each document, so that
+   *  evaluation doesn't allocate new arrays per posting:  the matched
+   *  locations, and each argument's locations and tf.
+   */
+  private int[] positions = new int[16];
+  private int[][] argPositions;
+  private int[] argTfs;
+  private final PositionKernels kernels = new PositionKernels ();
+
+  /**
+   *  WINDOW/n matches its arguments' locations.
+   *  @return True.
+   */
+  protected boolean argsNeedPositions () {
+    return true;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
-
-
-
   protected void evaluate () throws IOException {
 
     //  Create an empty inverted list.  If there are no query arguments,
@@ -28,112 +42,127 @@ public class QryIopWindow extends QryIop {
     if (args.size () == 0) {
       return;
     }
-    //  If arguments have no same DocID, we are done
-    if (!this.docIteratorHasMatchAll(null)){
-      return;
-    }
+
+    int n = this.args.size();
+
+    this.argPositions = new int[n][];
+    this.argTfs = new int[n];
 
     //  Each pass of the loop adds 1 document to result inverted list
-    //  until any of the argument inverted lists is depleted.
+    //  until any of the argument inverted lists is depleted.  The
+    //  arguments are aligned on a document in order of cost, so the
+    //  rarest argument leads; see Qry.docIteratorHasMatchAll.  Each
+    //  document is charged to the query's budget.
+
+    QueryBudget budget = QueryBudget.current ();
 
-    // If any document id is INVALID, we are done.
-    boolean flagdone = false;
+    while (this.docIteratorHasMatchAll (null)) {
 
-    while (!flagdone) {
+      QueryBudget.check (budget);
 
+      int docid = this.args.get(0).docIteratorGetMatch();
+      int npositions = this.matchPositions ();
 
-      for (Qry q_i: this.args) {
-        if (!q_i.docIteratorHasMatch (null)) {
-          flagdone = true;
-        }else {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          if (q_iDocid == Qry.INVALID_DOCID)
-            flagdone = true;
-        }
+      if (npositions > 0) {
+        this.invertedList.appendPosting(docid, this.positions, npositions);
       }
 
-      if (flagdone)
-        break;				// A docid has been depleted.  Done.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-      // find the minimum docid, and find if all args have the same docid
-      int minDocid = this.args.get(0).docIteratorGetMatch();
-
-      // debug
-
-      int minindex = 0;
-      boolean flagsamedocid = true;
-
-      for (int i = 0; i < this.args.size(); i++) {
-        if (this.args.get(i).docIteratorGetMatch() != minDocid)
-          flagsamedocid = false;
-        if (this.args.get(i).docIteratorGetMatch() < minDocid) {
-          minDocid = this.args.get(i).docIteratorGetMatch();
-          minindex = i;
-        }
+      //  Advance all doc iterators.
+
+      for (Qry q_i : this.args) {
+        q_i.docIteratorAdvancePast(docid);
       }
+    }
+  }
+
+  /**
+   *  Prepare to compute the operator's postings on demand.  A
+   *  document can't match more often than any argument does, so df
+   *  and ctf are estimated by the arguments' smallest df and ctf.
+   *  @return True if the operator will stream its postings.
+   */
+  protected boolean streamOpen () {
+
+    if (args.size () == 0) {
+      return false;
+    }
+
+    this.argPositions = new int[this.args.size()][];
+    this.argTfs = new int[this.args.size()];
+
+    this.streaming = true;
+    this.streamDocid = -1;		// Before the first posting.
+    this.streamDf = Integer.MAX_VALUE;
+    this.streamCtf = Integer.MAX_VALUE;
 
-      if (!flagsamedocid){//docids not same
-        this.args.get(minindex).docIteratorAdvancePast(minDocid);
-      } else{//same doc ids, try to find matches
-
-        ArrayList<Integer> positions = new ArrayList<Integer>();
-
-
-        //find all matches in this doc
-
-        QryIop argi;
-
-        int tmploc;
-        int maxloc;
-        int minloc;
-        int minlocindex;
-        boolean flaglocvalid = true;
-        while (flaglocvalid) {
-          maxloc = 0;
-          minloc = Integer.MAX_VALUE;
-          minlocindex = -1;
-          for (int i = 0; i < this.args.size(); i++) {
-            argi = (QryIop) this.args.get(i);
-            tmploc = argi.locIteratorGetMatch();
-            if (tmploc > maxloc){
-              maxloc = tmploc;
-            }
-            if (tmploc < minloc){
-              minloc = tmploc;
-              minlocindex = i;
-            }
-
-          }
-          if ((1 + maxloc - minloc) > this.para){//no match
-            argi = (QryIop) this.args.get(minlocindex);
-            argi.locIteratorAdvance();
-            if (!argi.locIteratorHasMatch()){
-              break;
-            }
-          } else {//match
-            positions.add(maxloc);
-            for (Qry q_i : this.args) {
-              ((QryIop)q_i).locIteratorAdvance();
-              if (!(((QryIop)q_i).locIteratorHasMatch())){
-                flaglocvalid = false;
-                break;
-              }
-            }
-          }
-        }
-        if (!positions.isEmpty()) {
-          this.invertedList.appendPosting(minDocid, positions);
-        }
-
-
-        //advance all doc iterators
-        for (Qry q_i : this.args) {
-          q_i.docIteratorAdvancePast(minDocid);
-        }
+    for (Qry q_i : this.args) {
+      this.streamDf = Math.min (this.streamDf, ((QryIop) q_i).getDf ());
+      this.streamCtf = Math.min (this.streamCtf, ((QryIop) q_i).getCtf ());
+    }
+
+    return true;
+  }
+
+  /**
+   *  Advance the operator to the first document at or after docid
+   *  that has a window that contains all of the arguments.  Locations
+   *  are matched only for documents that all of the arguments contain.
+   *  @param docid The document's internal document id
+   */
+  protected void streamAdvanceTo (int docid) {
+
+    this.docIteratorAdvanceArgs (docid, false);
+
+    while (this.docIteratorHasMatchAll (null)) {
+
+      QueryBudget.check (this.streamBudget);
+
+      int d = this.args.get(0).docIteratorGetMatch();
+      int npositions = this.matchPositions ();
+
+      if (npositions > 0) {
+        this.streamSetPosting (d, this.positions, npositions);
+        return;
       }
+
+      this.docIteratorAdvanceArgs (d, true);
     }
 
+    this.streamDocid = QryIop.STREAM_EXHAUSTED;
+  }
+
+  /**
+   *  The locations of each posting are matched, and set with
+   *  streamSetPosting, when streamAdvanceTo finds it, so there is
+   *  nothing to load.
+   */
+  protected void streamLoadPositions () {
   }
 
+  /**
+   *  Match the locations of the document that all of the arguments
+   *  point to now.  The matches are left in positions.
+   *  @return The number of matches.
+   */
+  private int matchPositions () {
+
+    //  Note:  This implementation assumes that a location will not appear
+    //  in two or more arguments.  #SYN (apple apple) would break it.
+
+    int n = this.args.size();
+    int minTf = Integer.MAX_VALUE;
+
+    for (int i = 0; i < n; i++) {
+      QryIop arg = (QryIop) this.args.get(i);
+
+      this.argTfs[i] = arg.docIteratorGetMatchTf();
+      this.argPositions[i] = arg.docIteratorGetMatchPositions(this.argPositions[i]);
+      minTf = Math.min(minTf, this.argTfs[i]);
+    }
+
+    if (this.positions.length < minTf)
+      this.positions = new int[2 * minTf];
+
+    return this.kernels.window(this.argPositions, this.argTfs, n, this.para, this.positions);
+  }
 }
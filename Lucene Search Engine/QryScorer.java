@@ -0,0 +1,529 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  A scorer that is compiled from an initialized query for one
+ *  retrieval model.  The query operators' getScore methods check the
+ *  retrieval model with instanceof at every level of the tree for
+ *  every document, and call their arguments through QrySop, which
+ *  has many implementations.  A compiled scorer checks the model
+ *  once.  Each node is specialized for one operator and one model,
+ *  and SCORE arguments are scored by the node itself with direct
+ *  calls to QrySopScore, so only nested operators are called through
+ *  QryScorer.
+ *  <p>
+ *  Indri geometric means (#AND and #WAND) are calculated in log
+ *  space, as weighted sums of the logs of their arguments' scores,
+ *  so no document needs Math.pow, and products of many small
+ *  probabilities don't underflow.  Scores are the same as the query
+ *  operators' scores up to rounding.
+ *  </p><p>
+ *  The query still does the matching; the scorer only scores the
+ *  document that the query matched.
+ *  </p>
+ */
+public abstract class QryScorer {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Compile an initialized query into a scorer.
+   *  @param q The query.
+   *  @param r The retrieval model that the query was initialized for.
+   *  @return The scorer, or null if the query has an operator that
+   *    the model doesn't support.  The query's getScore reports the
+   *    error.
+   */
+  public static QryScorer compile (Qry q, RetrievalModel r) {
+
+    if (! supports (q, r)) {
+      return null;
+    }
+
+    //  Every operator that the unranked Boolean model supports gives
+    //  a score of 1 to the documents that it matches.
+
+    if (r instanceof RetrievalModelUnrankedBoolean) {
+      return new Constant (1.0);
+    }
+
+    if (q instanceof QrySopScore) {
+      if (r instanceof RetrievalModelIndri) {
+        return new IndriTerm ((QrySopScore) q);
+      } else {
+        return new Term ((QrySopScore) q, r);
+      }
+    }
+
+    return compileOperator (q, r);
+  }
+
+  /**
+   *  Compile a query operator that isn't a SCORE operator.
+   */
+  private static QryScorer compileOperator (Qry q, RetrievalModel r) {
+
+    if (r instanceof RetrievalModelRankedBoolean) {
+      if (q instanceof QrySopAnd) {
+        return new RankedBooleanAnd (q, r);
+      } else {
+        return new RankedBooleanOr (q, r);
+      }
+    } else if (r instanceof RetrievalModelBM25) {
+      return new BM25Sum (q, r);
+    } else {
+      if (q instanceof QrySopWSum) {
+        return new IndriWSum (q, r, ((QrySopWSum) q).getWeightSum ());
+      } else if (q instanceof QrySopOr) {
+        return new IndriOr (q, r);
+      } else {
+        return new IndriGeometricMean (q, r, ((QrySop) q).getGeometricMeanWeights (r));
+      }
+    }
+  }
+
+  /**
+   *  Returns true if every operator in a query has a getScore for
+   *  the retrieval model.
+   */
+  private static boolean supports (Qry q, RetrievalModel r) {
+
+    if (q instanceof QrySopScore) {
+      return ((r instanceof RetrievalModelUnrankedBoolean) ||
+              (r instanceof RetrievalModelRankedBoolean) ||
+              (r instanceof RetrievalModelBM25) ||
+              (r instanceof RetrievalModelIndri));
+    }
+
+    boolean operatorSupported;
+
+    if ((r instanceof RetrievalModelUnrankedBoolean) ||
+        (r instanceof RetrievalModelRankedBoolean)) {
+      operatorSupported = (q instanceof QrySopAnd) || (q instanceof QrySopOr);
+    } else if (r instanceof RetrievalModelBM25) {
+      operatorSupported = (q instanceof QrySopSum);
+    } else if (r instanceof RetrievalModelIndri) {
+      operatorSupported =
+        (q instanceof QrySopAnd) || (q instanceof QrySopWAnd) ||
+        (q instanceof QrySopWSum) || (q instanceof QrySopOr);
+    } else {
+      operatorSupported = false;
+    }
+
+    if ((! operatorSupported) || (q.args.size () == 0)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! ((q_i instanceof QrySop) && supports (q_i, r))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Get the score of a document that the query matched.
+   *  @param docid The internal document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public abstract double getScore (int docid) throws IOException;
+
+  /**
+   *  Get the Indri score of a document that the query doesn't match.
+   *  @param docid The internal document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultScore (int docid) throws IOException {
+    return 0.0;
+  }
+
+  /**
+   *  Get the log of getScore.  Operators whose scores are products
+   *  override this method instead of getScore.
+   *  @param docid The internal document id.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (int docid) throws IOException {
+    return Math.log (this.getScore (docid));
+  }
+
+  /**
+   *  Get the log of getDefaultScore.
+   *  @param docid The internal document id.
+   *  @return The log of the document's default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogDefaultScore (int docid) throws IOException {
+    return Math.log (this.getDefaultScore (docid));
+  }
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A scorer that gives every document the same score.
+   */
+  private static final class Constant extends QryScorer {
+
+    private final double score;
+
+    private Constant (double score) {
+      this.score = score;
+    }
+
+    public double getScore (int docid) {
+      return this.score;
+    }
+  }
+
+  /**
+   *  A SCORE operator that is the whole query, for the ranked Boolean
+   *  model and BM25.
+   */
+  private static final class Term extends QryScorer {
+
+    private final QrySopScore leaf;
+    private final QryIop postings;
+    private final boolean bm25;
+
+    private Term (QrySopScore leaf, RetrievalModel r) {
+      this.leaf = leaf;
+      this.postings = (QryIop) leaf.args.get (0);
+      this.bm25 = (r instanceof RetrievalModelBM25);
+    }
+
+    public double getScore (int docid) throws IOException {
+      double tf = this.postings.docIteratorGetMatchTf ();
+
+      return this.bm25 ? this.leaf.scoreBM25 (docid, tf) : tf;
+    }
+  }
+
+  /**
+   *  The base class of the operators.  Each argument is either a
+   *  SCORE operator, which the operator scores itself, or a compiled
+   *  nested operator.
+   */
+  private abstract static class Operator extends QryScorer {
+
+    /**
+     *  The query arguments, for match tests; for SCORE arguments, the
+     *  operator and its inverted list, otherwise null; and for other
+     *  arguments, their scorers, otherwise null.
+     */
+    protected final Qry[] args;
+    protected final QrySopScore[] leaves;
+    protected final QryIop[] postings;
+    protected final QryScorer[] nodes;
+
+    protected Operator (Qry q, RetrievalModel r) {
+      int n = q.args.size ();
+
+      this.args = new Qry[n];
+      this.leaves = new QrySopScore[n];
+      this.postings = new QryIop[n];
+      this.nodes = new QryScorer[n];
+
+      for (int i = 0; i < n; i++) {
+        Qry q_i = q.args.get (i);
+
+        this.args[i] = q_i;
+
+        if (q_i instanceof QrySopScore) {
+          this.leaves[i] = (QrySopScore) q_i;
+          this.postings[i] = (QryIop) q_i.args.get (0);
+        } else {
+          this.nodes[i] = compileOperator (q_i, r);
+        }
+      }
+    }
+
+    /**
+     *  Returns true if argument i matches a docid.
+     */
+    protected final boolean matches (int i, int docid) {
+      Qry q_i = this.args[i];
+
+      return (q_i.docIteratorHasMatchCache () &&
+              (q_i.docIteratorGetMatch () == docid));
+    }
+
+    /**
+     *  The Indri score of argument i:  its score if it matches the
+     *  docid, otherwise its default score.
+     */
+    protected final double indriScore (int i, int docid) throws IOException {
+      QrySopScore leaf = this.leaves[i];
+
+      if (this.matches (i, docid)) {
+        return (leaf != null) ?
+          leaf.scoreIndri (docid, this.postings[i].docIteratorGetMatchTf ()) :
+          this.nodes[i].getScore (docid);
+      } else {
+        return (leaf != null) ?
+          leaf.defaultScoreIndri (docid) :
+          this.nodes[i].getDefaultScore (docid);
+      }
+    }
+
+    /**
+     *  The log of the Indri score of argument i.
+     */
+    protected final double indriLogScore (int i, int docid) throws IOException {
+      QrySopScore leaf = this.leaves[i];
+
+      if (leaf != null) {
+        return Math.log (this.indriScore (i, docid));
+      } else if (this.matches (i, docid)) {
+        return this.nodes[i].getLogScore (docid);
+      } else {
+        return this.nodes[i].getLogDefaultScore (docid);
+      }
+    }
+
+    /**
+     *  The Indri default score of argument i.
+     */
+    protected final double indriDefaultScore (int i, int docid) throws IOException {
+      QrySopScore leaf = this.leaves[i];
+
+      return (leaf != null) ?
+        leaf.defaultScoreIndri (docid) :
+        this.nodes[i].getDefaultScore (docid);
+    }
+
+    /**
+     *  The log of the Indri default score of argument i.
+     */
+    protected final double indriLogDefaultScore (int i, int docid) throws IOException {
+      QrySopScore leaf = this.leaves[i];
+
+      return (leaf != null) ?
+        Math.log (leaf.defaultScoreIndri (docid)) :
+        this.nodes[i].getLogDefaultScore (docid);
+    }
+  }
+
+  /**
+   *  #AND for the ranked Boolean model:  the smallest argument score.
+   *  Every argument matches the document.
+   */
+  private static final class RankedBooleanAnd extends Operator {
+
+    private RankedBooleanAnd (Qry q, RetrievalModel r) {
+      super (q, r);
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = Double.POSITIVE_INFINITY;
+
+      for (int i = 0; i < this.args.length; i++) {
+        double score_i = (this.leaves[i] != null) ?
+          this.postings[i].docIteratorGetMatchTf () :
+          this.nodes[i].getScore (docid);
+
+        if (score_i < score) {
+          score = score_i;
+        }
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  #OR for the ranked Boolean model:  the largest score of the
+   *  arguments that match the document.
+   */
+  private static final class RankedBooleanOr extends Operator {
+
+    private RankedBooleanOr (Qry q, RetrievalModel r) {
+      super (q, r);
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.matches (i, docid)) {
+          double score_i = (this.leaves[i] != null) ?
+            this.postings[i].docIteratorGetMatchTf () :
+            this.nodes[i].getScore (docid);
+
+          if (score_i > score) {
+            score = score_i;
+          }
+        }
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  #SUM for BM25:  the sum of the scores of the arguments that match
+   *  the document.
+   */
+  private static final class BM25Sum extends Operator {
+
+    private BM25Sum (Qry q, RetrievalModel r) {
+      super (q, r);
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (this.matches (i, docid)) {
+          QrySopScore leaf = this.leaves[i];
+
+          score += (leaf != null) ?
+            leaf.scoreBM25 (docid, this.postings[i].docIteratorGetMatchTf ()) :
+            this.nodes[i].getScore (docid);
+        }
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  A SCORE operator that is the whole query, for Indri.
+   */
+  private static final class IndriTerm extends QryScorer {
+
+    private final QrySopScore leaf;
+    private final QryIop postings;
+
+    private IndriTerm (QrySopScore leaf) {
+      this.leaf = leaf;
+      this.postings = (QryIop) leaf.args.get (0);
+    }
+
+    public double getScore (int docid) throws IOException {
+      return this.leaf.scoreIndri (docid, this.postings.docIteratorGetMatchTf ());
+    }
+
+    public double getDefaultScore (int docid) throws IOException {
+      return this.leaf.defaultScoreIndri (docid);
+    }
+  }
+
+  /**
+   *  #AND and #WAND for Indri:  the weighted geometric mean of the
+   *  arguments' scores, calculated as exp (sum (w_i * log (score_i))).
+   */
+  private static final class IndriGeometricMean extends Operator {
+
+    private final double[] weights;
+
+    private IndriGeometricMean (Qry q, RetrievalModel r, double[] weights) {
+      super (q, r);
+      this.weights = weights;
+    }
+
+    public double getScore (int docid) throws IOException {
+      return Math.exp (this.getLogScore (docid));
+    }
+
+    public double getDefaultScore (int docid) throws IOException {
+      return Math.exp (this.getLogDefaultScore (docid));
+    }
+
+    public double getLogScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.weights[i] * this.indriLogScore (i, docid);
+      }
+
+      return score;
+    }
+
+    public double getLogDefaultScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.weights[i] * this.indriLogDefaultScore (i, docid);
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  #WSUM for Indri:  the weighted mean of the arguments' scores.
+   */
+  private static final class IndriWSum extends Operator {
+
+    private final double[] weights;
+    private final double sumWeight;
+
+    private IndriWSum (Qry q, RetrievalModel r, double sumWeight) {
+      super (q, r);
+      this.weights = new double[q.weights.size ()];
+      this.sumWeight = sumWeight;
+
+      for (int i = 0; i < this.weights.length; i++) {
+        this.weights[i] = q.weights.get (i);
+      }
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.indriScore (i, docid) * this.weights[i] / this.sumWeight;
+      }
+
+      return score;
+    }
+
+    public double getDefaultScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.indriDefaultScore (i, docid) * this.weights[i] / this.sumWeight;
+      }
+
+      return score;
+    }
+  }
+
+  /**
+   *  #OR for Indri:  1 - prod (1 - score_i).
+   */
+  private static final class IndriOr extends Operator {
+
+    private IndriOr (Qry q, RetrievalModel r) {
+      super (q, r);
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score *= 1 - this.indriScore (i, docid);
+      }
+
+      return 1 - score;
+    }
+
+    public double getDefaultScore (int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score *= 1 - this.indriDefaultScore (i, docid);
+      }
+
+      return 1 - score;
+    }
+  }
+}
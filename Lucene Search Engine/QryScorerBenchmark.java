@@ -0,0 +1,143 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A benchmark for compiled scorers.  It reads a QryEval parameter
+ *  file and evaluates each query in the query file twice:  with the
+ *  query operators' getScore, and with a QryScorer.  For each query,
+ *  it reports the median latency of each mode, the largest relative
+ *  difference between the two modes' scores, and whether the
+ *  documents are in the same order.
+ *  <pre>
+ *    java QryScorerBenchmark paramFile [repetitions]
+ *  </pre>
+ */
+public class QryScorerBenchmark {
+
+  /**
+   *  The number of times each query is evaluated before timing
+   *  begins, to warm up the JIT compiler and the postings cache.
+   */
+  private static final int WARMUP = 3;
+
+  /**
+   *  @param args paramFile [repetitions]
+   *  @throws Exception Error accessing the index or reading a file.
+   */
+  public static void main (String[] args) throws Exception {
+
+    if (args.length < 1) {
+      throw new IllegalArgumentException
+        ("Usage:  java QryScorerBenchmark paramFile [repetitions]");
+    }
+
+    Map<String, String> parameters = QryEval.readParameterFile (args[0]);
+    RetrievalModel model = QryEval.initialize (parameters);
+    int repetitions = (args.length > 1) ? Integer.parseInt (args[1]) : 10;
+
+    BufferedReader input =
+      new BufferedReader (new FileReader (parameters.get ("queryFilePath")));
+    String qLine;
+    double[] totalMs = new double[2];
+    double maxDifference = 0;
+    int differences = 0;
+
+    System.out.println ("qid\tresults\tms\tcompiled ms\tscore difference\tsame ranking");
+
+    while ((qLine = input.readLine ()) != null) {
+
+      int d = qLine.indexOf (':');
+
+      if (d < 0) {
+        throw new IllegalArgumentException
+          ("Syntax error:  Missing ':' in query line.");
+      }
+
+      String qid = qLine.substring (0, d);
+      String query = qLine.substring (d + 1);
+      ScoreList[] results = new ScoreList[2];
+      double[] ms = new double[2];
+
+      for (int mode = 0; mode < 2; mode++) {
+        QryEval.setCompileQueries (mode == 1);
+
+        double[] times = new double[repetitions];
+
+        for (int rep = 0; rep < WARMUP + repetitions; rep++) {
+          long start = System.nanoTime ();
+          results[mode] = QryEval.processQuery (query, model);
+
+          if (rep >= WARMUP)
+            times[rep - WARMUP] = (System.nanoTime () - start) / 1e6;
+        }
+
+        Arrays.sort (times);
+        ms[mode] = times[times.length / 2];
+        totalMs[mode] += ms[mode];
+      }
+
+      double difference = scoreDifference (results[0], results[1]);
+      boolean same = sameOrder (results[0], results[1]);
+
+      maxDifference = Math.max (maxDifference, difference);
+
+      if (! same)
+        differences++;
+
+      System.out.println (qid + "\t" +
+                          ((results[0] == null) ? 0 : results[0].size ()) + "\t" +
+                          String.format ("%.3f\t%.3f\t%.2e", ms[0], ms[1], difference) + "\t" +
+                          (same ? "yes" : "NO"));
+    }
+
+    input.close ();
+
+    System.out.println ("total\t\t" +
+                        String.format ("%.3f\t%.3f\t%.2e", totalMs[0], totalMs[1], maxDifference) + "\t" +
+                        ((differences == 0) ? "yes" : (differences + " differ")));
+  }
+
+  /**
+   *  The largest relative difference between the scores of two result
+   *  lists, position by position.
+   */
+  private static double scoreDifference (ScoreList a, ScoreList b) {
+
+    if ((a == null) || (b == null))
+      return 0;
+
+    double difference = 0;
+
+    for (int i = 0; i < Math.min (a.size (), b.size ()); i++) {
+      double scale = Math.max (Math.abs (a.getDocidScore (i)), Double.MIN_NORMAL);
+
+      difference = Math.max (difference,
+                             Math.abs (a.getDocidScore (i) - b.getDocidScore (i)) / scale);
+    }
+
+    return difference;
+  }
+
+  /**
+   *  Returns true if two result lists have the same documents in the
+   *  same order.
+   */
+  private static boolean sameOrder (ScoreList a, ScoreList b) {
+
+    if ((a == null) || (b == null))
+      return (a == b);
+
+    if (a.size () != b.size ())
+      return false;
+
+    for (int i = 0; i < a.size (); i++)
+      if (a.getDocid (i) != b.getDocid (i))
+        return false;
+
+    return true;
+  }
+}
@@ -0,0 +1,353 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+/**
+ *  A query server:  QryEval's daemon mode.  It opens the index once,
+ *  and then evaluates queries that arrive over HTTP, so the index,
+ *  the document lengths, the postings cache, and the JIT-compiled
+ *  code stay warm from one query to the next.
+ *  <p>
+ *  A query is a GET request:
+ *  </p>
+ *  <pre>
+ *    /search?q=#and(apple pie)&amp;qid=1&amp;format=trec
+ *  </pre>
+ *  <p>
+ *  q is the query, in the query language of a query file; qid is
+ *  the query id, which is 0 by default; and format is json (the
+ *  default) or trec.  The response has as many documents as
+ *  trecEvalOutputLength.  A query that can't be parsed gets a 400
+ *  response.  A query that runs out of budget (see QueryBudget) gets
+ *  the documents that it scored, and its JSON response says that it
+ *  was truncated.
+ *  </p>
+ *  <p>
+ *  Concurrency is bounded:  at most serverThreads queries are
+ *  evaluated at once, and at most serverQueueLength more wait for a
+ *  thread.  A query that arrives when the queue is full is rejected
+ *  right away with a 503 response, so an overloaded server answers
+ *  quickly instead of building a backlog of work that its clients
+ *  have given up on.
+ *  </p>
+ *  <p>
+ *  The server is started by a parameter file that has a serverPort
+ *  parameter; queryFilePath and trecEvalOutputPath are optional.  If
+ *  there is a query file, its queries are evaluated once, and the
+ *  results discarded, before the server starts, to warm it up.
+ *  </p>
+ */
+public class QryServer {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The server's address, the number of threads that evaluate
+   *  queries, and the number of queries that can wait for a thread.
+   */
+  private final InetSocketAddress address;
+  private final int threads;
+  private final int queueLength;
+
+  private final RetrievalModel model;
+
+  /**
+   *  The evaluation threads, and the permits of the queries that are
+   *  evaluated or waiting; see handleSearch.
+   */
+  private final ExecutorService workers;
+  private final Semaphore admitted;
+
+  private HttpServer server = null;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param parameters The parameters, from QryEval.readParameterFile.
+   *  @param model The retrieval model.
+   */
+  public QryServer (Map<String, String> parameters, RetrievalModel model) {
+
+    int port = Integer.parseInt (parameters.get ("serverPort"));
+    String host = parameters.containsKey ("serverHost") ?
+      parameters.get ("serverHost") : "localhost";
+
+    this.address = new InetSocketAddress (host, port);
+    this.model = model;
+
+    this.threads = parameters.containsKey ("serverThreads") ?
+      Integer.parseInt (parameters.get ("serverThreads")) :
+      Runtime.getRuntime ().availableProcessors ();
+
+    this.queueLength = parameters.containsKey ("serverQueueLength") ?
+      Integer.parseInt (parameters.get ("serverQueueLength")) :
+      4 * this.threads;
+
+    if (this.threads < 1) {
+      throw new IllegalArgumentException
+        ("serverThreads must be at least 1, not " + this.threads);
+    }
+
+    if (this.queueLength < 0) {
+      throw new IllegalArgumentException
+        ("serverQueueLength must not be negative, not " + this.queueLength);
+    }
+
+    this.workers = Executors.newFixedThreadPool (this.threads, task -> {
+        Thread thread = new Thread (task, "server");
+        thread.setDaemon (true);
+        return thread;
+      });
+    this.admitted = new Semaphore (this.threads + this.queueLength);
+  }
+
+  /**
+   *  Evaluate the queries in the query file, if there is one, and
+   *  discard the results.
+   *  @param queryFilePath The query file, or null.
+   *  @throws IOException Error accessing the index or the query file.
+   */
+  public void warmUp (String queryFilePath) throws IOException {
+
+    if (queryFilePath == null)
+      return;
+
+    List<String> qids = new ArrayList<String> ();
+    List<String> queries = new ArrayList<String> ();
+
+    QryEval.readQueryFile (queryFilePath, qids, queries);
+    QryEval.processQueries (queries, this.model, QryEval.getOutputLength ());
+  }
+
+  /**
+   *  Start the server.  Requests are accepted by the server's own
+   *  thread, which only decides whether to admit them; queries are
+   *  evaluated by the worker threads.
+   *  @throws IOException The server's address can't be used.
+   */
+  public void start () throws IOException {
+
+    this.server = HttpServer.create (this.address, this.threads + this.queueLength);
+    this.server.createContext ("/search", this::handleSearch);
+    this.server.setExecutor (null);
+    this.server.start ();
+
+    System.out.println ("Serving queries at http://" +
+                        this.address.getHostString () + ":" +
+                        this.server.getAddress ().getPort () + "/search with " +
+                        this.threads + " threads and a queue of " +
+                        this.queueLength);
+  }
+
+  /**
+   *  Stop the server.  Queries that are being evaluated are allowed
+   *  to finish.
+   *  @param delay The number of seconds to wait for open exchanges.
+   */
+  public void stop (int delay) {
+
+    if (this.server != null) {
+      this.server.stop (delay);
+      this.server = null;
+    }
+
+    this.workers.shutdown ();
+  }
+
+  /**
+   *  Admit a request and give it to a worker thread, or, if the
+   *  server is already evaluating or holding as many queries as it
+   *  can, reject it.
+   */
+  private void handleSearch (final HttpExchange exchange) throws IOException {
+
+    if (! this.admitted.tryAcquire ()) {
+      send (exchange, 503, "text/plain",
+            "The server is overloaded.  Try again later.\n");
+      return;
+    }
+
+    try {
+      this.workers.execute (() -> {
+          try {
+            this.evaluate (exchange);
+          } finally {
+            this.admitted.release ();
+          }
+        });
+    } catch (RejectedExecutionException ex) {
+      this.admitted.release ();
+      send (exchange, 503, "text/plain", "The server is stopping.\n");
+    }
+  }
+
+  /**
+   *  Evaluate a request's query, and send the response.
+   */
+  private void evaluate (HttpExchange exchange) {
+
+    try {
+      try {
+        if (! "GET".equalsIgnoreCase (exchange.getRequestMethod ())) {
+          send (exchange, 405, "text/plain", "Only GET is supported.\n");
+          return;
+        }
+
+        Map<String, String> request =
+          parseRequest (exchange.getRequestURI ().getRawQuery ());
+        String query = request.get ("q");
+        String qid = request.containsKey ("qid") ? request.get ("qid") : "0";
+        String format = request.containsKey ("format") ? request.get ("format") : "json";
+
+        if ((query == null) || query.trim ().isEmpty ()) {
+          send (exchange, 400, "text/plain", "The q parameter is missing.\n");
+          return;
+        }
+
+        if (! (format.equals ("json") || format.equals ("trec"))) {
+          send (exchange, 400, "text/plain",
+                "The format must be json or trec, not " + format + ".\n");
+          return;
+        }
+
+        long start = System.nanoTime ();
+        ScoreList r = QryEval.processQuery (query, this.model);
+        double ms = (System.nanoTime () - start) / 1e6;
+
+        if (r == null)
+          r = new ScoreList ();
+
+        if (format.equals ("trec")) {
+          StringWriter body = new StringWriter ();
+          PrintWriter writer = new PrintWriter (body);
+
+          QryEval.printResults (qid, r, writer);
+          writer.flush ();
+          send (exchange, 200, "text/plain", body.toString ());
+        } else {
+          send (exchange, 200, "application/json", toJson (qid, query, r, ms));
+        }
+      } catch (IllegalArgumentException ex) {
+        send (exchange, 400, "text/plain", ex.getMessage () + "\n");
+      } catch (Exception ex) {
+        ex.printStackTrace ();
+        send (exchange, 500, "text/plain", String.valueOf (ex) + "\n");
+      }
+    } catch (IOException ex) {
+
+      //  The client went away.  There is nobody to tell.
+
+    } finally {
+      exchange.close ();
+    }
+  }
+
+  /**
+   *  Parse the parameters of a request's query string.  A parameter
+   *  that appears more than once keeps its last value.
+   */
+  private static Map<String, String> parseRequest (String rawQuery)
+    throws UnsupportedEncodingException {
+
+    Map<String, String> request = new HashMap<String, String> ();
+
+    if (rawQuery == null)
+      return request;
+
+    for (String pair : rawQuery.split ("&")) {
+      int d = pair.indexOf ('=');
+
+      if (d < 0) {
+        request.put (URLDecoder.decode (pair, "UTF-8"), "");
+      } else {
+        request.put (URLDecoder.decode (pair.substring (0, d), "UTF-8"),
+                     URLDecoder.decode (pair.substring (d + 1), "UTF-8"));
+      }
+    }
+
+    return request;
+  }
+
+  /**
+   *  A query's results as a JSON object.
+   */
+  private static String toJson (String qid, String query, ScoreList r, double ms)
+    throws IOException {
+
+    StringBuilder json = new StringBuilder ();
+    int n = Math.min (r.size (), QryEval.getOutputLength ());
+
+    json.append ("{\"qid\":").append (quote (qid));
+    json.append (",\"query\":").append (quote (query));
+    json.append (",\"ms\":").append (String.format ("%.3f", ms));
+    json.append (",\"truncated\":").append (r.isTruncated ());
+    json.append (",\"results\":[");
+
+    for (int i = 0; i < n; i++) {
+      if (i > 0)
+        json.append (',');
+
+      json.append ("{\"rank\":").append (i + 1);
+      json.append (",\"docid\":").append (quote (r.getExternalDocid (i)));
+      json.append (",\"score\":").append (r.getDocidScore (i));
+      json.append ('}');
+    }
+
+    json.append ("]}\n");
+    return json.toString ();
+  }
+
+  /**
+   *  A string as a JSON string literal.
+   */
+  private static String quote (String s) {
+
+    StringBuilder quoted = new StringBuilder (s.length () + 2);
+
+    quoted.append ('"');
+
+    for (int i = 0; i < s.length (); i++) {
+      char c = s.charAt (i);
+
+      if ((c == '"') || (c == '\\')) {
+        quoted.append ('\\').append (c);
+      } else if (c < 0x20) {
+        quoted.append (String.format ("\\u%04x", (int) c));
+      } else {
+        quoted.append (c);
+      }
+    }
+
+    return quoted.append ('"').toString ();
+  }
+
+  /**
+   *  Send a response, and close the exchange.
+   */
+  private static void send (HttpExchange exchange, int status,
+                            String contentType, String body)
+    throws IOException {
+
+    byte[] bytes = body.getBytes (StandardCharsets.UTF_8);
+
+    exchange.getResponseHeaders ().set ("Content-Type",
+                                        contentType + "; charset=utf-8");
+    exchange.sendResponseHeaders (status, bytes.length);
+
+    OutputStream output = exchange.getResponseBody ();
+
+    try {
+      output.write (bytes);
+    } finally {
+      output.close ();
+    }
+  }
+}
@@ -2,6 +2,7 @@
  *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
  */
 import java.io.*;
+import java.util.*;
 
 /**
  *  The root class of all query operators that use a retrieval model
@@ -14,6 +15,41 @@ import java.io.*;
  */
 public abstract class QrySop extends Qry {
 
+  /**
+   *  The minimum score that a document needs to enter the results,
+   *  or -Infinity if every document is needed.  Operators that
+   *  support dynamic pruning may skip documents whose scores can't
+   *  reach it; other operators ignore it.
+   */
+  protected double scoreThreshold = Double.NEGATIVE_INFINITY;
+
+  /**
+   *  A relative margin for comparing score bounds to the threshold,
+   *  so that rounding differences between a bound and a score that
+   *  is summed in a different order never prune a document.
+   */
+  private static final double BOUND_MARGIN = 1e-9;
+
+  /**
+   *  WAND state:  the operators whose bounds WAND uses (the arguments,
+   *  or, in log space, the arguments of nested geometric means), their
+   *  weights, their weighted bounds above their default bounds, their
+   *  weighted default bounds and the sum of those, and scratch arrays
+   *  for the operators that have matches, sorted by docid.  The
+   *  weighted block bound of each operator is cached until the docid
+   *  passes the end of its block.
+   */
+  private QrySop[] wandLeaves = null;
+  private double[] wandWeights;
+  private double[] wandBounds;
+  private double[] wandDefaults;
+  private double wandBase;
+  private boolean wandFlattened;
+  private int[] wandOrder;
+  private int[] wandDocids;
+  private double[] wandBlockBounds;
+  private int[] wandBlockEnds;
+
   /**
    *  Get a score for the document that docIteratorHasMatch matched.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -26,6 +62,261 @@ public abstract class QrySop extends Qry {
 
   public abstract double getDefaultScore(RetrievalModel r, int doccid)
     throws IOException;
+
+  /**
+   *  Get an upper bound on the score of any document that the
+   *  operator matches.  It is valid after the operator is initialized.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound, or +Infinity if there is no useful bound.
+   */
+  public double getMaxScore (RetrievalModel r) {
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   *  Get an upper bound on the default score of any document that the
+   *  operator doesn't match.  It is valid after the operator is
+   *  initialized.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound, or +Infinity if there is no useful bound.
+   */
+  public double getMaxDefaultScore (RetrievalModel r) {
+    if (r instanceof RetrievalModelIndri) {
+      return Double.POSITIVE_INFINITY;
+    } else {
+      return 0.0;
+    }
+  }
+
+  /**
+   *  Get an upper bound on the score of the documents that the
+   *  operator matches in the block of the inverted list that contains
+   *  a docid.  Operators that don't have block bounds use
+   *  getMaxScore, and treat the whole list as one block.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal document id.
+   *  @return The upper bound, or +Infinity if there is no useful bound.
+   */
+  public double getBlockMaxScore (RetrievalModel r, int docid) {
+    return this.getMaxScore (r);
+  }
+
+  /**
+   *  Get the last docid of the block that contains a docid.
+   *  @param docid An internal document id.
+   *  @return The last docid of the block, or Integer.MAX_VALUE.
+   */
+  public int getBlockLastDocid (int docid) {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   *  Get the weights of the arguments, if the operator's score is a
+   *  weighted geometric mean of its arguments' scores under a
+   *  retrieval model.  WAND in log space treats the arguments of a
+   *  nested geometric mean as arguments of its parent.  It is valid
+   *  after the operator is initialized.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The weights, which sum to 1, or null.
+   */
+  protected double[] getGeometricMeanWeights (RetrievalModel r) {
+    return null;
+  }
+
+  /**
+   *  Set the minimum score that a document needs to enter the
+   *  results.  The threshold only increases during evaluation.
+   *  @param threshold The minimum score.
+   */
+  public void setScoreThreshold (double threshold) {
+    this.scoreThreshold = threshold;
+  }
+
+  /**
+   *  Block-Max WAND for operators whose score is a weighted sum of
+   *  their arguments' scores, or, in log space, a weighted geometric
+   *  mean.  An argument that doesn't match a document contributes at
+   *  most its maximum default score, so a document's score (or its
+   *  log) is at most the sum of the weighted default bounds, plus,
+   *  for each argument that matches it, the weighted difference
+   *  between that argument's score bound and its default bound.
+   *  <p>
+   *  Sort the arguments by their current docids, and add their bounds
+   *  in that order until the sum reaches the threshold.  The argument
+   *  where that happens is the pivot.  A document before the pivot's
+   *  docid can only match the arguments before the pivot, so its
+   *  score can't reach the threshold.  Then check the same sum with
+   *  the bounds of the blocks that contain the pivot's docid.  If it
+   *  can't reach the threshold, no document before the end of the
+   *  first of those blocks can either, so the arguments skip past
+   *  it.  Otherwise, if the first argument is already at the pivot's
+   *  docid, that document is the match; if not, the arguments before
+   *  the pivot skip to it, and the search repeats.
+   *  </p><p>
+   *  In log space, arguments that are themselves geometric means are
+   *  replaced by their arguments, with the products of the weights,
+   *  which is the same score with tighter bounds.  Those arguments
+   *  are advanced directly, so the nested operators find their
+   *  matches again before the match is returned.
+   *  </p><p>
+   *  If any bound is infinite, nothing can be skipped, and every
+   *  document that an argument matches is a match.
+   *  </p>
+   *  @param r The retrieval model that determines what is a match
+   *  @param weights The arguments' weights, or null if they are all 1.
+   *  @param logSpace True if the score is a weighted geometric mean.
+   *  @return True if the query matches, otherwise false.
+   */
+  protected boolean docIteratorHasMatchWand (RetrievalModel r, double[] weights,
+                                             boolean logSpace) {
+
+    if (this.wandLeaves == null) {
+      this.initializeWand (r, weights, logSpace);
+    }
+
+    if (Double.isNaN (this.wandBase) || Double.isInfinite (this.wandBase)) {
+      return this.docIteratorHasMatchMin (r);
+    }
+
+    int n = this.wandLeaves.length;
+
+    for (int i = 0; i < n; i++) {
+      if (Double.isNaN (this.wandBounds[i]) || Double.isInfinite (this.wandBounds[i])) {
+        return this.docIteratorHasMatchMin (r);
+      }
+    }
+
+    double threshold =
+      this.scoreThreshold - BOUND_MARGIN * Math.abs (this.scoreThreshold);
+
+    if (logSpace) {
+      if (threshold <= 0) {
+        return this.docIteratorHasMatchMin (r);
+      }
+
+      threshold = Math.log (threshold);
+    }
+
+    while (true) {
+
+      //  Insertion sort the arguments that have matches by docid.
+
+      int m = 0;
+
+      for (int i = 0; i < n; i++) {
+        QrySop q_i = this.wandLeaves[i];
+
+        if (! q_i.docIteratorHasMatch (r)) {
+          continue;
+        }
+
+        int docid = q_i.docIteratorGetMatch ();
+        int k = m++;
+
+        while ((k > 0) && (this.wandDocids[k - 1] > docid)) {
+          this.wandDocids[k] = this.wandDocids[k - 1];
+          this.wandOrder[k] = this.wandOrder[k - 1];
+          k--;
+        }
+
+        this.wandDocids[k] = docid;
+        this.wandOrder[k] = i;
+      }
+
+      //  Find the pivot.  Arguments at the pivot's docid are included,
+      //  because they match the same document.
+
+      double bound = this.wandBase;
+      int pivot = -1;
+
+      for (int k = 0; k < m; k++) {
+        bound += this.wandBounds[this.wandOrder[k]];
+
+        if (bound >= threshold) {
+          pivot = k;
+          break;
+        }
+      }
+
+      if (pivot < 0) {
+        return false;		// No remaining document can enter the results.
+      }
+
+      int pivotDocid = this.wandDocids[pivot];
+
+      while ((pivot + 1 < m) && (this.wandDocids[pivot + 1] == pivotDocid)) {
+        pivot++;
+      }
+
+      //  Check the bounds of the blocks that contain the pivot's docid.
+
+      double blockBound = this.wandBase;
+      int blockEnd = Integer.MAX_VALUE;
+
+      for (int k = 0; k <= pivot; k++) {
+        int i = this.wandOrder[k];
+
+        if (pivotDocid > this.wandBlockEnds[i]) {
+          QrySop q_i = this.wandLeaves[i];
+          double blockMax = q_i.getBlockMaxScore (r, pivotDocid);
+
+          if (logSpace) {
+            blockMax = Math.log (blockMax);
+          }
+
+          this.wandBlockBounds[i] =
+            Math.max (0, this.wandWeights[i] * blockMax - this.wandDefaults[i]);
+          this.wandBlockEnds[i] = q_i.getBlockLastDocid (pivotDocid);
+        }
+
+        blockBound += this.wandBlockBounds[i];
+        blockEnd = Math.min (blockEnd, this.wandBlockEnds[i]);
+      }
+
+      if (blockBound < threshold) {
+
+        //  No document up to the end of the first block can reach the
+        //  threshold, and neither can a document before the next
+        //  argument's docid.
+
+        int next = (blockEnd == Integer.MAX_VALUE) ? Integer.MAX_VALUE : blockEnd + 1;
+
+        if (pivot + 1 < m) {
+          next = Math.min (next, this.wandDocids[pivot + 1]);
+        }
+
+        if (next == Integer.MAX_VALUE) {
+          return false;
+        }
+
+        for (int k = 0; k <= pivot; k++) {
+          if (this.wandDocids[k] < next) {
+            this.wandLeaves[this.wandOrder[k]].docIteratorAdvanceTo (next);
+          }
+        }
+
+        continue;
+      }
+
+      if (this.wandDocids[0] == pivotDocid) {
+        if (this.wandFlattened) {
+          for (Qry q_i : this.args) {
+            q_i.docIteratorHasMatch (r);
+          }
+        }
+
+        this.docIteratorSetMatchCache (pivotDocid);
+        return true;
+      }
+
+      for (int k = 0; k < pivot; k++) {
+        if (this.wandDocids[k] < pivotDocid) {
+          this.wandLeaves[this.wandOrder[k]].docIteratorAdvanceTo (pivotDocid);
+        }
+      }
+    }
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -39,4 +330,79 @@ public abstract class QrySop extends Qry {
       q_i.initialize (r);
     }
   }
+
+  /**
+   *  Find the operators whose bounds WAND uses, and their bounds.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param weights The arguments' weights, or null if they are all 1.
+   *  @param logSpace True if the score is a weighted geometric mean.
+   */
+  private void initializeWand (RetrievalModel r, double[] weights,
+                               boolean logSpace) {
+
+    List<QrySop> leaves = new ArrayList<QrySop> ();
+    List<Double> leafWeights = new ArrayList<Double> ();
+
+    this.addWandLeaves (r, weights, 1.0, logSpace, leaves, leafWeights);
+
+    int n = leaves.size ();
+
+    this.wandLeaves = leaves.toArray (new QrySop[n]);
+    this.wandFlattened = (n != this.args.size ());
+
+    for (int i = 0; (i < n) && ! this.wandFlattened; i++) {
+      this.wandFlattened = (this.wandLeaves[i] != this.args.get (i));
+    }
+
+    this.wandWeights = new double[n];
+    this.wandBounds = new double[n];
+    this.wandDefaults = new double[n];
+    this.wandOrder = new int[n];
+    this.wandDocids = new int[n];
+    this.wandBlockBounds = new double[n];
+    this.wandBlockEnds = new int[n];
+    this.wandBase = 0;
+
+    Arrays.fill (this.wandBlockEnds, -1);
+
+    for (int i = 0; i < n; i++) {
+      QrySop q_i = this.wandLeaves[i];
+      double maxScore = q_i.getMaxScore (r);
+      double maxDefaultScore = q_i.getMaxDefaultScore (r);
+
+      if (logSpace) {
+        maxScore = Math.log (maxScore);
+        maxDefaultScore = Math.log (maxDefaultScore);
+      }
+
+      this.wandWeights[i] = leafWeights.get (i);
+      this.wandDefaults[i] = this.wandWeights[i] * maxDefaultScore;
+      this.wandBounds[i] =
+        Math.max (0, this.wandWeights[i] * maxScore - this.wandDefaults[i]);
+      this.wandBase += this.wandDefaults[i];
+    }
+  }
+
+  /**
+   *  Add the arguments of an operator to the operators whose bounds
+   *  WAND uses.  In log space, the arguments of a nested geometric
+   *  mean are added instead of the geometric mean.
+   */
+  private void addWandLeaves (RetrievalModel r, double[] weights, double weight,
+                              boolean logSpace, List<QrySop> leaves,
+                              List<Double> leafWeights) {
+
+    for (int i = 0; i < this.args.size (); i++) {
+      QrySop q_i = (QrySop) this.args.get (i);
+      double w = weight * ((weights == null) ? 1 : weights[i]);
+      double[] meanWeights = logSpace ? q_i.getGeometricMeanWeights (r) : null;
+
+      if (meanWeights != null) {
+        q_i.addWandLeaves (r, meanWeights, w, logSpace, leaves, leafWeights);
+      } else {
+        leaves.add (q_i);
+        leafWeights.add (w);
+      }
+    }
+  }
 }
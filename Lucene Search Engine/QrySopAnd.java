@@ -3,6 +3,7 @@
  */
 
 import java.io.*;
+import java.util.Arrays;
 
 /**
  *  The And operator for all retrieval models.
@@ -10,12 +11,35 @@ import java.io.*;
 public class QrySopAnd extends QrySop {
 
     /**
-     *  Indicates whether the query has a match.
+     *  The weight of each argument in the geometric mean, 1/n.  Set by
+     *  initialize.
+     */
+    private double[] normalizedWeights;
+
+    /**
+     *  Initialize the query operator and its arguments.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize (RetrievalModel r) throws IOException {
+        super.initialize(r);
+
+        this.normalizedWeights = new double[this.args.size()];
+        Arrays.fill(this.normalizedWeights, 1d / this.args.size());
+    }
+
+    /**
+     *  Indicates whether the query has a match.  When Indri has a
+     *  score threshold, documents whose score bounds can't reach it
+     *  are skipped (Block-Max WAND in log space).
      *  @param r The retrieval model that determines what is a match
      *  @return True if the query matches, otherwise false.
      */
     public boolean docIteratorHasMatch (RetrievalModel r) {
         if (r instanceof RetrievalModelIndri) {
+            if (this.scoreThreshold != Double.NEGATIVE_INFINITY) {
+                return this.docIteratorHasMatchWand(r, this.normalizedWeights, true);
+            }
             return this.docIteratorHasMatchMin(r);
         }
         else {
@@ -23,6 +47,86 @@ public class QrySopAnd extends QrySop {
         }
     }
 
+    /**
+     *  Get the weights of the arguments, if the operator's score is a
+     *  weighted geometric mean of its arguments' scores.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The weights for Indri, otherwise null.
+     */
+    protected double[] getGeometricMeanWeights (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            return this.normalizedWeights;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     *  Get an upper bound on the score of any document that the
+     *  operator matches.  For Indri, each argument contributes the
+     *  larger of its score bound and its default score bound.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The upper bound, or +Infinity if there is no useful bound.
+     */
+    public double getMaxScore (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            double bound = 1d;
+
+            for (int i=0; i<this.args.size(); i++) {
+                QrySop q_i = (QrySop) this.args.get(i);
+                bound *= Math.pow(Math.max(q_i.getMaxScore(r), q_i.getMaxDefaultScore(r)),
+                                  this.normalizedWeights[i]);
+            }
+
+            return bound;
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     *  Get an upper bound on the default score of any document that
+     *  the operator doesn't match.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The upper bound, or +Infinity if there is no useful bound.
+     */
+    public double getMaxDefaultScore (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            double bound = 1d;
+
+            for (int i=0; i<this.args.size(); i++) {
+                bound *= Math.pow(((QrySop) this.args.get(i)).getMaxDefaultScore(r),
+                                  this.normalizedWeights[i]);
+            }
+
+            return bound;
+        } else {
+            return super.getMaxDefaultScore(r);
+        }
+    }
+
+    /**
+     *  Estimate the cost of iterating over the operator's matches.
+     *  Except for Indri, the operator matches the intersection of its
+     *  arguments' matches, which is no larger than the cheapest
+     *  argument's matches.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated number of matching documents.
+     */
+    public long getCost (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            return super.getCost(r);
+        }
+
+        long cost = Long.MAX_VALUE;
+
+        for (Qry q_i : this.args) {
+            cost = Math.min(cost, q_i.getCost(r));
+        }
+
+        return cost;
+    }
+
     /**
      *  Get a score for the document that docIteratorHasMatch matched.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -14,7 +14,42 @@ public class QrySopScore extends QrySop {
    *  Document-independent values that should be determined just once.
    *  Some retrieval models have these, some don't.
    */
-  
+
+  /**
+   *  The id of the field that the argument covers, for document
+   *  length lookups.  Set by initialize.
+   */
+  private int fieldId = -1;
+
+  /**
+   *  BM25:  the RSJ weight of the term, the average length of the
+   *  field, and the model's parameters.  Set by initialize.
+   */
+  private double rsj;
+  private double avgDocLength;
+  private double k1;
+  private double b;
+  private double oneMinusB;
+
+  /**
+   *  Indri:  mu, (1 - lambda), mu * p_MLE(t|C), and lambda * p_MLE(t|C).
+   *  Set by initialize.
+   */
+  private double mu;
+  private double oneMinusLambda;
+  private double pMLEc;
+  private double muPMLEc;
+  private double lambdaPMLEc;
+
+  /**
+   *  The argument's block bounds from the block-max index, or null if
+   *  the argument isn't a term in the index.  Set by initialize.  The
+   *  block that contains the last docid that was looked up is cached,
+   *  because WAND looks up nearby docids.
+   */
+  private BlockMaxIndex.Blocks blocks = null;
+  private int block = 0;
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -70,9 +105,7 @@ public class QrySopScore extends QrySop {
     if (! this.docIteratorHasMatchCache()) {
       return 0.0;
     } else {
-      int docindex = ((QryIop) this.args.get(0)).getDocIteratorIndex();
-
-      double tf = (double) (((QryIop) this.args.get(0)).invertedList.getTf(docindex));
+      double tf = (double) ((QryIop) this.args.get(0)).docIteratorGetMatchTf();
       //System.out.print(q.invertedList.field + "\t");
       //System.out.print("docid" + docid + "\t");
       //System.out.print(tf + "\t");
@@ -82,68 +115,208 @@ public class QrySopScore extends QrySop {
     }
   }
 
+  /**
+   *  getScore for the BM25 retrieval model.  The document-independent
+   *  parts of the score are computed by initialize.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
   public double getScoreBM25 (RetrievalModelBM25 r) throws IOException {
     if (! this.docIteratorHasMatchCache()) {
       return 0.0;
     } else {
       int docid = this.docIteratorGetMatch();
-      int docindex = ((QryIop) this.args.get(0)).getDocIteratorIndex();
-      double tf = (double) (((QryIop) this.args.get(0)).invertedList.getTf(docindex));
-
-
-      String field = this.getField(r);
-      double docLength = Idx.getFieldLength(field, docid);
-      double N = Idx.getNumDocs();
-      double avgDocLength = ((double)Idx.getSumOfFieldLengths(field))/(double)Idx.getDocCount(field);
-      double k1 = r.getK1();
-      double b = r.getB();
-      double df = this.getDF(r);
-      double rsj = 0;
-      if (df < N/2){
-        rsj = Math.log((N - df + 0.5) / (df + 0.5));
-      }
-      double tfweight = tf/(tf+k1*(1-b+b*docLength/avgDocLength));
-      return rsj*tfweight;
+      double tf = (double) ((QryIop) this.args.get(0)).docIteratorGetMatchTf();
+      return this.scoreBM25(docid, tf);
     }
   }
 
+  /**
+   *  The BM25 score of a document that the argument matches.  The
+   *  operator must be initialized for BM25.
+   *  @param docid The internal document id.
+   *  @param tf The term frequency in the document.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  double scoreBM25 (int docid, double tf) throws IOException {
+    double docLength = Idx.getFieldLength(this.fieldId, docid);
+    double tfweight = tf/(tf+this.k1*(this.oneMinusB+this.b*docLength/this.avgDocLength));
+    return this.rsj*tfweight;
+  }
 
+  /**
+   *  getScore for the Indri retrieval model.  The document-independent
+   *  parts of the score are computed by initialize.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
   public double getScoreIndri (RetrievalModelIndri r) throws IOException {
     if (! this.docIteratorHasMatchCache()) {
       return 0.0;
     } else {
       int docid = this.docIteratorGetMatch();
-      int docindex = ((QryIop) this.args.get(0)).getDocIteratorIndex();
-      double ctf = this.getCtf(r);
-      double tf = (double) (((QryIop) this.args.get(0)).invertedList.getTf(docindex));
-      String field = this.getField(r);
-      double docLength = Idx.getFieldLength(field, docid);
-      double cLength = (double)Idx.getSumOfFieldLengths(field);
-      double pMLEc = ctf/cLength;
-      double p = (1 - r.getLambda()) * (tf + r.getMu() * pMLEc) / (docLength + r.getMu())
-              + r.getLambda() * pMLEc;
-
-      return p;
+      double tf = (double) ((QryIop) this.args.get(0)).docIteratorGetMatchTf();
+      return this.scoreIndri(docid, tf);
     }
   }
 
+  /**
+   *  The Indri score of a document that the argument matches.  The
+   *  operator must be initialized for Indri.
+   *  @param docid The internal document id.
+   *  @param tf The term frequency in the document.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  double scoreIndri (int docid, double tf) throws IOException {
+    double docLength = Idx.getFieldLength(this.fieldId, docid);
+    return this.oneMinusLambda * (tf + this.muPMLEc) / (docLength + this.mu)
+            + this.lambdaPMLEc;
+  }
+
+  /**
+   *  The Indri score of a document that the argument doesn't match.
+   *  The operator must be initialized for Indri.
+   *  @param docid The internal document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  double defaultScoreIndri (int docid) throws IOException {
+    double docLength = Idx.getFieldLength(this.fieldId, docid);
+    return this.oneMinusLambda * this.muPMLEc / (docLength + this.mu)
+            + this.lambdaPMLEc;
+  }
+
   public double getDefaultScore (RetrievalModel r, int docid) throws IOException {
     if (r instanceof RetrievalModelIndri) {
-      RetrievalModelIndri modelIndri = (RetrievalModelIndri)r;
-
-      double ctf = this.getCtf(r);
-      double tf = 0;
-      String field = this.getField(r);
-      double docLength = Idx.getFieldLength(field, docid);
-      double cLength = (double) Idx.getSumOfFieldLengths(field);
-      double pMLEc = ctf / cLength;
-      double p = (1 - modelIndri.getLambda()) * (tf + modelIndri.getMu() * pMLEc) / (docLength + modelIndri.getMu())
-                + modelIndri.getLambda() * pMLEc;
-      return p;
+      return this.defaultScoreIndri(docid);
     }else{
       return 0.0;
     }
   }
+
+  /**
+   *  Get an upper bound on the score of any document that the
+   *  operator matches.  For BM25, the bound uses the largest tf in
+   *  the inverted list and a document length of 0.  For Indri, it
+   *  uses the largest tf; see getBoundIndri.  If the term is in the
+   *  block-max index, the largest block bound may be tighter.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound, or +Infinity if there is no useful bound.
+   */
+  public double getMaxScore (RetrievalModel r) {
+    if (r instanceof RetrievalModelBM25) {
+      int maxTf = ((QryIop) this.args.get(0)).getMaxTf();
+      double bound = this.rsj;
+
+      if (maxTf != Integer.MAX_VALUE)
+        bound = this.rsj * maxTf / (maxTf + this.k1 * this.oneMinusB);
+
+      if (this.blocks != null)
+        bound = Math.min (bound, this.rsj * this.blocks.getMaxTfComponent ());
+
+      return bound;
+    } else if (r instanceof RetrievalModelIndri) {
+      double maxTfRatio =
+        (this.blocks == null) ? 1.0 : Math.min (1.0, this.blocks.getMaxTfRatio ());
+
+      return this.getBoundIndri (maxTfRatio, ((QryIop) this.args.get(0)).getMaxTf(), 0);
+    } else {
+      return Double.POSITIVE_INFINITY;
+    }
+  }
+
+  /**
+   *  Get an upper bound on the default score of any document that the
+   *  operator doesn't match.  For Indri, it is p_MLE(t|C).
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound.
+   */
+  public double getMaxDefaultScore (RetrievalModel r) {
+    if (r instanceof RetrievalModelIndri) {
+      return this.pMLEc;
+    } else {
+      return 0.0;
+    }
+  }
+
+  /**
+   *  Get an upper bound on the score of the documents that the
+   *  operator matches in the block that contains a docid, using the
+   *  block-max index if it has the term.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid An internal document id.
+   *  @return The upper bound, or +Infinity if there is no useful bound.
+   */
+  public double getBlockMaxScore (RetrievalModel r, int docid) {
+    if (this.blocks == null) {
+      return this.getMaxScore (r);
+    }
+
+    int b = this.findBlock (docid);
+
+    if (r instanceof RetrievalModelBM25) {
+      return this.rsj * this.blocks.getMaxTfComponent (b);
+    } else {
+      return this.getBoundIndri (this.blocks.getMaxTfRatio (b),
+                                 this.blocks.getMaxTf (b),
+                                 this.blocks.getMinDocLength (b));
+    }
+  }
+
+  /**
+   *  Get an upper bound on the Indri score of documents whose tf /
+   *  length, tf, and length are within limits.  The smoothed term
+   *  probability (tf + mu * p_MLE(t|C)) / (length + mu) is at most
+   *  the larger of tf / length and p_MLE(t|C).  It also increases
+   *  with tf and decreases with length, and length is at least tf.
+   *  @param maxTfRatio The largest tf / length.
+   *  @param maxTf The largest tf, or Integer.MAX_VALUE if it is unknown.
+   *  @param minDocLength The smallest length.
+   *  @return The upper bound.
+   */
+  private double getBoundIndri (double maxTfRatio, int maxTf, int minDocLength) {
+    double p = Math.max (maxTfRatio, this.pMLEc);
+
+    if (maxTf != Integer.MAX_VALUE) {
+      p = Math.min (p, (maxTf + this.muPMLEc) / (Math.max (maxTf, minDocLength) + this.mu));
+    }
+
+    return this.oneMinusLambda * p + this.lambdaPMLEc;
+  }
+
+  /**
+   *  Get the last docid of the block that contains a docid.
+   *  @param docid An internal document id.
+   *  @return The last docid of the block, or Integer.MAX_VALUE.
+   */
+  public int getBlockLastDocid (int docid) {
+    if (this.blocks == null) {
+      return Integer.MAX_VALUE;
+    }
+
+    return this.blocks.getLastDocid (this.findBlock (docid));
+  }
+
+  /**
+   *  Find the block that contains a docid, starting with the block
+   *  that contained the previous docid.
+   */
+  private int findBlock (int docid) {
+    int b = this.block;
+
+    if ((docid > this.blocks.getLastDocid (b)) ||
+        ((b > 0) && (docid <= this.blocks.getLastDocid (b - 1)))) {
+      b = this.blocks.findBlock (docid);
+      this.block = b;
+    }
+
+    return b;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -156,6 +329,62 @@ public class QrySopScore extends QrySop {
 
     Qry q = this.args.get (0);
     q.initialize (r);
+
+    //  Only ranked models need document lengths.  BM25 only needs them
+    //  for matching documents; Indri also needs them for default scores.
+
+    if (((r instanceof RetrievalModelBM25) && (this.getDF (r) > 0)) ||
+        (r instanceof RetrievalModelIndri)) {
+      this.fieldId = Idx.getFieldId (this.getField (r));
+    }
+
+    //  Compute the document-independent parts of the score once, so
+    //  that scoring a document is just a few arithmetic operations.
+
+    if (r instanceof RetrievalModelBM25) {
+      RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+      String field = this.getField (r);
+      double N = Idx.getNumDocs ();
+      double df = this.getDF (r);
+
+      this.rsj = 0;
+
+      if (df < N/2) {
+        this.rsj = Math.log ((N - df + 0.5) / (df + 0.5));
+      }
+
+      this.avgDocLength =
+        ((double) Idx.getSumOfFieldLengths (field)) / (double) Idx.getDocCount (field);
+      this.k1 = bm25.getK1 ();
+      this.b = bm25.getB ();
+      this.oneMinusB = 1 - this.b;
+    } else if (r instanceof RetrievalModelIndri) {
+      RetrievalModelIndri indri = (RetrievalModelIndri) r;
+
+      this.pMLEc =
+        this.getCtf (r) / (double) Idx.getSumOfFieldLengths (this.getField (r));
+      this.mu = indri.getMu ();
+      this.oneMinusLambda = 1 - indri.getLambda ();
+      this.muPMLEc = this.mu * this.pMLEc;
+      this.lambdaPMLEc = indri.getLambda () * this.pMLEc;
+    }
+
+    //  Use the term's block bounds, if the block-max index has them.
+    //  Its BM25 bounds are only valid for the parameters that it was
+    //  built with.
+
+    BlockMaxIndex blockMaxIndex = Idx.getBlockMaxIndex ();
+
+    this.blocks = null;
+    this.block = 0;
+
+    if ((blockMaxIndex != null) && (q instanceof QryIopTerm) &&
+        (((r instanceof RetrievalModelBM25) &&
+          blockMaxIndex.matches ((RetrievalModelBM25) r)) ||
+         (r instanceof RetrievalModelIndri))) {
+      this.blocks =
+        blockMaxIndex.get (((QryIopTerm) q).getTerm (), this.getField (r));
+    }
   }
 
   public String getField(RetrievalModel r) throws IOException {
@@ -11,12 +11,40 @@ import java.util.ArrayList;
 public class QrySopSum extends QrySop {
 
   /**
-   *  Indicates whether the query has a match.
+   *  Indicates whether the query has a match.  When BM25 has a score
+   *  threshold, the match is the first document whose score bound
+   *  reaches the threshold (Block-Max WAND); other documents can't
+   *  enter the results, so they are skipped.
    *  @param r The retrieval model that determines what is a match
    *  @return True if the query matches, otherwise false.
    */
   public boolean docIteratorHasMatch (RetrievalModel r) {
-    return this.docIteratorHasMatchMin (r);
+    if ((r instanceof RetrievalModelBM25) &&
+        (this.scoreThreshold != Double.NEGATIVE_INFINITY)) {
+      return this.docIteratorHasMatchWand (r, null, false);
+    } else {
+      return this.docIteratorHasMatchMin (r);
+    }
+  }
+
+  /**
+   *  Get an upper bound on the score of any document that the
+   *  operator matches.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The upper bound, or +Infinity if there is no useful bound.
+   */
+  public double getMaxScore (RetrievalModel r) {
+    if (r instanceof RetrievalModelBM25) {
+      double bound = 0;
+
+      for (Qry q_i : this.args) {
+        bound += ((QrySop) q_i).getMaxScore(r);
+      }
+
+      return bound;
+    } else {
+      return Double.POSITIVE_INFINITY;
+    }
   }
 
   /**
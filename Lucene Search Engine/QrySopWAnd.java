@@ -10,12 +10,45 @@ import java.io.IOException;
 public class QrySopWAnd extends QrySop {
 
     /**
-     *  Indicates whether the query has a match.
+     *  The weights of the arguments, divided by their sum.  Set by
+     *  initialize.
+     */
+    private double[] normalizedWeights;
+
+    /**
+     *  Initialize the query operator and its arguments, and normalize
+     *  the weights once, rather than for every document.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize (RetrievalModel r) throws IOException {
+        super.initialize(r);
+
+        double sumweight = 0d;
+
+        for (int i=0; i<this.weights.size(); i++) {
+            sumweight += this.weights.get(i);
+        }
+
+        this.normalizedWeights = new double[this.weights.size()];
+
+        for (int i=0; i<this.normalizedWeights.length; i++) {
+            this.normalizedWeights[i] = this.weights.get(i) / sumweight;
+        }
+    }
+
+    /**
+     *  Indicates whether the query has a match.  When Indri has a
+     *  score threshold, documents whose score bounds can't reach it
+     *  are skipped (Block-Max WAND in log space).
      *  @param r The retrieval model that determines what is a match
      *  @return True if the query matches, otherwise false.
      */
     public boolean docIteratorHasMatch (RetrievalModel r) {
         if (r instanceof RetrievalModelIndri) {
+            if (this.scoreThreshold != Double.NEGATIVE_INFINITY) {
+                return this.docIteratorHasMatchWand(r, this.normalizedWeights, true);
+            }
             return this.docIteratorHasMatchMin(r);
         }
         else {
@@ -23,6 +56,86 @@ public class QrySopWAnd extends QrySop {
         }
     }
 
+    /**
+     *  Get the weights of the arguments, if the operator's score is a
+     *  weighted geometric mean of its arguments' scores.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The weights for Indri, otherwise null.
+     */
+    protected double[] getGeometricMeanWeights (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            return this.normalizedWeights;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     *  Get an upper bound on the score of any document that the
+     *  operator matches.  For Indri, each argument contributes the
+     *  larger of its score bound and its default score bound.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The upper bound, or +Infinity if there is no useful bound.
+     */
+    public double getMaxScore (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            double bound = 1d;
+
+            for (int i=0; i<this.args.size(); i++) {
+                QrySop q_i = (QrySop) this.args.get(i);
+                bound *= Math.pow(Math.max(q_i.getMaxScore(r), q_i.getMaxDefaultScore(r)),
+                                  this.normalizedWeights[i]);
+            }
+
+            return bound;
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     *  Get an upper bound on the default score of any document that
+     *  the operator doesn't match.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The upper bound, or +Infinity if there is no useful bound.
+     */
+    public double getMaxDefaultScore (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            double bound = 1d;
+
+            for (int i=0; i<this.args.size(); i++) {
+                bound *= Math.pow(((QrySop) this.args.get(i)).getMaxDefaultScore(r),
+                                  this.normalizedWeights[i]);
+            }
+
+            return bound;
+        } else {
+            return super.getMaxDefaultScore(r);
+        }
+    }
+
+    /**
+     *  Estimate the cost of iterating over the operator's matches.
+     *  Except for Indri, the operator matches the intersection of its
+     *  arguments' matches, which is no larger than the cheapest
+     *  argument's matches.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated number of matching documents.
+     */
+    public long getCost (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            return super.getCost(r);
+        }
+
+        long cost = Long.MAX_VALUE;
+
+        for (Qry q_i : this.args) {
+            cost = Math.min(cost, q_i.getCost(r));
+        }
+
+        return cost;
+    }
+
     /**
      *  Get a score for the document that docIteratorHasMatch matched.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -48,11 +161,6 @@ public class QrySopWAnd extends QrySop {
             double totalscore = 1d;
             double score = 1d;
             double len = this.args.size();
-            double sumweight = 0d;
-
-            for (int i=0; i<len; i++) {
-                sumweight += this.weights.get(i);
-            }
 
             for (int i=0; i<len; i++) {
                 Qry q_i = this.args.get(i);
@@ -62,7 +170,7 @@ public class QrySopWAnd extends QrySop {
                     score = ((QrySop) q_i).getScore(r);
                 else
                     score = ((QrySop) q_i).getDefaultScore(r, docid);
-                score = Math.pow(score, this.weights.get(i) / sumweight);
+                score = Math.pow(score, this.normalizedWeights[i]);
                 totalscore *= score;
             }
 
@@ -72,18 +180,13 @@ public class QrySopWAnd extends QrySop {
     }
     public double getDefaultScore (RetrievalModel r, int docid) throws IOException {
         if (r instanceof RetrievalModelIndri) {
-            double sumweight = 0d;
             double score = 1d;
             double len = this.args.size();
             double totalscore = 1d;
 
-            for (int i=0; i<len; i++) {
-                sumweight += this.weights.get(i);
-            }
-
             for (int i=0; i<len; i++) {
                 QrySop q_i = (QrySop)this.args.get(i);
-                score = Math.pow(q_i.getDefaultScore(r, docid), this.weights.get(i) / sumweight);
+                score = Math.pow(q_i.getDefaultScore(r, docid), this.normalizedWeights[i]);
                 totalscore *= score;
             }
             return totalscore;
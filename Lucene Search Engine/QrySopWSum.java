@@ -10,12 +10,71 @@ import java.io.IOException;
 public class QrySopWSum extends QrySop {
 
     /**
-     *  Indicates whether the query has a match.
+     *  The weights of the arguments, divided by their sum.  Set by
+     *  initialize.
+     */
+    private double[] normalizedWeights;
+
+    /**
+     *  The sum of the weights of the arguments.  Set by initialize.
+     *  Scores divide by it, rather than multiply by the normalized
+     *  weights, so that they are rounded as before.
+     */
+    private double sumWeight;
+
+    /**
+     *  Initialize the query operator and its arguments, and normalize
+     *  the weights once, rather than for every document.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize (RetrievalModel r) throws IOException {
+        super.initialize(r);
+
+        double sumweight = 0d;
+
+        for (int i=0; i<this.weights.size(); i++) {
+            sumweight += this.weights.get(i);
+        }
+
+        this.sumWeight = sumweight;
+        this.normalizedWeights = new double[this.weights.size()];
+
+        for (int i=0; i<this.normalizedWeights.length; i++) {
+            this.normalizedWeights[i] = this.weights.get(i) / sumweight;
+        }
+    }
+
+    /**
+     *  Get the weights of the arguments, divided by their sum.  It is
+     *  valid after the operator is initialized.
+     *  @return The normalized weights.
+     */
+    double[] getNormalizedWeights () {
+        return this.normalizedWeights;
+    }
+
+    /**
+     *  Get the sum of the weights of the arguments.  It is valid after
+     *  the operator is initialized.
+     *  @return The sum of the weights.
+     */
+    double getWeightSum () {
+        return this.sumWeight;
+    }
+
+    /**
+     *  Indicates whether the query has a match.  When Indri has a
+     *  score threshold, documents whose score bounds can't reach it
+     *  are skipped (Block-Max WAND).
      *  @param r The retrieval model that determines what is a match
      *  @return True if the query matches, otherwise false.
      */
     public boolean docIteratorHasMatch (RetrievalModel r) {
         if (r instanceof RetrievalModelIndri) {
+            if (this.scoreThreshold != Double.NEGATIVE_INFINITY) {
+                return this.docIteratorHasMatchWand(r, this.normalizedWeights, false);
+            }
             return this.docIteratorHasMatchMin(r);
         }
         else {
@@ -23,6 +82,72 @@ public class QrySopWSum extends QrySop {
         }
     }
 
+    /**
+     *  Get an upper bound on the score of any document that the
+     *  operator matches.  For Indri, each argument contributes the
+     *  larger of its score bound and its default score bound.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The upper bound, or +Infinity if there is no useful bound.
+     */
+    public double getMaxScore (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            double bound = 0d;
+
+            for (int i=0; i<this.args.size(); i++) {
+                QrySop q_i = (QrySop) this.args.get(i);
+                bound += this.normalizedWeights[i] *
+                         Math.max(q_i.getMaxScore(r), q_i.getMaxDefaultScore(r));
+            }
+
+            return bound;
+        } else {
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     *  Get an upper bound on the default score of any document that
+     *  the operator doesn't match.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The upper bound, or +Infinity if there is no useful bound.
+     */
+    public double getMaxDefaultScore (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            double bound = 0d;
+
+            for (int i=0; i<this.args.size(); i++) {
+                bound += this.normalizedWeights[i] *
+                         ((QrySop) this.args.get(i)).getMaxDefaultScore(r);
+            }
+
+            return bound;
+        } else {
+            return super.getMaxDefaultScore(r);
+        }
+    }
+
+    /**
+     *  Estimate the cost of iterating over the operator's matches.
+     *  Except for Indri, the operator matches the intersection of its
+     *  arguments' matches, which is no larger than the cheapest
+     *  argument's matches.
+     *  @param r The retrieval model that determines what is a match
+     *  @return The estimated number of matching documents.
+     */
+    public long getCost (RetrievalModel r) {
+        if (r instanceof RetrievalModelIndri) {
+            return super.getCost(r);
+        }
+
+        long cost = Long.MAX_VALUE;
+
+        for (Qry q_i : this.args) {
+            cost = Math.min(cost, q_i.getCost(r));
+        }
+
+        return cost;
+    }
+
     /**
      *  Get a score for the document that docIteratorHasMatch matched.
      *  @param r The retrieval model that determines how scores are calculated.
@@ -48,12 +173,6 @@ public class QrySopWSum extends QrySop {
             double totalscore = 0d;
             double score = 1d;
             double len = this.args.size();
-            double sumweight = 0d;
-
-            for (int i=0; i<len; i++) {
-                sumweight += this.weights.get(i);
-                //System.out.println(i + " " + this.weights.get(i));
-            }
 
             for (int i=0; i<len; i++) {
                 Qry q_i = this.args.get(i);
@@ -63,7 +182,7 @@ public class QrySopWSum extends QrySop {
                     score = ((QrySop) q_i).getScore(r);
                 else
                     score = ((QrySop) q_i).getDefaultScore(r, docid);
-                score = score * this.weights.get(i) / sumweight;
+                score = score * this.weights.get(i) / this.sumWeight;
                 totalscore += score;
             }
 
@@ -73,18 +192,13 @@ public class QrySopWSum extends QrySop {
     }
     public double getDefaultScore (RetrievalModel r, int docid) throws IOException {
         if (r instanceof RetrievalModelIndri) {
-            double sumweight = 0d;
             double score = 1d;
             double len = this.args.size();
             double totalscore = 0d;
 
-            for (int i=0; i<len; i++) {
-                sumweight += this.weights.get(i);
-            }
-
             for (int i=0; i<len; i++) {
                 QrySop q_i = (QrySop)this.args.get(i);
-                score = q_i.getDefaultScore(r, docid) * this.weights.get(i) / sumweight;
+                score = q_i.getDefaultScore(r, docid) * this.weights.get(i) / this.sumWeight;
                 totalscore += score;
             }
             return totalscore;
@@ -0,0 +1,198 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  The time and work that a query may use.  Work is counted in
+ *  documents:  each document that the evaluation loop scores, each
+ *  posting that the term-at-a-time or score-at-a-time engine reads,
+ *  and each document that a #NEAR, #WINDOW, or #SYN operator examines
+ *  while it builds its inverted list or streams its postings, costs
+ *  1 unit.
+ *  <p>
+ *  Budgets are checked cooperatively.  The code that does the work
+ *  calls charge, which returns false once the budget is exhausted.
+ *  The clock is read only every CHECK_INTERVAL units, so charge is
+ *  cheap enough to call once per document.  A budget is used by one
+ *  thread; a query that is evaluated by several threads gives each
+ *  one a part of its budget.
+ *  </p>
+ *  <p>
+ *  QryEval.processQuery starts a budget for each query and makes it
+ *  the current budget of its thread, where the query operators find
+ *  it.  An operator that runs out of budget throws Exhausted.  If it
+ *  was building its inverted list, the query is cancelled; if it was
+ *  streaming, or if an evaluation loop or engine runs out of budget,
+ *  it stops early and keeps the documents that it has scored.
+ *  </p>
+ */
+public class QueryBudget {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  The number of units between readings of the clock.
+   */
+  private static final int CHECK_INTERVAL = 1024;
+
+  /**
+   *  The time (in milliseconds) and work of a new budget; 0 is no
+   *  limit.
+   */
+  private static long timeLimit = 0;
+  private static long workLimit = 0;
+
+  private static final ThreadLocal<QueryBudget> current =
+    new ThreadLocal<QueryBudget> ();
+
+  /**
+   *  The System.nanoTime when the budget runs out, and the work
+   *  that may be done.
+   */
+  private final long deadline;
+  private final long limit;
+
+  /**
+   *  The work done so far, and the work after which the budget is
+   *  checked again.
+   */
+  private long work = 0;
+  private long nextCheck = 0;
+
+  private boolean exhausted = false;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param deadline The System.nanoTime when the budget runs out,
+   *    or Long.MAX_VALUE.
+   *  @param limit The number of work units, or Long.MAX_VALUE.
+   */
+  private QueryBudget (long deadline, long limit) {
+    this.deadline = deadline;
+    this.limit = limit;
+  }
+
+  /**
+   *  Set the time and work of the budgets that are started later.
+   *  @param time The time limit in milliseconds, or 0 for no limit.
+   *  @param work The work limit in documents, or 0 for no limit.
+   */
+  public static void setLimits (long time, long work) {
+
+    if ((time < 0) || (work < 0)) {
+      throw new IllegalArgumentException
+        ("Query time and work limits must not be negative.");
+    }
+
+    timeLimit = time;
+    workLimit = work;
+  }
+
+  /**
+   *  Start a budget with the current limits.
+   *  @return The budget, or null if there are no limits.
+   */
+  public static QueryBudget start () {
+
+    if ((timeLimit == 0) && (workLimit == 0))
+      return null;
+
+    long deadline = (timeLimit == 0) ?
+      Long.MAX_VALUE : System.nanoTime () + timeLimit * 1000000L;
+
+    return new QueryBudget (deadline, (workLimit == 0) ? Long.MAX_VALUE : workLimit);
+  }
+
+  /**
+   *  The budget of the query that this thread is evaluating.
+   *  @return The budget, or null if the query has no limits.
+   */
+  public static QueryBudget current () {
+    return current.get ();
+  }
+
+  /**
+   *  Set the budget of the query that this thread evaluates.
+   *  @param budget The budget, or null to remove it.
+   */
+  public static void setCurrent (QueryBudget budget) {
+    if (budget == null)
+      current.remove ();
+    else
+      current.set (budget);
+  }
+
+  /**
+   *  Divide the rest of the budget among several threads.  Each part
+   *  has the same deadline, and an equal share of the work.
+   *  @param n The number of parts.
+   *  @return A part.
+   */
+  public QueryBudget part (int n) {
+
+    long rest = (this.limit == Long.MAX_VALUE) ?
+      Long.MAX_VALUE : Math.max (this.limit - this.work, 0) / n + 1;
+
+    return new QueryBudget (this.deadline, rest);
+  }
+
+  /**
+   *  Charge work to the budget.
+   *  @param units The number of units.
+   *  @return False if the budget is exhausted.
+   */
+  public boolean charge (int units) {
+
+    this.work += units;
+
+    if (this.work < this.nextCheck)
+      return true;
+
+    //  Once the budget is exhausted, nextCheck stays 0.
+
+    this.exhausted = this.exhausted || (this.work > this.limit) ||
+      (System.nanoTime () >= this.deadline);
+
+    if (this.exhausted)
+      this.nextCheck = 0;
+    else if (this.limit - this.work < CHECK_INTERVAL)
+      this.nextCheck = this.limit + 1;
+    else
+      this.nextCheck = this.work + CHECK_INTERVAL;
+
+    return ! this.exhausted;
+  }
+
+  /**
+   *  Charge one unit of work to a budget, if there is one, for a
+   *  query operator that can't stop early.
+   *  @param budget The budget, or null.
+   *  @throws Exhausted The budget is exhausted.
+   */
+  public static void check (QueryBudget budget) {
+    if ((budget != null) && ! budget.charge (1))
+      throw new Exhausted ();
+  }
+
+  /**
+   *  Returns true if the budget is exhausted.
+   *  @return True if the budget is exhausted.
+   */
+  public boolean isExhausted () {
+    return this.exhausted;
+  }
+
+  /**
+   *  Thrown by a query operator that runs out of budget, to cancel
+   *  the query.
+   */
+  public static class Exhausted extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public Exhausted () {
+      super ("The query ran out of time or work.", null, false, false);
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A score-at-a-time (SAAT) evaluator for flat BM25 #sum queries
+ *  over terms, which reads the impact-ordered postings of an
+ *  ImpactIndex instead of the inverted lists.  The segments of all of
+ *  the query's terms are processed in decreasing order of impact, and
+ *  each document's impacts are added to an integer accumulator, so
+ *  no document lengths are read and no scores are calculated at
+ *  query time.
+ *  <p>
+ *  Processing stops when the top k documents can't change:  when the
+ *  k+1'th largest accumulator, plus the sum of the largest impacts
+ *  that each term has left, is less than the k'th largest
+ *  accumulator.  The remaining impacts of the top k documents are
+ *  then looked up, so their ranking is exactly the ranking of the
+ *  quantized scores.  Because scores are quantized, the results are
+ *  an approximation of the BM25 results.
+ *  </p><p>
+ *  Each posting costs 1 unit of the query's budget, which is charged
+ *  a segment at a time.  If the budget runs out, processing stops,
+ *  and the documents that have accumulators are ranked by the
+ *  impacts that were read.
+ *  </p><p>
+ *  The accumulators use 8 bytes per document in the index.  They
+ *  are allocated once and reused, so an engine must be used by one
+ *  query at a time.
+ *  </p>
+ */
+public class SaatEngine {
+
+  //  --------------- Constants and variables ---------------------
+
+  private final ImpactIndex index;
+
+  /**
+   *  The accumulators:  the sum of each document's impacts, and the
+   *  documents whose sums are positive, in the order that they were
+   *  found.  counts[s] is the number of documents whose sum is s.
+   */
+  private final int[] accumulators;
+  private final int[] candidates;
+  private int numCandidates = 0;
+  private int[] counts = new int[1024];
+
+  private long numQueries = 0;
+  private long numEarlyTerminations = 0;
+  private long numPostings = 0;
+  private long numPostingsSkipped = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param index The impact index.
+   *  @param maxDoc The number of documents in the index.
+   */
+  public SaatEngine (ImpactIndex index, int maxDoc) {
+    this.index = index;
+    this.accumulators = new int[maxDoc];
+    this.candidates = new int[maxDoc];
+  }
+
+  /**
+   *  Returns true if the engine can evaluate a query.
+   *  @param q A parsed query.
+   *  @param r The retrieval model.
+   *  @return True if the query is a BM25 #sum of terms in fields that
+   *    the impact index covers, and the index's impacts are for the
+   *    model's parameters.
+   */
+  public boolean supports (Qry q, RetrievalModel r) {
+
+    if ((! (r instanceof RetrievalModelBM25)) ||
+        (! this.index.matches ((RetrievalModelBM25) r))) {
+      return false;
+    }
+
+    if (q instanceof QrySopScore) {
+      return this.supportsTerm (q);
+    }
+
+    if ((! (q instanceof QrySopSum)) || (q.args.size () == 0)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! ((q_i instanceof QrySopScore) && this.supportsTerm (q_i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Returns true if a SCORE operator's argument is a term in a field
+   *  that the impact index covers.
+   */
+  private boolean supportsTerm (Qry score) {
+    Qry q = score.args.get (0);
+
+    return ((q instanceof QryIopTerm) &&
+            this.index.hasField (((QryIopTerm) q).getField ()));
+  }
+
+  /**
+   *  Evaluate a query that the engine supports.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param depth The number of results to keep.
+   *  @param budget The query's budget, or null.  If it runs out, the
+   *    results are marked truncated.
+   *  @return The results, sorted.
+   *  @throws IOException Error reading the impact index.
+   */
+  public ScoreList evaluate (QrySop q, RetrievalModel r, int depth,
+                             QueryBudget budget)
+    throws IOException {
+
+    this.numQueries++;
+
+    //  Get the terms' postings.  A term that is repeated contributes
+    //  its impacts more than once, as in the #sum operator.
+
+    List<Qry> scores = (q instanceof QrySopScore) ? Collections.<Qry>singletonList (q) : q.args;
+    List<ImpactIndex.Postings> lists = new ArrayList<ImpactIndex.Postings> ();
+    int maxSum = 0;
+
+    for (Qry score : scores) {
+      QryIopTerm term = (QryIopTerm) score.args.get (0);
+      ImpactIndex.Postings postings =
+        this.index.get (term.getTerm (), term.getField ());
+
+      if (postings != null) {
+        lists.add (postings);
+        maxSum += postings.getImpact (0);
+      }
+    }
+
+    if (this.counts.length <= maxSum) {
+      this.counts = new int[2 * maxSum + 1];
+    }
+
+    //  Order the segments by decreasing impact.  Each segment is
+    //  encoded as its impact (at most 16 bits, inverted), its term,
+    //  and its index in the term's postings.
+
+    int numSegments = 0;
+
+    for (ImpactIndex.Postings postings : lists) {
+      numSegments += postings.getNumSegments ();
+    }
+
+    long[] segments = new long[numSegments];
+    int[] nextSegment = new int[lists.size ()];
+    int n = 0;
+
+    for (int t = 0; t < lists.size (); t++) {
+      ImpactIndex.Postings postings = lists.get (t);
+
+      for (int s = 0; s < postings.getNumSegments (); s++) {
+        segments[n++] =
+          ((long) (0xFFFF - postings.getImpact (s)) << 40) |
+          ((long) t << 20) | s;
+      }
+    }
+
+    Arrays.sort (segments);
+
+    //  Process the segments.  Check whether the top k can still change
+    //  after all of the segments of each impact are processed.
+
+    int k = Math.min (depth, this.accumulators.length);
+    int kthSum = 0;
+    boolean stopped = false;
+    boolean truncated = false;
+
+    for (int i = 0; i < numSegments; i++) {
+      int t = (int) (segments[i] >>> 20) & 0xFFFFF;
+      int s = (int) segments[i] & 0xFFFFF;
+      ImpactIndex.Postings postings = lists.get (t);
+      int impact = postings.getImpact (s);
+
+      for (int j = postings.getStart (s); j < postings.getEnd (s); j++) {
+        int docid = postings.getDocid (j);
+        int sum = this.accumulators[docid];
+
+        if (sum == 0) {
+          this.candidates[this.numCandidates++] = docid;
+        } else {
+          this.counts[sum]--;
+        }
+
+        this.accumulators[docid] = sum + impact;
+        this.counts[sum + impact]++;
+      }
+
+      this.numPostings += postings.getEnd (s) - postings.getStart (s);
+      nextSegment[t] = s + 1;
+
+      if ((budget != null) &&
+          ! budget.charge (postings.getEnd (s) - postings.getStart (s))) {
+        truncated = true;
+        break;
+      }
+
+      if ((i + 1 < numSegments) &&
+          (((segments[i + 1] >>> 40) != (segments[i] >>> 40)))) {
+
+        //  The largest sum that a document can still add.
+
+        int remaining = 0;
+
+        for (int u = 0; u < lists.size (); u++) {
+          if (nextSegment[u] < lists.get (u).getNumSegments ()) {
+            remaining += lists.get (u).getImpact (nextSegment[u]);
+          }
+        }
+
+        //  Find the k'th and k+1'th largest sums.  Documents that have
+        //  no accumulator have a sum of 0.
+
+        int seen = 0;
+        int kth = 0;
+        int next = 0;
+
+        for (int sum = maxSum; sum > 0; sum--) {
+          seen += this.counts[sum];
+
+          if ((kth == 0) && (seen >= k)) {
+            kth = sum;
+          }
+
+          if (seen > k) {
+            next = sum;
+            break;
+          }
+        }
+
+        if ((kth > 0) && (next + remaining < kth)) {
+          kthSum = kth;
+          stopped = true;
+
+          for (int u = i + 1; u < numSegments; u++) {
+            int tu = (int) (segments[u] >>> 20) & 0xFFFFF;
+            int su = (int) segments[u] & 0xFFFFF;
+            this.numPostingsSkipped +=
+              lists.get (tu).getEnd (su) - lists.get (tu).getStart (su);
+          }
+
+          this.numEarlyTerminations++;
+          break;
+        }
+      }
+    }
+
+    //  Collect the results.  If processing stopped early, only the
+    //  top k documents can be in the results, and the impacts that
+    //  they have left are added.
+
+    ScoreList results = new ScoreList (depth);
+    double scale = this.index.getScale ();
+
+    for (int c = 0; c < this.numCandidates; c++) {
+      int docid = this.candidates[c];
+      int sum = this.accumulators[docid];
+
+      if ((! stopped) || (sum >= kthSum)) {
+        if (stopped) {
+          for (int t = 0; t < lists.size (); t++) {
+            ImpactIndex.Postings postings = lists.get (t);
+
+            for (int s = nextSegment[t]; s < postings.getNumSegments (); s++) {
+              if (postings.contains (s, docid)) {
+                sum += postings.getImpact (s);
+                break;
+              }
+            }
+          }
+        }
+
+        results.add (docid, sum * scale);
+      }
+
+      this.counts[this.accumulators[docid]] = 0;
+      this.accumulators[docid] = 0;
+    }
+
+    this.numCandidates = 0;
+    results.sort ();
+    results.setTruncated (truncated);
+    return results;
+  }
+
+  /**
+   *  Get the memory used by the accumulators.
+   *  @return The size of the accumulators, in bytes.
+   */
+  public long getMemoryUsage () {
+    return 4L * this.accumulators.length + 4L * this.candidates.length +
+           4L * this.counts.length;
+  }
+
+  /**
+   *  Describe the engine's memory use and activity.
+   */
+  public String toString () {
+    return String.format ("SAAT engine:  %.1f MB of accumulators, %d queries, " +
+                          "%d stopped early, %d postings, %d postings skipped",
+                          getMemoryUsage () / 1048576.0, this.numQueries,
+                          this.numEarlyTerminations, this.numPostings,
+                          this.numPostingsSkipped);
+  }
+}
@@ -7,42 +7,117 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  Entries are stored in parallel primitive arrays.  Lists are
+ *  ranked by score, and then by external document id.  External ids
+ *  are looked up only when they are needed, which is when two scores
+ *  are tied or when the caller asks for one.
+ *  </p><p>
+ *  A list may be bounded to the k best documents.  A bounded list is
+ *  a min-heap whose root is the worst document kept so far, so a
+ *  document that doesn't make the top k costs one comparison.  The
+ *  order of the entries is arbitrary until the list is sorted.
+ *  </p>
  */
 public class ScoreList {
 
-  //  A utility class to create a <internalDocid, externalDocid, score>
-  //  object.
+  /**
+   *  The maximum number of entries, or Integer.MAX_VALUE.
+   */
+  private final int capacity;
+
+  /**
+   *  Internal document ids, scores, and external ids (null until
+   *  they are looked up).  Only the first size entries are valid.
+   */
+  private int[] docids;
+  private double[] scores;
+  private String[] externalIds;
+  private int size = 0;
 
-  private class ScoreListEntry {
-    private int docid;
-    private String externalId;
-    private double score;
+  /**
+   *  The number of documents that were added to the list, including
+   *  documents that didn't make the top k.
+   */
+  private long numAdded = 0;
 
-    private ScoreListEntry(int internalDocid, double score) {
-      this.docid = internalDocid;
-      this.score = score;
+  /**
+   *  True if the query ran out of budget, so the list may be missing
+   *  documents; see QueryBudget.
+   */
+  private boolean truncated = false;
 
-      try {
-	    this.externalId = Idx.getExternalDocid(this.docid);
-      }
-      catch (IOException ex){
-	ex.printStackTrace();
-      }
-    }
+  /**
+   *  An unbounded score list.
+   */
+  public ScoreList() {
+    this(Integer.MAX_VALUE);
   }
 
   /**
-   *  A list of document ids and scores. 
+   *  A score list that keeps only the best documents.
+   *  @param capacity The number of documents to keep.
    */
-  private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+  public ScoreList(int capacity) {
+    this.capacity = capacity;
+
+    int n = Math.min(capacity, 1024);
+    this.docids = new int[n];
+    this.scores = new double[n];
+    this.externalIds = new String[n];
+  }
 
   /**
-   *  Append a document score to a score list.
+   *  Append a document score to a score list.  If the list is full,
+   *  the document replaces the worst document in the list, if it is
+   *  better.  A list whose capacity is 0 keeps nothing.
    *  @param docid An internal document id.
    *  @param score The document's score.
    */
   public void add(int docid, double score) {
-    scores.add(new ScoreListEntry(docid, score));
+
+    this.numAdded++;
+
+    if (this.capacity == 0)
+      return;
+
+    if (this.size < this.capacity) {
+      if (this.size == this.docids.length) {
+        int n = (int) Math.min((long) this.capacity, 2L * this.size);
+        this.docids = Arrays.copyOf(this.docids, n);
+        this.scores = Arrays.copyOf(this.scores, n);
+        this.externalIds = Arrays.copyOf(this.externalIds, n);
+      }
+
+      this.docids[this.size] = docid;
+      this.scores[this.size] = score;
+      this.externalIds[this.size] = null;
+      this.size++;
+
+      if (this.capacity != Integer.MAX_VALUE)
+        this.siftUp(this.size - 1);
+
+      return;
+    }
+
+    //  The list is full.  Compare the document to the worst one.
+
+    if (score < this.scores[0])
+      return;
+
+    String externalId = null;
+
+    if (score == this.scores[0]) {
+      externalId = lookupExternalId(docid);
+
+      if (externalId.compareTo(this.getExternalId(0)) > 0)
+        return;
+    }
+
+    this.docids[0] = docid;
+    this.scores[0] = score;
+    this.externalIds[0] = externalId;
+    this.siftDown(0, this.size);
   }
 
   /**
@@ -51,7 +126,7 @@ public class ScoreList {
    *  @return The internal document id.
    */
   public int getDocid(int n) {
-    return this.scores.get(n).docid;
+    return this.docids[n];
   }
 
   /**
@@ -60,16 +135,26 @@ public class ScoreList {
    *  @return The document's score.
    */
   public double getDocidScore(int n) {
-    return this.scores.get(n).score;
+    return this.scores[n];
+  }
+
+  /**
+   *  Get the external document id of the n'th entry.
+   *  @param n The index of the requested document.
+   *  @return The external document id.
+   */
+  public String getExternalDocid(int n) {
+    return this.getExternalId(n);
   }
 
   /**
-   *  Set the score of the n'th entry.
+   *  Set the score of the n'th entry.  Scores should not be changed
+   *  in a bounded list until it is sorted.
    *  @param n The index of the score to change.
    *  @param score The new score.
    */
   public void setDocidScore(int n, double score) {
-    this.scores.get(n).score = score;
+    this.scores[n] = score;
   }
 
   /**
@@ -77,49 +162,160 @@ public class ScoreList {
    *  @return The size of the posting list.
    */
   public int size() {
-    return this.scores.size();
-  }
-
-  /*
-   *  Compare two ScoreListEntry objects.  Sort by score, then
-   *  internal docid.
-   */
-  public class ScoreListComparator implements Comparator<ScoreListEntry> {
-
-    @Override
-    public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-      if (s1.score > s2.score)
-	return -1;
-      else
-	if (s1.score < s2.score)
-	  return 1;
-	else
-	  if ( s1.externalId.compareTo(s2.externalId) > 0)
-	    return 1;
-	  else
-	    if (s1.externalId.compareTo(s2.externalId) < 0)
-	      return -1;
-	    else
-	      return 0;
-    }
+    return this.size;
+  }
+
+  /**
+   *  Get the number of documents that were added to the list,
+   *  including documents that didn't make the top k.
+   *  @return The number of documents added.
+   */
+  public long getNumAdded() {
+    return this.numAdded;
+  }
+
+  /**
+   *  Returns true if the query ran out of budget, so the list may be
+   *  missing documents.
+   *  @return True if the list is truncated.
+   */
+  public boolean isTruncated() {
+    return this.truncated;
+  }
+
+  /**
+   *  Record whether the query ran out of budget.
+   *  @param truncated True if the list may be missing documents.
+   */
+  public void setTruncated(boolean truncated) {
+    this.truncated = truncated;
+  }
+
+  /**
+   *  Get the minimum score that a new document needs to enter a
+   *  bounded list.  A document whose score equals the threshold may
+   *  still enter, if its external id breaks the tie.
+   *  @return The threshold, -Infinity if the list isn't full, or
+   *    +Infinity if its capacity is 0.
+   */
+  public double getThreshold() {
+    if (this.capacity == 0)
+      return Double.POSITIVE_INFINITY;
+    else if (this.size < this.capacity)
+      return Double.NEGATIVE_INFINITY;
+    else
+      return this.scores[0];
   }
 
   /**
    *  Sort the list by score and external document id.
    */
   public void sort () {
-    Collections.sort(this.scores, new ScoreListComparator());
+
+    //  Heapsort.  The heap's root is the worst entry, so repeatedly
+    //  moving the root to the end leaves the best entry first.
+
+    if (this.capacity == Integer.MAX_VALUE)
+      for (int i = this.size / 2 - 1; i >= 0; i--)
+        this.siftDown(i, this.size);
+
+    for (int end = this.size - 1; end > 0; end--) {
+      this.swap(0, end);
+      this.siftDown(0, end);
+    }
   }
-  
+
   /**
    * Reduce the score list to the first num results to save on RAM.
-   * 
+   *
    * @param num Number of results to keep.
    */
   public void truncate(int num) {
-    List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
-        Math.min(num, scores.size())));
-    this.scores.clear();
-    this.scores = truncated;
+    int n = Math.min(num, this.size);
+    this.docids = Arrays.copyOf(this.docids, n);
+    this.scores = Arrays.copyOf(this.scores, n);
+    this.externalIds = Arrays.copyOf(this.externalIds, n);
+    this.size = n;
+  }
+
+  /**
+   *  Returns true if the i'th entry ranks below the j'th entry.
+   */
+  private boolean isWorse(int i, int j) {
+    if (this.scores[i] != this.scores[j])
+      return (this.scores[i] < this.scores[j]);
+    else
+      return (this.getExternalId(i).compareTo(this.getExternalId(j)) > 0);
+  }
+
+  /**
+   *  Restore the heap property after the i'th entry was added.
+   */
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+
+      if (! this.isWorse(i, parent))
+        break;
+
+      this.swap(i, parent);
+      i = parent;
+    }
+  }
+
+  /**
+   *  Restore the heap property of the first end entries after the
+   *  i'th entry was replaced.
+   */
+  private void siftDown(int i, int end) {
+    while (true) {
+      int worst = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+
+      if ((left < end) && this.isWorse(left, worst))
+        worst = left;
+
+      if ((right < end) && this.isWorse(right, worst))
+        worst = right;
+
+      if (worst == i)
+        break;
+
+      this.swap(i, worst);
+      i = worst;
+    }
+  }
+
+  private void swap(int i, int j) {
+    int docid = this.docids[i];
+    this.docids[i] = this.docids[j];
+    this.docids[j] = docid;
+
+    double score = this.scores[i];
+    this.scores[i] = this.scores[j];
+    this.scores[j] = score;
+
+    String externalId = this.externalIds[i];
+    this.externalIds[i] = this.externalIds[j];
+    this.externalIds[j] = externalId;
+  }
+
+  /**
+   *  Get the external id of the i'th entry, looking it up if necessary.
+   */
+  private String getExternalId(int i) {
+    if (this.externalIds[i] == null)
+      this.externalIds[i] = lookupExternalId(this.docids[i]);
+
+    return this.externalIds[i];
+  }
+
+  private static String lookupExternalId(int docid) {
+    try {
+      return Idx.getExternalDocid(docid);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
   }
 }
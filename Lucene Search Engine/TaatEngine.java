@@ -0,0 +1,286 @@
+/**
+ *  Copyright (c) 2015, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  A term-at-a-time (TAAT) evaluator for flat queries:  BM25 #sum,
+ *  and Indri #and, #wand, and #wsum, whose arguments are all SCORE
+ *  operators.  Each argument's postings are read sequentially, and
+ *  its scores are combined into a dense accumulator indexed by docid,
+ *  instead of iterating over every argument for every document.
+ *  <p>
+ *  Indri scores include default scores for the arguments that don't
+ *  match a document.  Each accumulator records how many arguments
+ *  have been combined into it.  When an argument matches a document,
+ *  the default scores of the arguments that it skipped are combined
+ *  first, and the remaining default scores are combined at the end.
+ *  Scores are therefore combined in the same order, with the same
+ *  arithmetic, as the document-at-a-time operators, so the results
+ *  are identical.
+ *  </p><p>
+ *  Each posting costs 1 unit of the query's budget.  If the budget
+ *  runs out, reading stops, and the documents that have accumulators
+ *  are scored as if the postings that weren't read didn't match.
+ *  </p><p>
+ *  The accumulators use 16 bytes per document in the index.  They
+ *  are allocated once and reused, so an engine must be used by one
+ *  query at a time.
+ *  </p>
+ */
+public class TaatEngine {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  How scores are combined.
+   */
+  private static final int SUM = 0;
+  private static final int WEIGHTED_SUM = 1;
+  private static final int PRODUCT = 2;
+  private static final int WEIGHTED_PRODUCT = 3;
+
+  /**
+   *  The accumulators:  the combined score of each document, the
+   *  number of arguments that have been combined into it plus 1 (0
+   *  means that no argument matches it yet), and the documents that
+   *  have accumulators, in the order that they were found.
+   */
+  private final double[] scores;
+  private final int[] combined;
+  private final int[] candidates;
+  private int numCandidates = 0;
+
+  private long numQueries = 0;
+  private long numPostings = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  @param maxDoc The number of documents in the index.
+   */
+  public TaatEngine (int maxDoc) {
+    this.scores = new double[maxDoc];
+    this.combined = new int[maxDoc];
+    this.candidates = new int[maxDoc];
+  }
+
+  /**
+   *  Returns true if the engine can evaluate a query.
+   *  @param q A parsed query.
+   *  @param r The retrieval model.
+   *  @return True if the query is flat and the engine supports its
+   *    operator and retrieval model.
+   */
+  public static boolean supports (Qry q, RetrievalModel r) {
+
+    if (q instanceof QrySopScore) {
+      return ((r instanceof RetrievalModelBM25) ||
+              (r instanceof RetrievalModelIndri));
+    }
+
+    boolean operatorSupported =
+      ((r instanceof RetrievalModelBM25) && (q instanceof QrySopSum)) ||
+      ((r instanceof RetrievalModelIndri) &&
+       ((q instanceof QrySopAnd) || (q instanceof QrySopWAnd) ||
+        (q instanceof QrySopWSum)));
+
+    if ((! operatorSupported) || (q.args.size () == 0)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Evaluate a query that the engine supports.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param depth The number of results to keep.
+   *  @param budget The query's budget, or null.  If it runs out, the
+   *    results are marked truncated.
+   *  @return The results, sorted.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ScoreList evaluate (QrySop q, RetrievalModel r, int depth,
+                             QueryBudget budget)
+    throws IOException {
+
+    q.initialize (r);
+
+    //  A SCORE operator is treated as a sum with one argument.
+
+    QrySopScore[] leaves;
+
+    if (q instanceof QrySopScore) {
+      leaves = new QrySopScore[] { (QrySopScore) q };
+    } else {
+      leaves = new QrySopScore[q.args.size ()];
+
+      for (int i = 0; i < leaves.length; i++) {
+        leaves[i] = (QrySopScore) q.args.get (i);
+      }
+    }
+
+    int mode;
+    double[] weights = null;
+    double weightSum = 1d;
+
+    if ((q instanceof QrySopScore) || (q instanceof QrySopSum)) {
+      mode = SUM;
+    } else if (q instanceof QrySopWSum) {
+      mode = WEIGHTED_SUM;
+      weights = new double[leaves.length];
+      weightSum = ((QrySopWSum) q).getWeightSum ();
+
+      for (int i = 0; i < leaves.length; i++) {
+        weights[i] = q.weights.get (i);
+      }
+    } else if (q instanceof QrySopWAnd) {
+      mode = WEIGHTED_PRODUCT;
+      weights = ((QrySopWAnd) q).getGeometricMeanWeights (r);
+    } else {
+      mode = PRODUCT;
+    }
+
+    boolean indri = (r instanceof RetrievalModelIndri);
+    double identity = ((mode == PRODUCT) || (mode == WEIGHTED_PRODUCT)) ? 1d : 0d;
+
+    this.numQueries++;
+
+    //  Combine each argument's scores into the accumulators.  A
+    //  streaming argument that runs out of budget stops the loop, but
+    //  the documents that have accumulators are kept, and their
+    //  accumulators are cleared below.
+
+    boolean truncated = false;
+
+    try {
+      for (int i = 0; (i < leaves.length) && ! truncated; i++) {
+        QrySopScore leaf = leaves[i];
+        QryIop postings = (QryIop) leaf.args.get (0);
+
+        while (postings.docIteratorHasMatch (r)) {
+          if ((budget != null) && ! budget.charge (1)) {
+            truncated = true;
+            break;
+          }
+
+          int docid = postings.docIteratorGetMatch ();
+          double tf = postings.docIteratorGetMatchTf ();
+
+          if (this.combined[docid] == 0) {
+            this.candidates[this.numCandidates++] = docid;
+            this.scores[docid] = identity;
+            this.combined[docid] = 1;
+          }
+
+          if (indri) {
+            this.combineDefaults (docid, i, leaves, mode, weights, weightSum);
+          }
+
+          double score = indri ? leaf.scoreIndri (docid, tf) : leaf.scoreBM25 (docid, tf);
+
+          this.scores[docid] = combine (this.scores[docid], score, mode, weights, weightSum, i);
+          this.combined[docid] = i + 2;
+          this.numPostings++;
+
+          postings.docIteratorAdvancePast (docid);
+        }
+      }
+    } catch (QueryBudget.Exhausted ex) {
+      truncated = true;
+    }
+
+    //  Finish the scores, and select the top k.
+
+    ScoreList results = new ScoreList (depth);
+    double len = leaves.length;
+
+    for (int c = 0; c < this.numCandidates; c++) {
+      int docid = this.candidates[c];
+
+      if (indri) {
+        this.combineDefaults (docid, leaves.length, leaves, mode, weights, weightSum);
+      }
+
+      double score = this.scores[docid];
+
+      if (mode == PRODUCT) {
+        score = Math.pow (score, 1d / len);
+      }
+
+      results.add (docid, score);
+      this.combined[docid] = 0;
+    }
+
+    this.numCandidates = 0;
+    results.sort ();
+    results.setTruncated (truncated);
+    return results;
+  }
+
+  /**
+   *  Combine the default scores of the arguments that have been
+   *  skipped since a document's last match, up to argument end.
+   */
+  private void combineDefaults (int docid, int end, QrySopScore[] leaves,
+                                int mode, double[] weights, double weightSum)
+    throws IOException {
+
+    double score = this.scores[docid];
+
+    for (int i = this.combined[docid] - 1; i < end; i++) {
+      score = combine (score, leaves[i].defaultScoreIndri (docid), mode,
+                       weights, weightSum, i);
+    }
+
+    this.scores[docid] = score;
+    this.combined[docid] = end + 1;
+  }
+
+  /**
+   *  Combine the score of argument i into an accumulated score, the
+   *  same way that the query operators do.  #WSUM weights are divided
+   *  by their sum here, as QrySopWSum does, rather than normalized
+   *  in advance.
+   */
+  private static double combine (double accumulated, double score, int mode,
+                                 double[] weights, double weightSum, int i) {
+    switch (mode) {
+      case WEIGHTED_SUM:
+        return accumulated + score * weights[i] / weightSum;
+      case PRODUCT:
+        return accumulated * score;
+      case WEIGHTED_PRODUCT:
+        return accumulated * Math.pow (score, weights[i]);
+      default:
+        return accumulated + score;
+    }
+  }
+
+  /**
+   *  Get the memory used by the accumulators.
+   *  @return The size of the accumulators, in bytes.
+   */
+  public long getMemoryUsage () {
+    return 8L * this.scores.length + 4L * this.combined.length +
+           4L * this.candidates.length;
+  }
+
+  /**
+   *  Describe the engine's memory use and activity.
+   */
+  public String toString () {
+    return String.format ("TAAT engine:  %.1f MB of accumulators, %d queries, %d postings",
+                          getMemoryUsage () / 1048576.0, this.numQueries,
+                          this.numPostings);
+  }
+}